@@ -15,6 +15,7 @@
 package org.kurento.tutorial.chroma;
 
 import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -49,6 +50,11 @@ public class ChromaApp implements WebSocketConfigurer {
 				DEFAULT_KMS_WS_URI));
 	}
 
+	@Bean
+	public OutboundQueues outboundQueues() {
+		return new OutboundQueues();
+	}
+
 	@Override
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
 		registry.addHandler(handler(), "/chroma");
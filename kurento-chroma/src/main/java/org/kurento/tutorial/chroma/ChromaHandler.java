@@ -14,27 +14,25 @@
  */
 package org.kurento.tutorial.chroma;
 
-import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
-import org.kurento.client.OnIceCandidateEvent;
 import org.kurento.client.WebRtcEndpoint;
-import org.kurento.jsonrpc.JsonUtils;
 import org.kurento.module.chroma.ChromaFilter;
 import org.kurento.module.chroma.WindowParam;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.kurento.tutorial.signaling.SignalingCodec;
+import org.kurento.tutorial.signaling.SignalingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 /**
@@ -47,22 +45,24 @@ import com.google.gson.JsonObject;
 public class ChromaHandler extends TextWebSocketHandler {
 
 	private final Logger log = LoggerFactory.getLogger(ChromaHandler.class);
-	private static final Gson gson = new GsonBuilder().create();
 
 	private final ConcurrentHashMap<String, UserSession> users = new ConcurrentHashMap<String, UserSession>();
 
 	@Autowired
 	private KurentoClient kurento;
 
+	@Autowired
+	private OutboundQueues outboundQueues;
+
 	@Override
 	public void handleTextMessage(WebSocketSession session, TextMessage message)
 			throws Exception {
-		JsonObject jsonMessage = gson.fromJson(message.getPayload(),
-				JsonObject.class);
+		SignalingMessage jsonMessage = SignalingCodec.decode(message
+				.getPayload());
 
 		log.debug("Incoming message: {}", jsonMessage);
 
-		switch (jsonMessage.get("id").getAsString()) {
+		switch (jsonMessage.getId()) {
 		case "start":
 			start(session, jsonMessage);
 			break;
@@ -74,16 +74,13 @@ public class ChromaHandler extends TextWebSocketHandler {
 			}
 			break;
 		}
-		case "onIceCandidate": {
-			JsonObject candidate = jsonMessage.get("candidate")
-					.getAsJsonObject();
-
+		case "onIceCandidate":
+		case "onIceCandidates": {
 			UserSession user = users.get(session.getId());
 			if (user != null) {
-				IceCandidate cand = new IceCandidate(candidate.get("candidate")
-						.getAsString(), candidate.get("sdpMid").getAsString(),
-						candidate.get("sdpMLineIndex").getAsInt());
-				user.addCandidate(cand);
+				for (IceCandidate cand : jsonMessage.getCandidates()) {
+					user.addCandidate(cand);
+				}
 			}
 			break;
 		}
@@ -91,12 +88,13 @@ public class ChromaHandler extends TextWebSocketHandler {
 		default:
 			sendError(session,
 					"Invalid message with id "
-							+ jsonMessage.get("id").getAsString());
+							+ jsonMessage.getId());
 			break;
 		}
 	}
 
-	private void start(final WebSocketSession session, JsonObject jsonMessage) {
+	private void start(final WebSocketSession session,
+			SignalingMessage jsonMessage) {
 		try {
 			// Media Logic (Media Pipeline and Elements)
 			UserSession user = new UserSession();
@@ -107,25 +105,8 @@ public class ChromaHandler extends TextWebSocketHandler {
 			user.setWebRtcEndpoint(webRtcEndpoint);
 			users.put(session.getId(), user);
 
-			webRtcEndpoint
-					.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-
-						@Override
-						public void onEvent(OnIceCandidateEvent event) {
-							JsonObject response = new JsonObject();
-							response.addProperty("id", "iceCandidate");
-							response.add("candidate", JsonUtils
-									.toJsonObject(event.getCandidate()));
-							try {
-								synchronized (session) {
-									session.sendMessage(new TextMessage(
-											response.toString()));
-								}
-							} catch (IOException e) {
-								log.debug(e.getMessage());
-							}
-						}
-					});
+			webRtcEndpoint.addOnIceCandidateListener(outboundQueues
+					.iceCandidateForwarder(session));
 
 			ChromaFilter chromaFilter = new ChromaFilter.Builder(pipeline,
 					new WindowParam(5, 5, 40, 40)).build();
@@ -137,7 +118,7 @@ public class ChromaHandler extends TextWebSocketHandler {
 			chromaFilter.connect(webRtcEndpoint);
 
 			// SDP negotiation (offer and answer)
-			String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
+			String sdpOffer = jsonMessage.getSdpOffer();
 			String sdpAnswer = webRtcEndpoint.processOffer(sdpOffer);
 
 			// Sending response back to client
@@ -145,9 +126,8 @@ public class ChromaHandler extends TextWebSocketHandler {
 			response.addProperty("id", "startResponse");
 			response.addProperty("sdpAnswer", sdpAnswer);
 
-			synchronized (session) {
-				session.sendMessage(new TextMessage(response.toString()));
-			}
+			outboundQueues.get(session).send(
+					new TextMessage(response.toString()));
 			webRtcEndpoint.gatherCandidates();
 
 		} catch (Throwable t) {
@@ -155,14 +135,17 @@ public class ChromaHandler extends TextWebSocketHandler {
 		}
 	}
 
+	@Override
+	public void afterConnectionClosed(WebSocketSession session,
+			CloseStatus status) throws Exception {
+		outboundQueues.remove(session);
+	}
+
 	private void sendError(WebSocketSession session, String message) {
-		try {
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "error");
-			response.addProperty("message", message);
-			session.sendMessage(new TextMessage(response.toString()));
-		} catch (IOException e) {
-			log.error("Exception sending message", e);
-		}
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "error");
+		response.addProperty("message", message);
+		outboundQueues.get(session).send(
+				new TextMessage(response.toString()));
 	}
 }
@@ -19,6 +19,7 @@ import java.io.IOException;
 import org.kurento.client.KurentoClient;
 import org.kurento.orion.OrionConnector;
 import org.kurento.orion.OrionConnectorConfiguration;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -53,6 +54,11 @@ public class CrowdDetectorApp implements WebSocketConfigurer {
 		return KurentoClient.create(System.getProperty("kms.ws.uri",
 				DEFAULT_KMS_WS_URI));
 	}
+
+	@Bean
+	public OutboundQueues outboundQueues() {
+		return new OutboundQueues();
+	}
 	
 	@Bean
 	public OrionConnector orionConnector() {
@@ -14,25 +14,23 @@
  */
 package org.kurento.demo;
 
-import java.io.IOException;
-
-import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
-import org.kurento.client.OnIceCandidateEvent;
 import org.kurento.client.WebRtcEndpoint;
-import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.kurento.tutorial.signaling.SignalingCodec;
+import org.kurento.tutorial.signaling.SignalingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 /**
@@ -56,15 +54,18 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
 	@Autowired
 	private Pipeline pipeline;
 
+	@Autowired
+	private OutboundQueues outboundQueues;
+
 	@Override
 	public void handleTextMessage(WebSocketSession session, TextMessage message)
 			throws Exception {
-		JsonObject jsonMessage = gson.fromJson(message.getPayload(),
-				JsonObject.class);
+		SignalingMessage jsonMessage = SignalingCodec.decode(message
+				.getPayload());
 
 		log.debug("Incoming message: {}", jsonMessage);
 
-		switch (jsonMessage.get("id").getAsString()) {
+		switch (jsonMessage.getId()) {
 		case "start":
 			try {
 				start(session, jsonMessage);
@@ -82,52 +83,43 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
 			break;
 
 		case "changeProcessingWidth":
-			changeProcessingWidth(jsonMessage.get("width").getAsInt());
+			changeProcessingWidth(jsonMessage.getInt("width"));
 			break;
 
-		case "onIceCandidate": {
-			JsonObject candidate = jsonMessage.get("candidate")
-					.getAsJsonObject();
-
-			IceCandidate cand = new IceCandidate(candidate.get("candidate")
-					.getAsString(), candidate.get("sdpMid").getAsString(),
-					candidate.get("sdpMLineIndex").getAsInt());
-			this.pipeline.addCandidate(cand, session.getId());
+		case "onIceCandidate":
+		case "onIceCandidates": {
+			for (IceCandidate cand : jsonMessage.getCandidates()) {
+				this.pipeline.addCandidate(cand, session.getId());
+			}
 			break;
 		}
 
 		default:
 			sendError(session,
 					"Invalid message with id "
-							+ jsonMessage.get("id").getAsString());
+							+ jsonMessage.getId());
 			break;
 		}
 	}
 
-	private void start(final WebSocketSession session, JsonObject jsonMessage)
-			throws IOException {
+	private void start(final WebSocketSession session,
+			SignalingMessage jsonMessage) {
 
 		updateFeed(jsonMessage);
 
 		if (this.pipeline.getPlayerEndpoint() == null) {
-			try {
-				JsonObject response = new JsonObject();
-				response.addProperty("id", "noPlayer");
-				session.sendMessage(new TextMessage(response.toString()));
-			} catch (IOException a) {
-				log.error("Exception sending message", a);
-			}
+			JsonObject response = new JsonObject();
+			response.addProperty("id", "noPlayer");
+			outboundQueues.get(session).send(
+					new TextMessage(response.toString()));
 			return;
 		}
 
 		if (!this.pipeline.isPlaying()) {
-			try {
-				JsonObject response = new JsonObject();
-				response.addProperty("id", "noPlaying");
-				session.sendMessage(new TextMessage(response.toString()));
-			} catch (IOException a) {
-				log.error("Exception sending message", a);
-			}
+			JsonObject response = new JsonObject();
+			response.addProperty("id", "noPlaying");
+			outboundQueues.get(session).send(
+					new TextMessage(response.toString()));
 			return;
 		}
 
@@ -136,32 +128,15 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
 		WebRtcEndpoint webRtcEndpoint = new WebRtcEndpoint.Builder(
 				mediaPipeline).build();
 
-		webRtcEndpoint
-				.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-
-					@Override
-					public void onEvent(OnIceCandidateEvent event) {
-						JsonObject response = new JsonObject();
-						response.addProperty("id", "iceCandidate");
-						response.add("candidate",
-								JsonUtils.toJsonObject(event.getCandidate()));
-						try {
-							synchronized (session) {
-								session.sendMessage(new TextMessage(response
-										.toString()));
-							}
-						} catch (IOException e) {
-							log.debug(e.getMessage());
-						}
-					}
-				});
+		webRtcEndpoint.addOnIceCandidateListener(outboundQueues
+				.iceCandidateForwarder(session));
 
 		this.pipeline.setWebRtcEndpoint(session.getId(), webRtcEndpoint);
 
 		this.pipeline.getCrowdDetectorFilter().connect(webRtcEndpoint);
 
 		// SDP negotiation (offer and answer)
-		String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
+		String sdpOffer = jsonMessage.getSdpOffer();
 		String sdpAnswer = webRtcEndpoint.processOffer(sdpOffer);
 
 		// Sending response back to client
@@ -170,30 +145,31 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
 		response.addProperty("sdpAnswer", sdpAnswer);
 		response.addProperty("feedUrl", this.pipeline.getFeedUrl());
 		response.addProperty("rois", gson.toJson(this.pipeline.getRois()));
-		synchronized (session) {
-			session.sendMessage(new TextMessage(response.toString()));
-		}
+		outboundQueues.get(session).send(
+				new TextMessage(response.toString()));
 		webRtcEndpoint.gatherCandidates();
 	}
 
-	private static void sendError(WebSocketSession session, String message) {
-		try {
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "error");
-			response.addProperty("message", message);
-			session.sendMessage(new TextMessage(response.toString()));
-		} catch (IOException e) {
-			log.error("Exception sending message", e);
-		}
+	@Override
+	public void afterConnectionClosed(WebSocketSession session,
+			CloseStatus status) throws Exception {
+		outboundQueues.remove(session);
+	}
+
+	private void sendError(WebSocketSession session, String message) {
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "error");
+		response.addProperty("message", message);
+		outboundQueues.get(session).send(
+				new TextMessage(response.toString()));
 	}
 
-	private void updateFeed(JsonObject jsonMessage) {
+	private void updateFeed(SignalingMessage jsonMessage) {
 
-		JsonElement feedUrlJson = jsonMessage.get("feedUrl");
-		if (feedUrlJson == null) {
+		String feedUrl = jsonMessage.getString("feedUrl");
+		if (feedUrl == null) {
 			log.warn("No feed url defined");
 		} else {
-			String feedUrl = feedUrlJson.getAsString();
 			log.debug("Updating video feed");
 			this.pipeline.setFeedUrl(feedUrl);
 		}
@@ -0,0 +1,292 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.tutorial.groupcall.MediaServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * In-process stand-in for a Kurento Media Server. It answers the subset of
+ * the KMS JSON-RPC protocol used by the group call tutorial without handling
+ * any media, and keeps track of the objects created on it.
+ * <p>
+ * Every response can be delayed by a fixed latency, to simulate the round
+ * trip to a remote, busy media server. Endpoints asked to gather candidates
+ * fire a couple of {@code IceCandidateFound} events after the same latency.
+ *
+ * @since 6.0.0
+ */
+public class FakeKms extends DefaultJsonRpcHandler<JsonObject> {
+
+	private static final Logger log = LoggerFactory.getLogger(FakeKms.class);
+
+	static final String FAKE_SDP_ANSWER = "v=0\r\n"
+			+ "o=- 0 0 IN IP4 127.0.0.1\r\n" + "s=Kurento Media Server\r\n"
+			+ "c=IN IP4 127.0.0.1\r\n" + "t=0 0\r\n"
+			+ "m=video 1 RTP/SAVPF 100\r\n" + "a=rtpmap:100 VP8/90000\r\n"
+			+ "a=sendrecv\r\n";
+
+	private final long latencyMillis;
+	private final ScheduledExecutorService responder = Executors
+			.newScheduledThreadPool(4);
+
+	private final AtomicLong ids = new AtomicLong();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ConcurrentMap<String, String> liveObjects = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, AtomicInteger> created = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Session> iceListeners = new ConcurrentHashMap<>();
+	private final AtomicInteger events = new AtomicInteger();
+
+	static final int CANDIDATES_PER_ENDPOINT = 2;
+
+	public FakeKms() {
+		this(0);
+	}
+
+	/**
+	 * @param latencyMillis
+	 *            delay applied to every response
+	 */
+	public FakeKms(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * @return a client connected to this fake media server
+	 */
+	public KurentoClient createClient() {
+		return KurentoClient
+				.createFromJsonRpcClient(new JsonRpcClientLocal(this));
+	}
+
+	/**
+	 * @param uri
+	 *            name of the media server
+	 * @return a media server backed by this fake, without pipeline pool
+	 */
+	public MediaServer createMediaServer(String uri) {
+		return new MediaServer(uri, createClient(), 0);
+	}
+
+	@Override
+	public void handleRequest(final Transaction transaction,
+			Request<JsonObject> request) throws Exception {
+		requests.incrementAndGet();
+		inFlight.incrementAndGet();
+		final JsonObject response = respond(request, transaction.getSession());
+
+		if (latencyMillis <= 0) {
+			sendResponse(transaction, response);
+			return;
+		}
+
+		transaction.startAsync();
+		responder.schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendResponse(transaction, response);
+			}
+		}, latencyMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void sendResponse(Transaction transaction, JsonObject response) {
+		try {
+			transaction.sendResponse(response);
+		} catch (IOException e) {
+			log.warn("Could not send response", e);
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	private JsonObject respond(Request<JsonObject> request, Session session) {
+		final JsonObject params = request.getParams();
+
+		switch (request.getMethod()) {
+		case "create":
+			return value(create(params.get("type").getAsString()));
+		case "invoke":
+			return value(invoke(params.get("object").getAsString(), params
+					.get("operation").getAsString()));
+		case "subscribe":
+			if ("IceCandidateFound".equals(params.get("type").getAsString())) {
+				iceListeners.put(params.get("object").getAsString(), session);
+			}
+			return value("subscription-" + ids.incrementAndGet());
+		case "release":
+			liveObjects.remove(params.get("object").getAsString());
+			iceListeners.remove(params.get("object").getAsString());
+			return value(null);
+		default:
+			log.debug("Ignoring request {}", request.getMethod());
+			return value(null);
+		}
+	}
+
+	private String create(String type) {
+		final String id = ids.incrementAndGet() + "_" + type;
+		liveObjects.put(id, type);
+
+		AtomicInteger counter = created.get(type);
+		if (counter == null) {
+			final AtomicInteger newCounter = new AtomicInteger();
+			counter = created.putIfAbsent(type, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.incrementAndGet();
+		return id;
+	}
+
+	private String invoke(String object, String operation) {
+		switch (operation) {
+		case "processOffer":
+			return FAKE_SDP_ANSWER;
+		case "gatherCandidates":
+			fireCandidates(object);
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	private void fireCandidates(final String object) {
+		final Session session = iceListeners.get(object);
+		if (session == null) {
+			return;
+		}
+		responder.schedule(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < CANDIDATES_PER_ENDPOINT; i++) {
+					try {
+						session.sendNotification("onEvent",
+								candidateEvent(object, i));
+						events.incrementAndGet();
+					} catch (IOException e) {
+						log.debug("Could not fire candidate of {}", object, e);
+					}
+				}
+			}
+		}, latencyMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the parameters of an {@code onEvent} notification, as sent by
+	 *         the media server
+	 */
+	private static JsonObject candidateEvent(String object, int index) {
+		final JsonObject candidate = new JsonObject();
+		candidate.addProperty("__module__", "kurento");
+		candidate.addProperty("__type__", "IceCandidate");
+		candidate.addProperty("candidate", "candidate:" + index
+				+ " 1 UDP 2013266431 127.0.0.1 " + (50000 + index)
+				+ " typ host");
+		candidate.addProperty("sdpMid", "video");
+		candidate.addProperty("sdpMLineIndex", 0);
+
+		final JsonObject data = new JsonObject();
+		data.add("candidate", candidate);
+		data.addProperty("source", object);
+		data.add("tags", new JsonArray());
+		data.addProperty("timestamp",
+				String.valueOf(System.currentTimeMillis() / 1000));
+		data.addProperty("type", "IceCandidateFound");
+
+		final JsonObject value = new JsonObject();
+		value.add("data", data);
+		value.addProperty("object", object);
+		value.addProperty("type", "IceCandidateFound");
+
+		final JsonObject params = new JsonObject();
+		params.add("value", value);
+		return params;
+	}
+
+	private static JsonObject value(String value) {
+		final JsonObject result = new JsonObject();
+		result.addProperty("value", value);
+		return result;
+	}
+
+	/**
+	 * @param type
+	 *            the KMS type name, e.g. {@code WebRtcEndpoint}
+	 * @return how many objects of that type have been created so far
+	 */
+	public int getCreated(String type) {
+		final AtomicInteger counter = created.get(type);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * @return the number of objects created and not yet released
+	 */
+	public int getLiveObjects() {
+		return liveObjects.size();
+	}
+
+	/**
+	 * @return the number of {@code IceCandidateFound} events fired so far
+	 */
+	public int getEvents() {
+		return events.get();
+	}
+
+	/**
+	 * @return the number of JSON-RPC requests received so far
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Waits until no request has been received nor answered for a while, so
+	 * that chains of asynchronous requests are complete.
+	 */
+	public void awaitQuiescence() throws InterruptedException {
+		int lastRequests = -1;
+		while (inFlight.get() > 0 || lastRequests != requests.get()) {
+			lastRequests = requests.get();
+			Thread.sleep(Math.max(5, 2 * latencyMillis));
+		}
+	}
+
+	public void shutdown() {
+		responder.shutdownNow();
+	}
+
+}
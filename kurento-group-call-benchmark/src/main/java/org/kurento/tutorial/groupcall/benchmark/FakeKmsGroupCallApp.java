@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall.benchmark;
+
+import java.util.Collections;
+
+import org.kurento.tutorial.groupcall.GroupCallApp;
+import org.kurento.tutorial.groupcall.RoomPlacement;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+
+/**
+ * The group call application, with its rooms placed on a {@link FakeKms}
+ * registered in the context before it is refreshed.
+ *
+ * @since 6.0.0
+ */
+@Configuration
+@EnableWebSocket
+@EnableAutoConfiguration
+public class FakeKmsGroupCallApp extends GroupCallApp {
+
+	@Autowired
+	private FakeKms fakeKms;
+
+	@Override
+	@Bean
+	public RoomPlacement roomPlacement() {
+		return new RoomPlacement(Collections.singletonList(fakeKms
+				.createMediaServer("fake")), "least-endpoints");
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.tutorial.groupcall.ContinuationFuture;
+import org.kurento.tutorial.groupcall.MediaServer;
+import org.kurento.tutorial.groupcall.NotificationDispatcher;
+import org.kurento.tutorial.groupcall.Room;
+import org.kurento.tutorial.groupcall.RoomMode;
+import org.kurento.tutorial.groupcall.SignalingStats;
+import org.kurento.tutorial.groupcall.UserSession;
+import org.kurento.tutorial.signaling.OutboundQueues;
+
+/**
+ * Measures how long a participant joining a mesh room waits for all its SDP
+ * answers, when every request to the media server takes a fixed latency.
+ * <p>
+ * The newcomer issues its {@code receiveVideoFrom} requests back to back, as
+ * the browser client does, and the clock stops when the last answer has been
+ * sent. Usage: {@code JoinLatencyBenchmark [latencyMillis]}, 20 ms by
+ * default.
+ *
+ * @since 6.0.0
+ */
+public class JoinLatencyBenchmark {
+
+	private static final int[] ROOM_SIZES = { 2, 5, 10, 20, 30, 40, 50 };
+
+	public static void main(String[] args) throws Exception {
+		final long latency = args.length > 0 ? Long.parseLong(args[0]) : 20;
+		final OutboundQueues outboundQueues = new OutboundQueues();
+		final NotificationDispatcher dispatcher = new NotificationDispatcher(
+				outboundQueues);
+
+		System.out.println("KMS latency per call: " + latency + " ms");
+		System.out.println(String.format("%5s %14s %14s %14s", "size",
+				"joinMs", "firstAnswerP50", "offerP99"));
+		try {
+			for (int size : ROOM_SIZES) {
+				run(size, latency, dispatcher);
+			}
+		} finally {
+			dispatcher.shutdown();
+			outboundQueues.shutdown();
+		}
+	}
+
+	private static void run(int size, long latency,
+			NotificationDispatcher dispatcher) throws Exception {
+		final FakeKms kms = new FakeKms(latency);
+		final MediaServer server = kms.createMediaServer("fake");
+		final ContinuationFuture<MediaPipeline> pipeline = new ContinuationFuture<>();
+		server.acquirePipeline(pipeline);
+		final SignalingStats stats = new SignalingStats();
+		final Room room = new Room("latency-" + size, server, pipeline,
+				RoomMode.MESH, dispatcher, stats);
+
+		final List<UserSession> present = new ArrayList<>();
+		for (int i = 0; i < size - 1; i++) {
+			final UserSession user = room.join("user" + i,
+					new FakeWebSocketSession("session" + i));
+			user.receiveVideoFrom(user, RoomJoinBenchmark.SDP_OFFER).get(10,
+					TimeUnit.SECONDS);
+			present.add(user);
+		}
+
+		final long start = System.nanoTime();
+		final UserSession newcomer = room.join("newcomer",
+				new FakeWebSocketSession("newcomer"));
+		final List<ContinuationFuture<String>> answers = new ArrayList<>();
+		answers.add(newcomer.receiveVideoFrom(newcomer,
+				RoomJoinBenchmark.SDP_OFFER));
+		for (UserSession sender : present) {
+			answers.add(newcomer.receiveVideoFrom(sender,
+					RoomJoinBenchmark.SDP_OFFER));
+		}
+		for (ContinuationFuture<String> answer : answers) {
+			answer.get(60, TimeUnit.SECONDS);
+		}
+		final long joinMillis = TimeUnit.NANOSECONDS.toMillis(System
+				.nanoTime() - start);
+
+		System.out.println(String.format("%5d %14d %14d %14d", size,
+				joinMillis, stats.getJoinToFirstAnswer().getPercentile(50),
+				stats.getOfferToAnswer().getPercentile(99)));
+
+		room.close();
+		server.shutdown();
+		kms.shutdown();
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.tutorial.groupcall.ContinuationFuture;
+import org.kurento.tutorial.groupcall.MediaServer;
+import org.kurento.tutorial.groupcall.NotificationDispatcher;
+import org.kurento.tutorial.groupcall.Room;
+import org.kurento.tutorial.groupcall.RoomMode;
+import org.kurento.tutorial.groupcall.RoomPlacement;
+import org.kurento.tutorial.groupcall.SignalingStats;
+import org.kurento.tutorial.groupcall.UserSession;
+import org.kurento.tutorial.signaling.OutboundQueues;
+
+/**
+ * Replays the same workload of mesh rooms against several fake media servers
+ * with each placement policy, and reports how evenly endpoints end up spread.
+ * <p>
+ * Room sizes are skewed towards small rooms, with a few large ones, and some
+ * rooms close while others are being created. Usage:
+ * {@code PlacementSimulation [servers] [rooms]}, 4 servers and 200 rooms by
+ * default.
+ *
+ * @since 6.0.0
+ */
+public class PlacementSimulation {
+
+	private static final String[] POLICIES = { "round-robin",
+			"least-endpoints", "consistent-hash" };
+
+	private static final int MAX_ROOM_SIZE = 30;
+	private static final double CLOSE_PROBABILITY = 0.3;
+	private static final long SEED = 42;
+
+	public static void main(String[] args) throws Exception {
+		final int servers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		final OutboundQueues outboundQueues = new OutboundQueues();
+		final NotificationDispatcher dispatcher = new NotificationDispatcher(
+				outboundQueues);
+
+		System.out.println(String.format("%-16s %-40s %8s %8s", "policy",
+				"endpoints per server", "max/mean", "cv"));
+		try {
+			for (String policy : POLICIES) {
+				run(policy, servers, rooms, dispatcher);
+			}
+		} finally {
+			dispatcher.shutdown();
+			outboundQueues.shutdown();
+		}
+	}
+
+	private static void run(String policy, int serverCount, int roomCount,
+			NotificationDispatcher dispatcher) throws Exception {
+		final List<FakeKms> fakes = new ArrayList<>();
+		final List<MediaServer> servers = new ArrayList<>();
+		for (int i = 0; i < serverCount; i++) {
+			final FakeKms kms = new FakeKms();
+			fakes.add(kms);
+			servers.add(kms.createMediaServer("ws://kms" + i + ":8888/kurento"));
+		}
+		final RoomPlacement placement = new RoomPlacement(servers, policy);
+		final SignalingStats stats = new SignalingStats();
+		final Random random = new Random(SEED);
+		final List<Room> open = new ArrayList<>();
+
+		for (int i = 0; i < roomCount; i++) {
+			final String roomName = "room" + i;
+			final MediaServer server = placement.place(roomName);
+			final ContinuationFuture<MediaPipeline> pipeline = new ContinuationFuture<>();
+			server.roomCreated();
+			server.acquirePipeline(pipeline);
+			final Room room = new Room(roomName, server, pipeline,
+					RoomMode.MESH, dispatcher, stats);
+			fill(room, roomSize(random));
+			open.add(room);
+
+			if (!open.isEmpty() && random.nextDouble() < CLOSE_PROBABILITY) {
+				final Room closed = open.remove(random.nextInt(open.size()));
+				closed.getMediaServer().roomRemoved();
+				closed.close();
+			}
+		}
+		for (FakeKms kms : fakes) {
+			kms.awaitQuiescence();
+		}
+
+		report(policy, servers);
+
+		for (Room room : open) {
+			room.close();
+		}
+		placement.shutdown();
+		for (FakeKms kms : fakes) {
+			kms.shutdown();
+		}
+	}
+
+	/**
+	 * @return between 2 and {@link #MAX_ROOM_SIZE}, mostly small
+	 */
+	private static int roomSize(Random random) {
+		final double r = random.nextDouble();
+		return 2 + (int) ((MAX_ROOM_SIZE - 2) * r * r * r);
+	}
+
+	private static void fill(Room room, int size) throws Exception {
+		final List<UserSession> users = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			final UserSession user = room.join(room.getName() + "-user" + i,
+					new FakeWebSocketSession(room.getName() + "-session" + i));
+			user.receiveVideoFrom(user, RoomJoinBenchmark.SDP_OFFER).get(10,
+					TimeUnit.SECONDS);
+			for (UserSession other : users) {
+				user.receiveVideoFrom(other, RoomJoinBenchmark.SDP_OFFER).get(
+						10, TimeUnit.SECONDS);
+				other.receiveVideoFrom(user, RoomJoinBenchmark.SDP_OFFER).get(
+						10, TimeUnit.SECONDS);
+			}
+			users.add(user);
+		}
+	}
+
+	private static void report(String policy, List<MediaServer> servers) {
+		final StringBuilder perServer = new StringBuilder();
+		long total = 0;
+		long max = 0;
+		for (MediaServer server : servers) {
+			final int endpoints = server.getEndpoints();
+			perServer.append(endpoints).append(' ');
+			total += endpoints;
+			max = Math.max(max, endpoints);
+		}
+
+		final double mean = (double) total / servers.size();
+		double variance = 0;
+		for (MediaServer server : servers) {
+			variance += Math.pow(server.getEndpoints() - mean, 2);
+		}
+		final double stdDev = Math.sqrt(variance / servers.size());
+
+		System.out.println(String.format("%-16s %-40s %8.2f %8.2f", policy,
+				perServer.toString().trim(), mean == 0 ? 0 : max / mean,
+				mean == 0 ? 0 : stdDev / mean));
+	}
+
+}
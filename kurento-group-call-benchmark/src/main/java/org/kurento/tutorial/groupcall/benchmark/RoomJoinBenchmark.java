@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.tutorial.groupcall.ContinuationFuture;
+import org.kurento.tutorial.groupcall.MediaServer;
+import org.kurento.tutorial.groupcall.NotificationDispatcher;
+import org.kurento.tutorial.groupcall.Room;
+import org.kurento.tutorial.groupcall.RoomMode;
+import org.kurento.tutorial.groupcall.SignalingStats;
+import org.kurento.tutorial.groupcall.UserSession;
+import org.kurento.tutorial.signaling.OutboundQueues;
+
+/**
+ * Fills rooms of increasing size against a {@link FakeKms} and reports, for
+ * each {@link RoomMode}, how many endpoints the room needs and how much
+ * signaling the last participant to join causes.
+ * <p>
+ * Signaling round trips are the client requests that a join triggers, as the
+ * browser client issues them: the {@code joinRoom} itself, the
+ * {@code receiveVideoFrom} requests of the newcomer and, in mesh mode, the
+ * {@code receiveVideoFrom} request every participant already in the room
+ * sends to get the newcomer's video.
+ *
+ * @since 6.0.0
+ */
+public class RoomJoinBenchmark {
+
+	private static final int[] ROOM_SIZES = { 2, 5, 10, 20, 30, 40, 50 };
+
+	static final String SDP_OFFER = "v=0\r\n"
+			+ "o=- 0 0 IN IP4 127.0.0.1\r\n" + "s=-\r\n" + "t=0 0\r\n"
+			+ "m=video 9 RTP/SAVPF 100\r\n" + "a=rtpmap:100 VP8/90000\r\n";
+
+	public static void main(String[] args) throws Exception {
+		System.out.println(String.format("%-6s %5s %10s %10s %14s %14s %12s",
+				"mode", "size", "webrtc", "hubports", "lastJoinEps",
+				"lastJoinRtts", "lastJoinMs"));
+
+		final OutboundQueues outboundQueues = new OutboundQueues();
+		final NotificationDispatcher dispatcher = new NotificationDispatcher(
+				outboundQueues);
+		try {
+			for (RoomMode mode : RoomMode.values()) {
+				for (int size : ROOM_SIZES) {
+					run(mode, size, dispatcher);
+				}
+			}
+		} finally {
+			dispatcher.shutdown();
+			outboundQueues.shutdown();
+		}
+	}
+
+	private static void run(RoomMode mode, int size,
+			NotificationDispatcher dispatcher) throws Exception {
+		final FakeKms kms = new FakeKms();
+		final MediaServer server = kms.createMediaServer("fake");
+		final ContinuationFuture<MediaPipeline> pipeline = new ContinuationFuture<>();
+		server.acquirePipeline(pipeline);
+
+		final Room room = new Room("bench-" + mode + "-" + size, server,
+				pipeline, mode, dispatcher, new SignalingStats());
+		room.start();
+		final List<UserSession> joined = new ArrayList<>(size);
+
+		int lastJoinEndpoints = 0;
+		int lastJoinRoundTrips = 0;
+		long lastJoinNanos = 0;
+
+		for (int i = 0; i < size; i++) {
+			final int endpointsBefore = endpoints(kms);
+			final long start = System.nanoTime();
+
+			final UserSession user = room.join("user" + i,
+					new FakeWebSocketSession("session" + i));
+			int roundTrips = 1;
+
+			user.receiveVideoFrom(user, SDP_OFFER).get(10, TimeUnit.SECONDS);
+			roundTrips++;
+
+			if (mode == RoomMode.MESH) {
+				for (UserSession other : joined) {
+					user.receiveVideoFrom(other, SDP_OFFER).get(10,
+							TimeUnit.SECONDS);
+					other.receiveVideoFrom(user, SDP_OFFER).get(10,
+							TimeUnit.SECONDS);
+					roundTrips += 2;
+				}
+			}
+			joined.add(user);
+			kms.awaitQuiescence();
+
+			lastJoinNanos = System.nanoTime() - start;
+			lastJoinEndpoints = endpoints(kms) - endpointsBefore;
+			lastJoinRoundTrips = roundTrips;
+		}
+
+		System.out.println(String.format(
+				"%-6s %5d %10d %10d %14d %14d %12.2f", mode, size,
+				kms.getCreated("WebRtcEndpoint"), kms.getCreated("HubPort"),
+				lastJoinEndpoints, lastJoinRoundTrips, lastJoinNanos / 1e6));
+
+		room.close();
+		server.shutdown();
+		kms.shutdown();
+	}
+
+	private static int endpoints(FakeKms kms) {
+		return kms.getCreated("WebRtcEndpoint") + kms.getCreated("HubPort");
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.kurento.client.IceCandidate;
+import org.kurento.tutorial.signaling.SignalingCodec;
+import org.kurento.tutorial.signaling.SignalingMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Compares the time and the memory it takes to decode the messages of the
+ * group call client with {@link SignalingCodec}, and by parsing them into a
+ * Gson {@link JsonObject} as the handlers used to do.
+ * <p>
+ * Both paths read every field the handler needs, so the Gson path also pays
+ * for building the candidates. The allocated bytes are only reported on JVMs
+ * that can measure them per thread. Usage:
+ * {@code SignalingCodecBenchmark [iterations]}, 100000 by default.
+ *
+ * @since 6.0.0
+ */
+public class SignalingCodecBenchmark {
+
+	private static final Gson gson = new Gson();
+
+	private static final String CANDIDATE = "{\"candidate\":\"candidate:1467250027 1 udp 2122260223 192.168.0.196 46243 typ host generation 0\",\"sdpMid\":\"video\",\"sdpMLineIndex\":1}";
+
+	private static volatile Object sink;
+
+	public static void main(String[] args) {
+		final int iterations = args.length > 0 ? Integer.parseInt(args[0])
+				: 100000;
+
+		final Map<String, String> payloads = new LinkedHashMap<>();
+		payloads.put("joinRoom",
+				"{\"id\":\"joinRoom\",\"name\":\"alice\",\"room\":\"room1\",\"mode\":\"mesh\"}");
+		payloads.put("receiveVideoFrom",
+				"{\"id\":\"receiveVideoFrom\",\"sender\":\"bob\",\"sdpOffer\":"
+						+ gson.toJson(browserOffer()) + "}");
+		payloads.put("onIceCandidate",
+				"{\"id\":\"onIceCandidate\",\"candidate\":" + CANDIDATE
+						+ ",\"name\":\"bob\"}");
+		final StringBuilder batch = new StringBuilder(
+				"{\"id\":\"onIceCandidates\",\"candidates\":[");
+		for (int i = 0; i < 8; i++) {
+			batch.append(i > 0 ? "," : "").append(CANDIDATE);
+		}
+		payloads.put("onIceCandidates", batch.append("],\"name\":\"bob\"}")
+				.toString());
+
+		System.out.println(String.format("%-18s %7s %12s %12s %12s %12s",
+				"message", "bytes", "gsonNs", "codecNs", "gsonBytes",
+				"codecBytes"));
+		for (Map.Entry<String, String> payload : payloads.entrySet()) {
+			final String json = payload.getValue();
+			// warm up both paths before measuring
+			measure(false, json, iterations);
+			measure(true, json, iterations);
+
+			final long[] tree = measure(false, json, iterations);
+			final long[] codec = measure(true, json, iterations);
+			System.out.println(String.format(
+					"%-18s %7d %12d %12d %12s %12s", payload.getKey(),
+					json.length(), tree[0], codec[0], bytes(tree[1]),
+					bytes(codec[1])));
+		}
+	}
+
+	/**
+	 * @return nanoseconds and allocated bytes per message, -1 if allocations
+	 *         cannot be measured
+	 */
+	private static long[] measure(boolean streaming, String json,
+			int iterations) {
+		final long allocatedBefore = allocatedBytes();
+		final long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink = streaming ? decode(json) : parseTree(json);
+		}
+		final long elapsed = System.nanoTime() - start;
+		final long allocatedAfter = allocatedBytes();
+		return new long[] {
+				elapsed / iterations,
+				allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore)
+						/ iterations };
+	}
+
+	private static Object decode(String json) {
+		final SignalingMessage message = SignalingCodec.decode(json);
+		message.getId();
+		message.getString("name");
+		message.getSdpOffer();
+		return message.getCandidates();
+	}
+
+	private static Object parseTree(String json) {
+		final JsonObject message = gson.fromJson(json, JsonObject.class);
+		message.get("id").getAsString();
+		if (message.has("name")) {
+			message.get("name").getAsString();
+		}
+		if (message.has("sdpOffer")) {
+			message.get("sdpOffer").getAsString();
+		}
+		Object result = message;
+		if (message.has("candidate")) {
+			result = toIceCandidate(message.getAsJsonObject("candidate"));
+		} else if (message.has("candidates")) {
+			for (JsonElement candidate : message.getAsJsonArray("candidates")) {
+				result = toIceCandidate(candidate.getAsJsonObject());
+			}
+		}
+		return result;
+	}
+
+	private static IceCandidate toIceCandidate(JsonObject candidate) {
+		return new IceCandidate(candidate.get("candidate").getAsString(),
+				candidate.get("sdpMid").getAsString(), candidate.get(
+						"sdpMLineIndex").getAsInt());
+	}
+
+	private static long allocatedBytes() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static String bytes(long value) {
+		return value < 0 ? "n/a" : String.valueOf(value);
+	}
+
+	/**
+	 * @return an offer the size of those sent by browsers, with audio, video
+	 *         and a data channel
+	 */
+	private static String browserOffer() {
+		final StringBuilder sdp = new StringBuilder();
+		sdp.append("v=0\r\n")
+				.append("o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n")
+				.append("s=-\r\n").append("t=0 0\r\n")
+				.append("a=group:BUNDLE audio video\r\n")
+				.append("a=msid-semantic: WMS lgsCFqt9kN2fVKw5wXF1ms6n\r\n");
+		final String[] media = { "audio", "video" };
+		for (int m = 0; m < media.length; m++) {
+			sdp.append("m=").append(media[m])
+					.append(" 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8 100 116\r\n")
+					.append("c=IN IP4 0.0.0.0\r\n")
+					.append("a=rtcp:9 IN IP4 0.0.0.0\r\n")
+					.append("a=ice-ufrag:RtNf5ng8nhFuVq2Y\r\n")
+					.append("a=ice-pwd:1f8W2VF7cQuwlVmL6fxzh+5y\r\n")
+					.append("a=fingerprint:sha-256 9C:72:D3:2E:1B:AD:01:F3:")
+					.append("4F:6D:8C:92:60:0B:87:4E:3C:12:B5:AA:93:6E:6F:")
+					.append("2D:A4:55:1C:0E:7F:3A:B2:9D\r\n")
+					.append("a=setup:actpass\r\n").append("a=mid:")
+					.append(media[m]).append("\r\n")
+					.append("a=extmap:3 http://www.webrtc.org/experiments/")
+					.append("rtp-hdrext/abs-send-time\r\n")
+					.append("a=sendrecv\r\n").append("a=rtcp-mux\r\n");
+			for (int pt = 0; pt < 8; pt++) {
+				sdp.append("a=rtpmap:").append(96 + pt)
+						.append(m == 0 ? " opus/48000/2\r\n" : " VP8/90000\r\n")
+						.append("a=rtcp-fb:").append(96 + pt)
+						.append(" nack pli\r\n").append("a=fmtp:")
+						.append(96 + pt)
+						.append(" minptime=10;useinbandfec=1\r\n");
+			}
+			sdp.append("a=ssrc:3735928559 cname:o3vH1YfLkKqLQ9Zd\r\n")
+					.append("a=ssrc:3735928559 msid:lgsCFqt9kN2fVKw5wXF1ms6n ")
+					.append("5d1f5c52-7fa0-4a6e-b3a4-5b7e0b1f3c2a\r\n");
+		}
+		return sdp.toString();
+	}
+
+}
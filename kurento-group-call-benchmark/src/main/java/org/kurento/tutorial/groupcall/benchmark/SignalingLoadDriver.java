@@ -0,0 +1,305 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall.benchmark;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.tutorial.groupcall.LatencyHistogram;
+import org.kurento.tutorial.groupcall.Metrics;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Drives the signaling of the group call server with thousands of virtual
+ * participants, over real websockets, while the media server is a
+ * {@link FakeKms} answering every request after a fixed latency.
+ * <p>
+ * Every participant joins its room, negotiates its own stream and those of
+ * the participants already there, as the browser does, negotiates the
+ * streams of those joining later, trickles a few candidates and finally
+ * leaves. The server runs in the same process, on a random port.
+ * <p>
+ * Reports the throughput of every message type sent, and for requests that
+ * get a response, {@code joinRoom} and {@code receiveVideoFrom}, the 50th
+ * and 99th percentiles of their latency. Usage:
+ * {@code SignalingLoadDriver [participants] [rooms] [latencyMillis]}, 2000
+ * participants in 200 rooms and 20 ms by default.
+ *
+ * @since 6.0.0
+ */
+public class SignalingLoadDriver {
+
+	private static final int JOINS_IN_FLIGHT = 50;
+	private static final int CANDIDATES = 3;
+	private static final long HOLD_MILLIS = 2000;
+	private static final long TIMEOUT_SECONDS = 120;
+
+	private static final String[] MESSAGE_TYPES = { "joinRoom",
+			"receiveVideoFrom", "onIceCandidate", "leaveRoom" };
+
+	private final Map<String, MessageStats> stats = new LinkedHashMap<>();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicInteger pendingAnswers = new AtomicInteger();
+
+	private SignalingLoadDriver() {
+		for (String type : MESSAGE_TYPES) {
+			stats.put(type, new MessageStats());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int participants = args.length > 0 ? Integer.parseInt(args[0])
+				: 2000;
+		final int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		final long latency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+		final FakeKms kms = new FakeKms(latency);
+		final ConfigurableApplicationContext context = start(kms);
+		try {
+			final int port = ((EmbeddedWebApplicationContext) context)
+					.getEmbeddedServletContainer().getPort();
+			new SignalingLoadDriver().run(new URI("ws://localhost:" + port
+					+ "/groupcall"), participants, rooms, latency, kms,
+					context.getBean(Metrics.class));
+		} finally {
+			context.close();
+			kms.shutdown();
+		}
+	}
+
+	private static ConfigurableApplicationContext start(final FakeKms kms) {
+		final SpringApplication application = new SpringApplication(
+				FakeKmsGroupCallApp.class);
+		final ApplicationContextInitializer<ConfigurableApplicationContext> registration = new ApplicationContextInitializer<ConfigurableApplicationContext>() {
+			@Override
+			public void initialize(ConfigurableApplicationContext context) {
+				context.getBeanFactory().registerSingleton("fakeKms", kms);
+			}
+		};
+		application.addInitializers(registration);
+		return application.run("--server.port=0");
+	}
+
+	private void run(URI uri, int participantCount, int roomCount,
+			long latency, FakeKms kms, Metrics metrics) throws Exception {
+		final StandardWebSocketClient client = new StandardWebSocketClient();
+		final List<VirtualParticipant> participants = new ArrayList<>();
+		final Semaphore joins = new Semaphore(JOINS_IN_FLIGHT);
+
+		final long start = System.nanoTime();
+		for (int i = 0; i < participantCount; i++) {
+			joins.acquire();
+			final VirtualParticipant participant = new VirtualParticipant(
+					"user" + i, "room" + (i % roomCount), joins);
+			participant.connect(client, uri);
+			participants.add(participant);
+		}
+		for (VirtualParticipant participant : participants) {
+			participant.awaitJoined();
+		}
+		awaitAnswers();
+
+		for (VirtualParticipant participant : participants) {
+			participant.sendCandidates();
+		}
+		Thread.sleep(HOLD_MILLIS);
+
+		for (VirtualParticipant participant : participants) {
+			participant.leave();
+		}
+		kms.awaitQuiescence();
+		final double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format(
+				"%d participants in %d rooms, KMS latency %d ms, %.1f s",
+				participantCount, roomCount, latency, seconds));
+		System.out.println(String.format("%-18s %10s %10s %8s %8s", "message",
+				"sent", "per second", "p50 ms", "p99 ms"));
+		for (Map.Entry<String, MessageStats> entry : stats.entrySet()) {
+			final MessageStats message = entry.getValue();
+			final LatencyHistogram latencies = message.latency;
+			System.out.println(String.format("%-18s %10d %10.0f %8s %8s",
+					entry.getKey(), message.sent.get(), message.sent.get()
+							/ seconds, latencies.getCount() == 0 ? "-"
+							: latencies.getPercentile(50),
+					latencies.getCount() == 0 ? "-" : latencies
+							.getPercentile(99)));
+		}
+		System.out.println("Messages received: " + received.get()
+				+ ", unanswered offers: " + pendingAnswers.get()
+				+ ", candidate events fired: " + kms.getEvents()
+				+ ", objects left on the media server: "
+				+ kms.getLiveObjects());
+		System.out.println("Server metrics: " + metrics.snapshot());
+	}
+
+	private void awaitAnswers() throws InterruptedException {
+		final long deadline = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+		while (pendingAnswers.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+	}
+
+	private static class MessageStats {
+		final AtomicLong sent = new AtomicLong();
+		final LatencyHistogram latency = new LatencyHistogram();
+	}
+
+	/**
+	 * A browser in a room, as seen by the signaling server.
+	 */
+	private class VirtualParticipant extends TextWebSocketHandler {
+
+		private final String name;
+		private final String room;
+		private final Semaphore joins;
+		private final CountDownLatch joined = new CountDownLatch(1);
+		private final ConcurrentMap<String, Long> offers = new ConcurrentHashMap<>();
+		private volatile WebSocketSession session;
+		private volatile long joinStart;
+
+		VirtualParticipant(String name, String room, Semaphore joins) {
+			this.name = name;
+			this.room = room;
+			this.joins = joins;
+		}
+
+		void connect(StandardWebSocketClient client, URI uri)
+				throws Exception {
+			session = client.doHandshake(this, null, uri).get(
+					TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			final JsonObject message = new JsonObject();
+			message.addProperty("id", "joinRoom");
+			message.addProperty("name", name);
+			message.addProperty("room", room);
+			joinStart = System.nanoTime();
+			send("joinRoom", message);
+		}
+
+		void awaitJoined() throws InterruptedException {
+			if (!joined.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				throw new IllegalStateException(name + " could not join "
+						+ room);
+			}
+		}
+
+		@Override
+		protected void handleTextMessage(WebSocketSession session,
+				TextMessage message) throws Exception {
+			received.incrementAndGet();
+			final JsonObject json = new JsonParser().parse(
+					message.getPayload()).getAsJsonObject();
+			switch (json.get("id").getAsString()) {
+			case "existingParticipants":
+				stats.get("joinRoom").latency.recordSince(joinStart);
+				offer(name);
+				for (JsonElement existing : json.getAsJsonArray("data")) {
+					offer(existing.getAsString());
+				}
+				joined.countDown();
+				joins.release();
+				break;
+			case "participantsDelta":
+				for (JsonElement newcomer : json.getAsJsonArray("joined")) {
+					if (!newcomer.getAsString().equals(name)) {
+						offer(newcomer.getAsString());
+					}
+				}
+				break;
+			case "receiveVideoAnswer":
+				final Long start = offers.remove(json.get("name")
+						.getAsString());
+				if (start != null) {
+					pendingAnswers.decrementAndGet();
+					stats.get("receiveVideoFrom").latency.recordSince(start);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void offer(String sender) throws IOException {
+			if (offers.putIfAbsent(sender, System.nanoTime()) != null) {
+				return;
+			}
+			pendingAnswers.incrementAndGet();
+			final JsonObject message = new JsonObject();
+			message.addProperty("id", "receiveVideoFrom");
+			message.addProperty("sender", sender);
+			message.addProperty("sdpOffer", RoomJoinBenchmark.SDP_OFFER);
+			send("receiveVideoFrom", message);
+		}
+
+		void sendCandidates() throws IOException {
+			for (int i = 0; i < CANDIDATES; i++) {
+				final JsonObject candidate = new JsonObject();
+				candidate.addProperty("candidate", "candidate:" + i
+						+ " 1 UDP 2013266431 127.0.0.1 " + (40000 + i)
+						+ " typ host");
+				candidate.addProperty("sdpMid", "video");
+				candidate.addProperty("sdpMLineIndex", 0);
+				final JsonObject message = new JsonObject();
+				message.addProperty("id", "onIceCandidate");
+				message.addProperty("name", name);
+				message.add("candidate", candidate);
+				send("onIceCandidate", message);
+			}
+		}
+
+		void leave() throws IOException {
+			final JsonObject message = new JsonObject();
+			message.addProperty("id", "leaveRoom");
+			send("leaveRoom", message);
+			session.close();
+		}
+
+		/**
+		 * Sends are serialized, as the websocket session does not allow
+		 * concurrent writes.
+		 */
+		private void send(String type, JsonObject message) throws IOException {
+			synchronized (this) {
+				session.sendMessage(new TextMessage(message.toString()));
+			}
+			stats.get(type).sent.incrementAndGet();
+		}
+	}
+
+}
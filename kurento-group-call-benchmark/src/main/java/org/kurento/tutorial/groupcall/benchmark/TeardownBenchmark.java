@@ -0,0 +1,118 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.tutorial.groupcall.ContinuationFuture;
+import org.kurento.tutorial.groupcall.MediaServer;
+import org.kurento.tutorial.groupcall.NotificationDispatcher;
+import org.kurento.tutorial.groupcall.Room;
+import org.kurento.tutorial.groupcall.RoomMode;
+import org.kurento.tutorial.groupcall.SignalingStats;
+import org.kurento.tutorial.groupcall.UserSession;
+import org.kurento.tutorial.signaling.OutboundQueues;
+
+/**
+ * Measures how long closing a full mesh room takes until every media object
+ * has been released, when every request to the media server takes a fixed
+ * latency, and checks that nothing is left behind on the media server.
+ * <p>
+ * Usage: {@code TeardownBenchmark [latencyMillis]}, 20 ms by default. The
+ * number of releases in flight is set through
+ * {@code groupcall.release.concurrency}.
+ *
+ * @since 6.0.0
+ */
+public class TeardownBenchmark {
+
+	private static final int[] ROOM_SIZES = { 2, 5, 10, 20, 30 };
+
+	public static void main(String[] args) throws Exception {
+		final long latency = args.length > 0 ? Long.parseLong(args[0]) : 20;
+		final OutboundQueues outboundQueues = new OutboundQueues();
+		final NotificationDispatcher dispatcher = new NotificationDispatcher(
+				outboundQueues);
+
+		System.out.println("KMS latency per call: " + latency + " ms");
+		System.out.println(String.format("%5s %10s %12s %10s %10s", "size",
+				"objects", "teardownMs", "leftover", "retried"));
+		boolean leaked = false;
+		try {
+			for (int size : ROOM_SIZES) {
+				leaked |= !run(size, latency, dispatcher);
+			}
+		} finally {
+			dispatcher.shutdown();
+			outboundQueues.shutdown();
+		}
+		if (leaked) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return whether every object was released
+	 */
+	private static boolean run(int size, long latency,
+			NotificationDispatcher dispatcher) throws Exception {
+		final FakeKms kms = new FakeKms(latency);
+		final MediaServer server = kms.createMediaServer("fake");
+		final ContinuationFuture<MediaPipeline> pipeline = new ContinuationFuture<>();
+		server.acquirePipeline(pipeline);
+		final Room room = new Room("teardown-" + size, server, pipeline,
+				RoomMode.MESH, dispatcher, new SignalingStats());
+
+		final List<UserSession> users = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			final UserSession user = room.join("user" + i,
+					new FakeWebSocketSession("session" + i));
+			final List<ContinuationFuture<String>> answers = new ArrayList<>();
+			answers.add(user.receiveVideoFrom(user,
+					RoomJoinBenchmark.SDP_OFFER));
+			for (UserSession other : users) {
+				answers.add(user.receiveVideoFrom(other,
+						RoomJoinBenchmark.SDP_OFFER));
+				answers.add(other.receiveVideoFrom(user,
+						RoomJoinBenchmark.SDP_OFFER));
+			}
+			for (ContinuationFuture<String> answer : answers) {
+				answer.get(60, TimeUnit.SECONDS);
+			}
+			users.add(user);
+		}
+		kms.awaitQuiescence();
+		final int objects = kms.getLiveObjects();
+
+		final long start = System.nanoTime();
+		room.release().get(60, TimeUnit.SECONDS);
+		final long teardownMillis = TimeUnit.NANOSECONDS.toMillis(System
+				.nanoTime() - start);
+		kms.awaitQuiescence();
+		final int leftover = kms.getLiveObjects();
+
+		System.out.println(String.format("%5d %10d %12d %10d %10s", size,
+				objects, teardownMillis, leftover, server.getReleaser()
+						.snapshot().get("retried")));
+
+		server.shutdown();
+		kms.shutdown();
+		return leftover == 0;
+	}
+
+}
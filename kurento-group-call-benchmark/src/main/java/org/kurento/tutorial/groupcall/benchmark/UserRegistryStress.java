@@ -0,0 +1,316 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.tutorial.groupcall.ContinuationFuture;
+import org.kurento.tutorial.groupcall.MediaServer;
+import org.kurento.tutorial.groupcall.NotificationDispatcher;
+import org.kurento.tutorial.groupcall.Room;
+import org.kurento.tutorial.groupcall.RoomMode;
+import org.kurento.tutorial.groupcall.SignalingStats;
+import org.kurento.tutorial.groupcall.UserRegistry;
+import org.kurento.tutorial.groupcall.UserSession;
+import org.kurento.tutorial.signaling.OutboundQueues;
+
+/**
+ * Registers and removes simulated sessions from many threads at once while
+ * other threads read the {@link UserRegistry}, and checks that its indexes
+ * stay consistent with each other.
+ * <p>
+ * One user out of ten reconnects with a second session under the same name,
+ * so registrations also replace each other. Once the churn is over, every
+ * session is registered at the same time, the indexes are cross-checked, and
+ * every session is removed again. Usage:
+ * {@code UserRegistryStress [sessions] [threads] [rounds]}, 10000 sessions,
+ * 8 threads and 20 rounds by default. Exits with 1 if a check fails.
+ *
+ * @since 6.0.0
+ */
+public class UserRegistryStress {
+
+	private static final int ROOMS = 100;
+	private static final int READERS = 2;
+
+	public static void main(String[] args) throws Exception {
+		final int sessions = args.length > 0 ? Integer.parseInt(args[0])
+				: 10000;
+		final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		final FakeKms kms = new FakeKms();
+		final MediaServer server = kms.createMediaServer("fake");
+		final OutboundQueues outboundQueues = new OutboundQueues();
+		final NotificationDispatcher dispatcher = new NotificationDispatcher(
+				outboundQueues);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads
+				+ READERS);
+		try {
+			final List<UserSession> users = createUsers(sessions, server,
+					dispatcher);
+			final UserRegistry registry = new UserRegistry();
+			final List<String> failures = new ArrayList<>();
+
+			final long start = System.nanoTime();
+			final long operations = churn(registry, users, threads, rounds,
+					executor, failures);
+			final long elapsed = System.nanoTime() - start;
+			System.out.println(String.format(
+					"%d sessions, %d threads: %d operations in %d ms, %d ops/s",
+					users.size(), threads, operations, elapsed / 1000000,
+					operations * 1000000000L / Math.max(1, elapsed)));
+
+			checkEmpty(registry, failures);
+			registerAll(registry, users, threads, executor);
+			checkIndexes(registry, users, failures);
+			removeAll(registry, users, threads, executor);
+			checkEmpty(registry, failures);
+
+			for (String failure : failures) {
+				System.out.println("FAILED: " + failure);
+			}
+			System.out.println(failures.isEmpty() ? "OK" : failures.size()
+					+ " checks failed");
+			if (!failures.isEmpty()) {
+				System.exit(1);
+			}
+		} finally {
+			executor.shutdownNow();
+			dispatcher.shutdown();
+			outboundQueues.shutdown();
+			server.shutdown();
+			kms.shutdown();
+		}
+	}
+
+	/**
+	 * @return one user per session, spread over {@link #ROOMS} rooms. Every
+	 *         tenth user is followed by another session with the same name
+	 */
+	private static List<UserSession> createUsers(int sessions,
+			MediaServer server, NotificationDispatcher dispatcher) {
+		final SignalingStats stats = new SignalingStats();
+		final Room[] rooms = new Room[ROOMS];
+		for (int i = 0; i < ROOMS; i++) {
+			final ContinuationFuture<MediaPipeline> pipeline = new ContinuationFuture<>();
+			server.acquirePipeline(pipeline);
+			rooms[i] = new Room("room" + i, server, pipeline, RoomMode.MESH,
+					dispatcher, stats);
+		}
+
+		final List<UserSession> users = new ArrayList<>(sessions);
+		for (int i = 0; users.size() < sessions; i++) {
+			final Room room = rooms[i % ROOMS];
+			users.add(new UserSession("user" + i, room,
+					new FakeWebSocketSession("session" + i)));
+			if (i % 10 == 0 && users.size() < sessions) {
+				users.add(new UserSession("user" + i, room,
+						new FakeWebSocketSession("session" + i + "-again")));
+			}
+		}
+		return users;
+	}
+
+	private static long churn(final UserRegistry registry,
+			final List<UserSession> users, int threads, final int rounds,
+			ExecutorService executor, final List<String> failures)
+			throws Exception {
+		final AtomicLong operations = new AtomicLong();
+		final AtomicBoolean running = new AtomicBoolean(true);
+
+		final List<Future<?>> readers = new ArrayList<>();
+		for (int r = 0; r < READERS; r++) {
+			readers.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					final Random random = new Random();
+					while (running.get()) {
+						final String roomName = "room" + random.nextInt(ROOMS);
+						for (UserSession user : registry.getByRoom(roomName)) {
+							if (!user.getRoomName().equals(roomName)) {
+								fail(failures, user.getName()
+										+ " listed in " + roomName);
+							}
+						}
+						operations.incrementAndGet();
+					}
+					return null;
+				}
+			}));
+		}
+
+		final List<Future<?>> writers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final List<UserSession> shard = shard(users, t, threads);
+			writers.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int round = 0; round < rounds; round++) {
+						for (UserSession user : shard) {
+							registry.register(user);
+							final UserSession found = registry
+									.getBySession(user.getSession());
+							// a reconnection may have replaced it already
+							if (found != null && found != user) {
+								fail(failures, user.getSession().getId()
+										+ " resolves to another user");
+							}
+						}
+						for (UserSession user : shard) {
+							final UserSession removed = registry
+									.removeBySession(user.getSession());
+							if (removed != null && removed != user) {
+								fail(failures, user.getSession().getId()
+										+ " removed another user");
+							}
+						}
+						operations.addAndGet(shard.size() * 2);
+					}
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> writer : writers) {
+				writer.get();
+			}
+		} finally {
+			running.set(false);
+		}
+		for (Future<?> reader : readers) {
+			reader.get();
+		}
+		return operations.get();
+	}
+
+	private static void registerAll(final UserRegistry registry,
+			List<UserSession> users, int threads, ExecutorService executor)
+			throws Exception {
+		final List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final List<UserSession> shard = shard(users, t, threads);
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (UserSession user : shard) {
+						registry.register(user);
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+	}
+
+	private static void removeAll(final UserRegistry registry,
+			List<UserSession> users, int threads, ExecutorService executor)
+			throws Exception {
+		final List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final List<UserSession> shard = shard(users, t, threads);
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (UserSession user : shard) {
+						registry.removeBySession(user.getSession());
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+	}
+
+	/**
+	 * Every name has to resolve to a user that its session and its room also
+	 * resolve to, and nothing else may be registered.
+	 */
+	private static void checkIndexes(UserRegistry registry,
+			List<UserSession> users, List<String> failures) {
+		int names = 0;
+		for (UserSession user : users) {
+			final UserSession byName = registry.getByName(user.getName());
+			if (byName == null) {
+				fail(failures, user.getName() + " not registered");
+				continue;
+			}
+			if (byName != user) {
+				// replaced by the other session with the same name
+				if (registry.getBySession(user.getSession()) != null) {
+					fail(failures, user.getSession().getId()
+							+ " still registered after being replaced");
+				}
+				continue;
+			}
+			names++;
+			if (registry.getBySession(user.getSession()) != user) {
+				fail(failures, user.getName() + " not found by session");
+			}
+			if (!registry.getByRoom(user.getRoomName()).contains(user)) {
+				fail(failures, user.getName() + " not found in its room");
+			}
+		}
+
+		int listed = 0;
+		for (int i = 0; i < ROOMS; i++) {
+			listed += registry.getByRoom("room" + i).size();
+		}
+		if (registry.size() != names || listed != names) {
+			fail(failures, names + " names, " + registry.size()
+					+ " sessions and " + listed + " room entries");
+		}
+	}
+
+	private static void checkEmpty(UserRegistry registry,
+			List<String> failures) {
+		if (registry.size() != 0) {
+			fail(failures, registry.size() + " sessions left");
+		}
+		for (int i = 0; i < ROOMS; i++) {
+			if (!registry.getByRoom("room" + i).isEmpty()) {
+				fail(failures, "room" + i + " not empty");
+			}
+		}
+	}
+
+	private static List<UserSession> shard(List<UserSession> users, int index,
+			int count) {
+		final List<UserSession> shard = new ArrayList<>();
+		for (int i = index; i < users.size(); i += count) {
+			shard.add(users.get(i));
+		}
+		return shard;
+	}
+
+	private static void fail(List<String> failures, String failure) {
+		synchronized (failures) {
+			failures.add(failure);
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Audio activity of the participants of a room. Levels can be reported from
+ * any thread without locking: each report only raises the peak of the
+ * current period. Once per period, {@link #rank()} folds the peaks into a
+ * moving average and orders the participants by it.
+ * <p>
+ * Participants already ranked among the leaders get a small advantage, so
+ * that two speakers with similar levels do not keep swapping places.
+ *
+ * @since 6.0.0
+ */
+class ActiveSpeakers {
+
+	static final String SLOTS_PROPERTY = "groupcall.speakers.slots";
+	static final String INTERVAL_PROPERTY = "groupcall.speakers.interval.ms";
+
+	/** Weight of the past in the moving average, per period */
+	private static final double DECAY = 0.5;
+	private static final double HYSTERESIS = 0.05;
+
+	private final ConcurrentMap<String, Score> scores = new ConcurrentHashMap<>();
+	private final AtomicLong joined = new AtomicLong();
+	private final int leaders;
+
+	/** Only accessed by the thread calling {@link #rank()} */
+	private Set<String> currentLeaders = Collections.emptySet();
+
+	/**
+	 * @param leaders
+	 *            number of participants favoured when they are already
+	 *            ranked first
+	 */
+	ActiveSpeakers(int leaders) {
+		this.leaders = leaders;
+	}
+
+	void add(String name) {
+		scores.putIfAbsent(name, new Score(joined.incrementAndGet()));
+	}
+
+	void remove(String name) {
+		scores.remove(name);
+	}
+
+	/**
+	 * @param level
+	 *            between 0 (silence) and 1
+	 */
+	void report(String name, double level) {
+		final Score score = scores.get(name);
+		if (score == null) {
+			return;
+		}
+		final double clamped = Math.max(0, Math.min(1, level));
+		final long bits = Double.doubleToLongBits(clamped);
+		long peak;
+		while (clamped > Double.longBitsToDouble(peak = score.peak.get())
+				&& !score.peak.compareAndSet(peak, bits)) {
+		}
+	}
+
+	/**
+	 * Closes the current period. Must be called from a single thread.
+	 *
+	 * @return the names of all the participants, most active first. Silent
+	 *         participants are ordered by arrival
+	 */
+	List<String> rank() {
+		final List<Ranked> ranked = new ArrayList<>(scores.size());
+		for (Map.Entry<String, Score> entry : scores.entrySet()) {
+			final Score score = entry.getValue();
+			final double peak = Double.longBitsToDouble(score.peak
+					.getAndSet(0));
+			score.average = score.average * DECAY + peak * (1 - DECAY);
+			final double bonus = currentLeaders.contains(entry.getKey())
+					? HYSTERESIS : 0;
+			ranked.add(new Ranked(entry.getKey(), score.average + bonus,
+					score.seq));
+		}
+		Collections.sort(ranked, BY_ACTIVITY);
+
+		final List<String> names = new ArrayList<>(ranked.size());
+		for (Ranked entry : ranked) {
+			names.add(entry.name);
+		}
+		currentLeaders = new HashSet<>(names.subList(0,
+				Math.min(leaders, names.size())));
+		return names;
+	}
+
+	private static final Comparator<Ranked> BY_ACTIVITY = new Comparator<Ranked>() {
+		@Override
+		public int compare(Ranked a, Ranked b) {
+			final int byActivity = Double.compare(b.activity, a.activity);
+			return byActivity != 0 ? byActivity : Long.compare(a.seq, b.seq);
+		}
+	};
+
+	private static class Score {
+		final long seq;
+		final AtomicLong peak = new AtomicLong(Double.doubleToLongBits(0));
+		double average;
+
+		Score(long seq) {
+			this.seq = seq;
+		}
+	}
+
+	private static class Ranked {
+		final String name;
+		final double activity;
+		final long seq;
+
+		Ranked(String name, double activity, long seq) {
+			this.name = name;
+			this.activity = activity;
+			this.seq = seq;
+		}
+	}
+
+}
@@ -0,0 +1,551 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Decides whether a participant can join a room, so that a single crowded
+ * room cannot exhaust the media server it is placed on. Capacity is counted
+ * in endpoints, as given by {@link RoomMode#getEndpoints(int, int)}, both per
+ * room and per media server. Rooms reserve the endpoints of the participants
+ * being admitted, and charge them to an atomic counter of their media server,
+ * so no lock is shared by the rooms.
+ * <p>
+ * A join that does not fit waits in the first come, first served queue of
+ * its room, and is admitted as soon as others leave. Every room queue has its
+ * own lock, and rooms are created outside of it. A waiter never overtakes an
+ * earlier one for the same room, nor, once a media server is full, an earlier
+ * one for another room of that media server, so a large room cannot be
+ * starved by small ones. When the queues hold too many joins the join is
+ * rejected.
+ * <p>
+ * Waiting participants are sent {@code queued}, with their position in the
+ * queue of their room, and rejected ones {@code roomFull}, with the limit
+ * that was hit.
+ *
+ * @since 6.0.0
+ */
+public class Admission {
+
+	private static final Logger log = LoggerFactory.getLogger(Admission.class);
+
+	static final String ROOM_LIMIT_PROPERTY = "groupcall.room.max.endpoints";
+	static final String SERVER_LIMIT_PROPERTY = "groupcall.kms.max.endpoints";
+	static final String QUEUE_PROPERTY = "groupcall.admission.queue";
+
+	/**
+	 * Outcome of a join request.
+	 */
+	public enum Result {
+		ADMITTED, QUEUED, REJECTED
+	}
+
+	enum Limit {
+		NONE, ROOM, SERVER
+	}
+
+	private static class Waiter {
+		final String roomName;
+		final RoomMode mode;
+		final String userName;
+		final WebSocketSession session;
+		final long since = System.nanoTime();
+		Limit limit = Limit.NONE;
+
+		Waiter(String roomName, RoomMode mode, String userName,
+				WebSocketSession session) {
+			this.roomName = roomName;
+			this.mode = mode;
+			this.userName = userName;
+			this.session = session;
+		}
+	}
+
+	/**
+	 * The joins waiting for a room, in the order they came. Removed from the
+	 * queues once empty.
+	 */
+	private static class RoomQueue {
+		final String roomName;
+		// Guarded by this
+		final LinkedList<Waiter> waiting = new LinkedList<>();
+		boolean removed;
+		// The media server the first waiter is blocked on, if any
+		MediaServer blockedOn;
+
+		RoomQueue(String roomName) {
+			this.roomName = roomName;
+		}
+	}
+
+	private final RoomManager manager;
+	private final OutboundQueues outboundQueues;
+	private final int roomLimit;
+	private final int serverLimit;
+	private final int queueLimit;
+
+	private final ConcurrentMap<String, RoomQueue> queues = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Waiter> bySession = new ConcurrentHashMap<>();
+	private final AtomicInteger waitingCount = new AtomicInteger();
+	// Since when the first waiter of every blocked room has been waiting, by
+	// media server
+	private final ConcurrentMap<MediaServer, ConcurrentMap<String, Long>> blocked = new ConcurrentHashMap<>();
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final LatencyHistogram waitTime = new LatencyHistogram();
+
+	/**
+	 * Configured through {@code groupcall.room.max.endpoints} and
+	 * {@code groupcall.kms.max.endpoints}, both unlimited unless set, and
+	 * {@code groupcall.admission.queue} (100).
+	 */
+	public Admission(RoomManager manager, OutboundQueues outboundQueues) {
+		this(manager, outboundQueues, Integer.getInteger(ROOM_LIMIT_PROPERTY,
+				0), Integer.getInteger(SERVER_LIMIT_PROPERTY, 0), Integer
+				.getInteger(QUEUE_PROPERTY, 100));
+	}
+
+	/**
+	 * @param roomLimit
+	 *            endpoints a room may use, or 0 for no limit
+	 * @param serverLimit
+	 *            endpoints the rooms of a media server may use together, or
+	 *            0 for no limit
+	 * @param queueLimit
+	 *            joins that may wait. With 0, joins that do not fit are
+	 *            rejected right away
+	 */
+	public Admission(RoomManager manager, OutboundQueues outboundQueues,
+			int roomLimit, int serverLimit, int queueLimit) {
+		this.manager = manager;
+		this.outboundQueues = outboundQueues;
+		this.roomLimit = roomLimit;
+		this.serverLimit = serverLimit;
+		this.queueLimit = queueLimit;
+	}
+
+	/**
+	 * Joins a participant to a room if it fits, or queues it otherwise.
+	 *
+	 * @param mode
+	 *            the mode used if the room has to be created
+	 * @return whether the participant joined, waits or was turned away
+	 */
+	public Result request(String roomName, RoomMode mode, String userName,
+			WebSocketSession session) {
+		cancel(session);
+		final Waiter waiter = new Waiter(roomName, mode, userName, session);
+		final Room room = manager.getRoom(roomName, mode);
+		final List<Waiter> admitting = new ArrayList<>();
+		Result result = null;
+		while (result == null) {
+			final RoomQueue queue = queueFor(roomName);
+			synchronized (queue) {
+				if (queue.removed) {
+					continue;
+				}
+				add(queue, waiter, false);
+				reserveInOrder(queue, room, admitting);
+				if (admitting.contains(waiter)) {
+					result = Result.ADMITTED;
+				} else if (waitingCount.get() <= queueLimit) {
+					result = Result.QUEUED;
+					// Sent before the lock is released, so that it cannot
+					// arrive after the participant is let in
+					final int position = queue.waiting.indexOf(waiter) + 1;
+					log.info("PARTICIPANT {}: waiting to join room {} at {}",
+							userName, roomName, position);
+					final JsonObject queuedMsg = new JsonObject();
+					queuedMsg.addProperty("id", "queued");
+					queuedMsg.addProperty("room", roomName);
+					queuedMsg.addProperty("position", position);
+					send(session, queuedMsg);
+				} else {
+					// Blocked behind the first waiter, by the same limit
+					waiter.limit = queue.waiting.peek().limit;
+					remove(queue, waiter);
+					result = Result.REJECTED;
+				}
+				removeIfEmpty(queue);
+			}
+		}
+
+		if (result == Result.QUEUED) {
+			queued.incrementAndGet();
+		} else if (result == Result.REJECTED) {
+			rejected.incrementAndGet();
+			discardIfUnused(roomName);
+			log.info("PARTICIPANT {}: room {} is full", userName, roomName);
+			final JsonObject fullMsg = new JsonObject();
+			fullMsg.addProperty("id", "roomFull");
+			fullMsg.addProperty("room", roomName);
+			fullMsg.addProperty("limit",
+					waiter.limit == Limit.SERVER ? "server" : "room");
+			send(session, fullMsg);
+		}
+		if (join(room, admitting)) {
+			admitWaiting();
+		}
+		return result;
+	}
+
+	/**
+	 * Admits the waiters that fit now, in the order they came. To be called
+	 * whenever participants leave or rooms are moved between media servers.
+	 * Rooms are visited until none admits anybody, as admitting the first
+	 * waiter of a media server may unblock the other rooms of that server.
+	 */
+	public void admitWaiting() {
+		boolean admittedAny = true;
+		while (admittedAny) {
+			admittedAny = false;
+			for (RoomQueue queue : queues.values()) {
+				admittedAny |= admitFrom(queue);
+			}
+		}
+	}
+
+	/**
+	 * @return whether a waiter was admitted, or put back to be placed again
+	 */
+	private boolean admitFrom(RoomQueue queue) {
+		final Waiter first;
+		synchronized (queue) {
+			first = queue.waiting.peek();
+			if (first == null) {
+				return false;
+			}
+		}
+		// May create the room, so not under the lock of the queue
+		final Room room = manager.getRoom(first.roomName, first.mode);
+		final List<Waiter> admitting = new ArrayList<>();
+		final boolean removed;
+		synchronized (queue) {
+			reserveInOrder(queue, room, admitting);
+			removeIfEmpty(queue);
+			removed = queue.removed;
+		}
+		if (admitting.isEmpty()) {
+			if (removed) {
+				discardIfUnused(queue.roomName);
+			}
+			return false;
+		}
+		join(room, admitting);
+		return true;
+	}
+
+	/**
+	 * Drops the waiter of a session that went away or gave up.
+	 *
+	 * @return whether the session was waiting
+	 */
+	public boolean cancel(WebSocketSession session) {
+		final Waiter waiter = bySession.get(session.getId());
+		if (waiter == null) {
+			return false;
+		}
+		final RoomQueue queue = queues.get(waiter.roomName);
+		if (queue == null) {
+			return false;
+		}
+		synchronized (queue) {
+			if (!remove(queue, waiter)) {
+				return false;
+			}
+			// Set again by the next visit if the new first waiter is blocked
+			unblock(queue);
+			removeIfEmpty(queue);
+		}
+		discardIfUnused(waiter.roomName);
+		return true;
+	}
+
+	private RoomQueue queueFor(String roomName) {
+		RoomQueue queue = queues.get(roomName);
+		if (queue == null) {
+			final RoomQueue newQueue = new RoomQueue(roomName);
+			queue = queues.putIfAbsent(roomName, newQueue);
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		return queue;
+	}
+
+	// Called with the lock of the queue held
+	private void add(RoomQueue queue, Waiter waiter, boolean first) {
+		if (first) {
+			queue.waiting.addFirst(waiter);
+		} else {
+			queue.waiting.add(waiter);
+		}
+		waitingCount.incrementAndGet();
+		bySession.put(waiter.session.getId(), waiter);
+	}
+
+	// Called with the lock of the queue held
+	private boolean remove(RoomQueue queue, Waiter waiter) {
+		if (!queue.waiting.remove(waiter)) {
+			return false;
+		}
+		forget(waiter);
+		return true;
+	}
+
+	private void forget(Waiter waiter) {
+		waitingCount.decrementAndGet();
+		bySession.remove(waiter.session.getId(), waiter);
+	}
+
+	// Called with the lock of the queue held
+	private void removeIfEmpty(RoomQueue queue) {
+		if (queue.waiting.isEmpty()) {
+			unblock(queue);
+			queue.removed = true;
+			queues.remove(queue.roomName, queue);
+		}
+	}
+
+	/**
+	 * Reserves room for the waiters of a queue that fit, in order, up to the
+	 * first one that does not. Called with the lock of the queue held.
+	 */
+	private void reserveInOrder(RoomQueue queue, Room room,
+			List<Waiter> admitting) {
+		for (Iterator<Waiter> it = queue.waiting.iterator(); it.hasNext();) {
+			final Waiter waiter = it.next();
+			if (!waiter.session.isOpen()) {
+				it.remove();
+				forget(waiter);
+				continue;
+			}
+			waiter.limit = reserve(room, waiter);
+			if (waiter.limit != Limit.NONE) {
+				break;
+			}
+			it.remove();
+			forget(waiter);
+			admitting.add(waiter);
+		}
+		unblock(queue);
+		final Waiter first = queue.waiting.peek();
+		if (first != null && first.limit == Limit.SERVER) {
+			queue.blockedOn = room.getMediaServer();
+			blockedOn(queue.blockedOn).put(queue.roomName, first.since);
+		}
+	}
+
+	private Limit reserve(Room room, Waiter waiter) {
+		if (serverLimit > 0 && waitsBehind(room.getMediaServer(), waiter)) {
+			return Limit.SERVER;
+		}
+		return room.reserve(roomLimit, serverLimit);
+	}
+
+	/**
+	 * @return whether a waiter for another room of the media server has been
+	 *         blocked since before the waiter came
+	 */
+	private boolean waitsBehind(MediaServer server, Waiter waiter) {
+		final ConcurrentMap<String, Long> rooms = blocked.get(server);
+		if (rooms == null) {
+			return false;
+		}
+		for (Map.Entry<String, Long> room : rooms.entrySet()) {
+			if (!room.getKey().equals(waiter.roomName)
+					&& room.getValue() < waiter.since) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private ConcurrentMap<String, Long> blockedOn(MediaServer server) {
+		ConcurrentMap<String, Long> rooms = blocked.get(server);
+		if (rooms == null) {
+			final ConcurrentMap<String, Long> newRooms = new ConcurrentHashMap<>();
+			rooms = blocked.putIfAbsent(server, newRooms);
+			if (rooms == null) {
+				rooms = newRooms;
+			}
+		}
+		return rooms;
+	}
+
+	// Called with the lock of the queue held
+	private void unblock(RoomQueue queue) {
+		if (queue.blockedOn != null) {
+			blockedOn(queue.blockedOn).remove(queue.roomName);
+			queue.blockedOn = null;
+		}
+	}
+
+	/**
+	 * Removes a room left empty, unless participants are being admitted to it
+	 * or wait for it. A room already replaced by a migration is only kept for
+	 * the participants being admitted to it. A join that reserves a room
+	 * removed meanwhile finds it closed, and places its room again.
+	 *
+	 * @return whether the room was removed
+	 */
+	boolean removeIfUnused(Room room) {
+		if (manager.findRoom(room.getName()) == room) {
+			return discardIfUnused(room.getName());
+		}
+		if (!room.getParticipants().isEmpty() || room.hasReservations()) {
+			return false;
+		}
+		return manager.removeRoom(room);
+	}
+
+	/**
+	 * Removes a room created for waiters that are all gone.
+	 */
+	private boolean discardIfUnused(String roomName) {
+		final Room room = manager.findRoom(roomName);
+		if (room == null || !room.getParticipants().isEmpty()
+				|| room.hasReservations() || queues.containsKey(roomName)) {
+			return false;
+		}
+		return manager.removeRoom(room);
+	}
+
+	/**
+	 * Joins the admitted waiters, ending their reservations.
+	 *
+	 * @return whether a waiter found its room closed and was put back in its
+	 *         queue, to be placed again
+	 */
+	private boolean join(Room room, List<Waiter> admitting) {
+		boolean replaced = false;
+		for (Waiter waiter : admitting) {
+			boolean joined = false;
+			try {
+				manager.admit(room, waiter.userName, waiter.session);
+				joined = true;
+				admitted.incrementAndGet();
+				waitTime.recordSince(waiter.since);
+			} catch (RoomClosedException e) {
+				log.info("PARTICIPANT {}: room {} closed, placing it again",
+						waiter.userName, waiter.roomName);
+				requeue(waiter);
+				replaced = true;
+			} catch (Exception e) {
+				log.warn("PARTICIPANT {}: could not join room {}",
+						waiter.userName, waiter.roomName, e);
+			} finally {
+				room.reservationDone();
+				if (!joined && room.getParticipants().isEmpty()) {
+					removeIfUnused(room);
+				}
+			}
+		}
+		return replaced;
+	}
+
+	/**
+	 * Puts a waiter back first in the queue of its room. The closed room is
+	 * no longer mapped, so a new one is created for it.
+	 */
+	private void requeue(Waiter waiter) {
+		while (true) {
+			final RoomQueue queue = queueFor(waiter.roomName);
+			synchronized (queue) {
+				if (!queue.removed) {
+					add(queue, waiter, true);
+					return;
+				}
+			}
+		}
+	}
+
+	private void send(WebSocketSession session, JsonObject message) {
+		outboundQueues.get(session).send(new TextMessage(message.toString()));
+	}
+
+	/**
+	 * @return number of participants waiting to join
+	 */
+	public int getWaiting() {
+		return waitingCount.get();
+	}
+
+	/**
+	 * Exports the admissions, queued and rejected joins, the waiting queue
+	 * and the time spent in it.
+	 */
+	public void bindTo(Metrics metrics) {
+		metrics.gauge("groupcall.admission.admitted", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				return admitted.get();
+			}
+		});
+		metrics.gauge("groupcall.admission.queued", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				return queued.get();
+			}
+		});
+		metrics.gauge("groupcall.admission.rejected", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				return rejected.get();
+			}
+		});
+		metrics.gauge("groupcall.admission.waiting", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				return getWaiting();
+			}
+		});
+		metrics.timer("groupcall.admission.wait", waitTime);
+	}
+
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("roomLimit", roomLimit);
+		snapshot.put("serverLimit", serverLimit);
+		snapshot.put("queueLimit", queueLimit);
+		snapshot.put("waiting", getWaiting());
+		snapshot.put("admitted", admitted.get());
+		snapshot.put("queued", queued.get());
+		snapshot.put("rejected", rejected.get());
+		snapshot.put("waitTime", waitTime.snapshot());
+		return snapshot;
+	}
+
+}
@@ -14,21 +14,23 @@
  */
 package org.kurento.tutorial.groupcall;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.kurento.client.IceCandidate;
+import org.kurento.tutorial.signaling.Layer;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.kurento.tutorial.signaling.SignalingCodec;
+import org.kurento.tutorial.signaling.SignalingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-
 /**
  * 
  * @author Ivan Gracia (izanmail@gmail.com)
@@ -39,7 +41,11 @@ public class CallHandler extends TextWebSocketHandler {
 	private static final Logger log = LoggerFactory
 			.getLogger(CallHandler.class);
 
-	private static final Gson gson = new GsonBuilder().create();
+	/**
+	 * Whether participants receive the other senders at the layer that fits
+	 * the bandwidth they report
+	 */
+	static final String LAYERS_PROPERTY = "groupcall.layers";
 
 	@Autowired
 	private RoomManager roomManager;
@@ -47,43 +53,88 @@ public class CallHandler extends TextWebSocketHandler {
 	@Autowired
 	private UserRegistry registry;
 
+	@Autowired
+	private OutboundQueues outboundQueues;
+
 	@Override
 	public void handleTextMessage(WebSocketSession session, TextMessage message)
 			throws Exception {
-		final JsonObject jsonMessage = gson.fromJson(message.getPayload(),
-				JsonObject.class);
+		final SignalingMessage jsonMessage = SignalingCodec.decode(message
+				.getPayload());
 
 		final UserSession user = registry.getBySession(session);
 
 		if (user != null) {
+			user.touch();
 			log.debug("Incoming message from user '{}': {}", user.getName(),
 					jsonMessage);
 		} else {
 			log.debug("Incoming message from new user: {}", jsonMessage);
 		}
 
-		switch (jsonMessage.get("id").getAsString()) {
+		switch (jsonMessage.getId()) {
 		case "joinRoom":
 			joinRoom(jsonMessage, session);
 			break;
 		case "receiveVideoFrom":
-			final String senderName = jsonMessage.get("sender").getAsString();
+			final String senderName = jsonMessage.getString("sender");
 			final UserSession sender = registry.getByName(senderName);
-			final String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
-			user.receiveVideoFrom(sender, sdpOffer);
+			final String sdpOffer = jsonMessage.getSdpOffer();
+			// Offers for a room that has just been drained are stale
+			if (user != null && sender != null
+					&& user.getRoom().reaches(sender)) {
+				user.receiveVideoFrom(sender, sdpOffer);
+			}
+			break;
+		case "subscribe":
+			if (user != null) {
+				user.subscribe(getSenders(user,
+						jsonMessage.getStrings("senders")));
+			}
+			break;
+		case "unsubscribe":
+			if (user != null) {
+				user.unsubscribe(getSenders(user,
+						jsonMessage.getStrings("senders")));
+			}
+			break;
+		case "bandwidth":
+			if (user != null && Layer.isEnabled(LAYERS_PROPERTY)) {
+				user.selectLayer(Layer.forBandwidth(jsonMessage.getInt("kbps")),
+						user.getRoom().getParticipants());
+			}
+			break;
+		case "receiveSlot":
+			if (user != null) {
+				user.receiveSlot(jsonMessage.getInt("slot"),
+						jsonMessage.getSdpOffer());
+			}
+			break;
+		case "audioLevel":
+			if (user != null) {
+				user.getRoom().reportAudioLevel(user.getName(),
+						jsonMessage.getDouble("level"));
+			}
 			break;
 		case "leaveRoom":
-			leaveRoom(user);
+			if (user != null) {
+				roomManager.leave(user);
+			} else {
+				roomManager.cancelJoin(session);
+			}
 			break;
 		case "onIceCandidate":
-			JsonObject candidate = jsonMessage.get("candidate")
-					.getAsJsonObject();
-
-			if (user != null) {
-				IceCandidate cand = new IceCandidate(candidate.get("candidate")
-						.getAsString(), candidate.get("sdpMid").getAsString(),
-						candidate.get("sdpMLineIndex").getAsInt());
-				user.addCandidate(cand, jsonMessage.get("name").getAsString());
+		case "onIceCandidates":
+			if (user != null && jsonMessage.has("slot")) {
+				final int slot = jsonMessage.getInt("slot");
+				for (IceCandidate cand : jsonMessage.getCandidates()) {
+					user.addSlotCandidate(cand, slot);
+				}
+			} else if (user != null) {
+				final String name = jsonMessage.getString("name");
+				for (IceCandidate cand : jsonMessage.getCandidates()) {
+					user.addCandidate(cand, name);
+				}
 			}
 			break;
 		default:
@@ -91,29 +142,50 @@ public class CallHandler extends TextWebSocketHandler {
 		}
 	}
 
+	@Override
+	protected void handlePongMessage(WebSocketSession session,
+			PongMessage message) {
+		final UserSession user = registry.getBySession(session);
+		if (user != null) {
+			user.touch();
+		}
+	}
+
 	@Override
 	public void afterConnectionClosed(WebSocketSession session,
 			CloseStatus status) throws Exception {
-		UserSession user = registry.removeBySession(session);
-		roomManager.getRoom(user.getRoomName()).leave(user);
+		final UserSession user = registry.removeBySession(session);
+		if (user != null) {
+			roomManager.leave(user);
+		} else {
+			roomManager.cancelJoin(session);
+		}
+		outboundQueues.remove(session);
 	}
 
-	private void joinRoom(JsonObject params, WebSocketSession session)
-			throws IOException {
-		final String roomName = params.get("room").getAsString();
-		final String name = params.get("name").getAsString();
+	private void joinRoom(SignalingMessage params, WebSocketSession session) {
+		final String roomName = params.getString("room");
+		final String name = params.getString("name");
+		final RoomMode mode = params.has("mode") ? RoomMode.parse(
+				params.getString("mode"), RoomMode.getDefault())
+				: RoomMode.getDefault();
 		log.info("PARTICIPANT {}: trying to join room {}", name, roomName);
 
-		Room room = roomManager.getRoom(roomName);
-		final UserSession user = room.join(name, session);
-		registry.register(user);
+		roomManager.join(roomName, mode, name, session);
 	}
 
-	private void leaveRoom(UserSession user) throws IOException {
-		final Room room = roomManager.getRoom(user.getRoomName());
-		room.leave(user);
-		if (room.getParticipants().isEmpty()) {
-			roomManager.removeRoom(room);
+	/**
+	 * @return the registered users with the given names that the room of the
+	 *         user reaches
+	 */
+	private List<UserSession> getSenders(UserSession user, List<String> names) {
+		final List<UserSession> senders = new ArrayList<>(names.size());
+		for (String name : names) {
+			final UserSession sender = registry.getByName(name);
+			if (sender != null && user.getRoom().reaches(sender)) {
+				senders.add(sender);
+			}
 		}
+		return senders;
 	}
 }
@@ -0,0 +1,71 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Places each room on the media server its name hashes to, so that a room
+ * always lands on the same server as long as the list of servers does not
+ * change. Each server owns several points of the hash ring, which evens out
+ * the share of rooms it gets.
+ *
+ * @since 6.0.0
+ */
+public class ConsistentHashPlacement implements PlacementPolicy {
+
+	private static final int POINTS_PER_SERVER = 100;
+
+	private final NavigableMap<Long, MediaServer> ring = new TreeMap<>();
+
+	public ConsistentHashPlacement(List<MediaServer> servers) {
+		for (MediaServer server : servers) {
+			for (int i = 0; i < POINTS_PER_SERVER; i++) {
+				ring.put(hash(server.getUri() + "#" + i), server);
+			}
+		}
+	}
+
+	@Override
+	public MediaServer select(String roomName) {
+		Entry<Long, MediaServer> entry = ring.ceilingEntry(hash(roomName));
+		if (entry == null) {
+			entry = ring.firstEntry();
+		}
+		return entry.getValue();
+	}
+
+	private static long hash(String key) {
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(
+					key.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+
+}
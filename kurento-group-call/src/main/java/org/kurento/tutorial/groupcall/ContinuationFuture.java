@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.kurento.client.Continuation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Result of an asynchronous Kurento operation. It can be passed wherever the
+ * client API expects a {@link Continuation}, and lets any number of
+ * continuations be chained to it, before or after the operation completes.
+ *
+ * @param <T>
+ *            type of the result
+ * @since 6.0.0
+ */
+public class ContinuationFuture<T> implements Continuation<T> {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ContinuationFuture.class);
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private List<Continuation<? super T>> continuations = new ArrayList<>();
+	private T result;
+	private Throwable error;
+
+	/**
+	 * @param value
+	 *            the result
+	 * @return a future that has already succeeded with the given value
+	 */
+	public static <T> ContinuationFuture<T> completed(T value) {
+		final ContinuationFuture<T> future = new ContinuationFuture<>();
+		future.onSuccess(value);
+		return future;
+	}
+
+	/**
+	 * @param futures
+	 *            the operations to wait for
+	 * @return a future that completes once all the operations have finished.
+	 *         It fails with the first error, if any of them failed
+	 */
+	public static ContinuationFuture<Void> all(
+			Collection<? extends ContinuationFuture<?>> futures) {
+		final ContinuationFuture<Void> all = new ContinuationFuture<>();
+		if (futures.isEmpty()) {
+			all.onSuccess(null);
+			return all;
+		}
+		final AtomicInteger pending = new AtomicInteger(futures.size());
+		final AtomicReference<Throwable> firstError = new AtomicReference<>();
+		for (ContinuationFuture<?> future : futures) {
+			future.then(new Continuation<Object>() {
+				@Override
+				public void onSuccess(Object result) {
+					finished();
+				}
+
+				@Override
+				public void onError(Throwable cause) {
+					firstError.compareAndSet(null, cause);
+					finished();
+				}
+
+				private void finished() {
+					if (pending.decrementAndGet() == 0) {
+						if (firstError.get() == null) {
+							all.onSuccess(null);
+						} else {
+							all.onError(firstError.get());
+						}
+					}
+				}
+			});
+		}
+		return all;
+	}
+
+	@Override
+	public void onSuccess(T result) {
+		complete(result, null);
+	}
+
+	@Override
+	public void onError(Throwable cause) {
+		complete(null, cause);
+	}
+
+	private void complete(T result, Throwable error) {
+		final List<Continuation<? super T>> pending;
+		synchronized (this) {
+			if (continuations == null) {
+				return;
+			}
+			this.result = result;
+			this.error = error;
+			pending = continuations;
+			continuations = null;
+		}
+		done.countDown();
+		for (Continuation<? super T> continuation : pending) {
+			notify(continuation);
+		}
+	}
+
+	/**
+	 * Invokes the continuation once this future completes, or right away in
+	 * the calling thread if it has already completed.
+	 *
+	 * @param continuation
+	 *            the continuation
+	 */
+	public void then(Continuation<? super T> continuation) {
+		synchronized (this) {
+			if (continuations != null) {
+				continuations.add(continuation);
+				return;
+			}
+		}
+		notify(continuation);
+	}
+
+	private void notify(Continuation<? super T> continuation) {
+		try {
+			if (error == null) {
+				continuation.onSuccess(result);
+			} else {
+				continuation.onError(error);
+			}
+		} catch (Exception e) {
+			log.warn("Exception while running continuation", e);
+		}
+	}
+
+	/**
+	 * @return whether the operation has finished, successfully or not
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits for the operation to finish.
+	 *
+	 * @return the result of the operation
+	 * @throws ExecutionException
+	 *             if the operation failed
+	 * @throws TimeoutException
+	 *             if the operation did not finish in time
+	 */
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		if (error != null) {
+			throw new ExecutionException(error);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Moves rooms to new pipelines, so that a media server can be taken out of
+ * service without ending the calls. The progress is reported under
+ * {@code /stats/migrations}.
+ *
+ * @since 6.0.0
+ */
+@RestController
+public class DrainController {
+
+	@Autowired
+	private RoomManager roomManager;
+
+	@Autowired
+	private RoomPlacement roomPlacement;
+
+	@RequestMapping(value = "/rooms/{name}/drain", method = RequestMethod.POST)
+	public ResponseEntity<Map<String, Object>> drainRoom(
+			@PathVariable("name") String name) {
+		final RoomMigration migration = roomManager.drain(name);
+		if (migration == null) {
+			return new ResponseEntity<Map<String, Object>>(
+					HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<Map<String, Object>>(migration.snapshot(),
+				HttpStatus.ACCEPTED);
+	}
+
+	@RequestMapping(value = "/servers/drain", method = RequestMethod.POST)
+	public ResponseEntity<List<Map<String, Object>>> drainServer(
+			@RequestParam("uri") String uri) {
+		final MediaServer server = roomPlacement.getServer(uri);
+		if (server == null) {
+			return new ResponseEntity<List<Map<String, Object>>>(
+					HttpStatus.NOT_FOUND);
+		}
+		final List<Map<String, Object>> migrations = new ArrayList<>();
+		for (RoomMigration migration : roomManager.drainServer(server)) {
+			migrations.add(migration.snapshot());
+		}
+		return new ResponseEntity<List<Map<String, Object>>>(migrations,
+				HttpStatus.ACCEPTED);
+	}
+
+}
@@ -14,7 +14,7 @@
  */
 package org.kurento.tutorial.groupcall;
 
-import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -24,6 +24,8 @@ import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
 /**
+ * Group call demo (main). The {@code kms.ws.uri} system property accepts a
+ * comma separated list of media servers, rooms being spread among them.
  * 
  * @author Ivan Gracia (izanmail@gmail.com)
  * @since 4.3.1
@@ -41,21 +43,64 @@ public class GroupCallApp implements WebSocketConfigurer {
 	}
 
 	@Bean
-	public RoomManager roomManager() {
-		return new RoomManager();
+	public OutboundQueues outboundQueues() {
+		return new OutboundQueues();
 	}
 
 	@Bean
-	public CallHandler groupCallHandler() {
-		return new CallHandler();
+	public NotificationDispatcher notificationDispatcher() {
+		return new NotificationDispatcher(outboundQueues());
 	}
 
 	@Bean
-	public KurentoClient kurentoClient() {
-		return KurentoClient.create(System.getProperty("kms.ws.uri",
+	public SignalingStats signalingStats() {
+		return new SignalingStats();
+	}
+
+	/**
+	 * @return the metrics of the whole application, exported under
+	 *         {@code /stats/metrics}
+	 */
+	@Bean
+	public Metrics metrics() {
+		final Metrics metrics = new Metrics();
+		signalingStats().bindTo(metrics);
+		roomPlacement().bindTo(metrics);
+		outboundQueues().setListener(new OutboundMetrics(metrics));
+		return metrics;
+	}
+
+	@Bean
+	public Reaper reaper() {
+		return new Reaper();
+	}
+
+	@Bean
+	public StatsController statsController() {
+		return new StatsController();
+	}
+
+	@Bean
+	public DrainController drainController() {
+		return new DrainController();
+	}
+
+	@Bean
+	public RoomPlacement roomPlacement() {
+		return RoomPlacement.connect(System.getProperty("kms.ws.uri",
 				DEFAULT_KMS_WS_URI));
 	}
 
+	@Bean
+	public RoomManager roomManager() {
+		return new RoomManager();
+	}
+
+	@Bean
+	public CallHandler groupCallHandler() {
+		return new CallHandler();
+	}
+
 	public static void main(String[] args) throws Exception {
 		SpringApplication.run(GroupCallApp.class, args);
 	}
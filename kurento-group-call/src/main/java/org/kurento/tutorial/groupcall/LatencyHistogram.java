@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, with fixed buckets in milliseconds.
+ *
+ * @since 6.0.0
+ */
+public class LatencyHistogram {
+
+	private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200,
+			500, 1000, 2000, 5000, 10000 };
+
+	private final AtomicLongArray buckets = new AtomicLongArray(
+			BOUNDS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMillis = new AtomicLong();
+	private final AtomicLong maxMillis = new AtomicLong();
+
+	/**
+	 * @param startNanos
+	 *            the value of {@link System#nanoTime()} when the measured
+	 *            operation started
+	 */
+	public void recordSince(long startNanos) {
+		record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+	}
+
+	public void record(long millis) {
+		int bucket = 0;
+		while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+			bucket++;
+		}
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalMillis.addAndGet(millis);
+
+		long max;
+		while (millis > (max = maxMillis.get())
+				&& !maxMillis.compareAndSet(max, millis)) {
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return upper bound of the bucket that contains the percentile, or the
+	 *         maximum recorded latency if it falls in the last bucket
+	 */
+	public long getPercentile(double percentile) {
+		final long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return BOUNDS[i];
+			}
+		}
+		return maxMillis.get();
+	}
+
+	/**
+	 * @return count, mean, max, some percentiles and the bucket counts, keyed
+	 *         by their upper bound
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		final long total = count.get();
+		snapshot.put("count", total);
+		snapshot.put("meanMs", total == 0 ? 0 : totalMillis.get() / total);
+		snapshot.put("maxMs", maxMillis.get());
+		snapshot.put("p50Ms", getPercentile(50));
+		snapshot.put("p90Ms", getPercentile(90));
+		snapshot.put("p99Ms", getPercentile(99));
+
+		final Map<String, Long> histogram = new LinkedHashMap<>();
+		for (int i = 0; i < BOUNDS.length; i++) {
+			histogram.put("le" + BOUNDS[i], buckets.get(i));
+		}
+		histogram.put("inf", buckets.get(BOUNDS.length));
+		snapshot.put("buckets", histogram);
+		return snapshot;
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.FilterType;
+import org.kurento.client.GStreamerFilter;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.tutorial.signaling.Layer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The layers of the stream of a sender. The filter of a layer is created the
+ * first time a participant receives that layer, and it is fed by the outgoing
+ * endpoint of the sender until the sender leaves.
+ *
+ * @since 6.0.0
+ */
+class LayeredSource {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(LayeredSource.class);
+
+	private final String senderName;
+	private final ContinuationFuture<MediaPipeline> pipeline;
+	private final ContinuationFuture<WebRtcEndpoint> outgoing;
+	private final ConcurrentMap<Layer, ContinuationFuture<GStreamerFilter>> filters = new ConcurrentHashMap<>();
+
+	LayeredSource(String senderName,
+			ContinuationFuture<MediaPipeline> pipeline,
+			ContinuationFuture<WebRtcEndpoint> outgoing) {
+		this.senderName = senderName;
+		this.pipeline = pipeline;
+		this.outgoing = outgoing;
+	}
+
+	/**
+	 * @return the element a participant receiving the layer has to be
+	 *         connected to
+	 */
+	ContinuationFuture<? extends MediaElement> get(Layer layer) {
+		if (layer.isSource()) {
+			return outgoing;
+		}
+		ContinuationFuture<GStreamerFilter> filter = filters.get(layer);
+		if (filter == null) {
+			final ContinuationFuture<GStreamerFilter> newFilter = new ContinuationFuture<>();
+			filter = filters.putIfAbsent(layer, newFilter);
+			if (filter == null) {
+				createFilter(layer, newFilter);
+				filter = newFilter;
+			}
+		}
+		return filter;
+	}
+
+	private void createFilter(final Layer layer,
+			final ContinuationFuture<GStreamerFilter> filter) {
+		log.debug("SENDER {}: creating {} layer", senderName, layer);
+		pipeline.then(new Continuation<MediaPipeline>() {
+			@Override
+			public void onSuccess(MediaPipeline result) {
+				new GStreamerFilter.Builder(result, layer.getFilterCommand())
+						.withFilterType(FilterType.VIDEO).buildAsync(filter);
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				filter.onError(cause);
+			}
+		});
+		outgoing.then(new Continuation<WebRtcEndpoint>() {
+			@Override
+			public void onSuccess(final WebRtcEndpoint endpoint) {
+				filter.then(new Continuation<GStreamerFilter>() {
+					@Override
+					public void onSuccess(GStreamerFilter result) {
+						endpoint.connect(result, LayeredSource.this
+								.<Void> logErrors("feed " + layer + " layer"));
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+						log.warn("SENDER {}: Could not create {} layer",
+								senderName, layer, cause);
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+			}
+		});
+	}
+
+	/**
+	 * Releases the filters of every layer.
+	 *
+	 * @return completes once all of them have been released
+	 */
+	ContinuationFuture<Void> release(MediaReleaser releaser) {
+		final List<ContinuationFuture<Void>> releases = new ArrayList<>();
+		for (Layer layer : Layer.values()) {
+			final ContinuationFuture<GStreamerFilter> filter = filters
+					.remove(layer);
+			if (filter != null) {
+				releases.add(releaser.release(filter, layer + " layer of "
+						+ senderName));
+			}
+		}
+		return ContinuationFuture.all(releases);
+	}
+
+	private <T> Continuation<T> logErrors(final String operation) {
+		return new Continuation<T>() {
+			@Override
+			public void onSuccess(T result) {
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				log.warn("SENDER {}: Could not {}", senderName, operation,
+						cause);
+			}
+		};
+	}
+
+}
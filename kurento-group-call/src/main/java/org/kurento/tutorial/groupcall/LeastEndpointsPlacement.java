@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.List;
+
+/**
+ * Places rooms on the media server with the fewest live endpoints. Ties are
+ * broken by the number of rooms, so that empty rooms are also spread.
+ *
+ * @since 6.0.0
+ */
+public class LeastEndpointsPlacement implements PlacementPolicy {
+
+	private final List<MediaServer> servers;
+
+	public LeastEndpointsPlacement(List<MediaServer> servers) {
+		this.servers = servers;
+	}
+
+	@Override
+	public MediaServer select(String roomName) {
+		MediaServer selected = null;
+		for (MediaServer server : servers) {
+			if (selected == null
+					|| server.getEndpoints() < selected.getEndpoints()
+					|| (server.getEndpoints() == selected.getEndpoints() && server
+							.getRooms() < selected.getRooms())) {
+				selected = server;
+			}
+		}
+		return selected;
+	}
+
+}
@@ -0,0 +1,348 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaObject;
+import org.kurento.client.internal.server.KurentoServerException;
+import org.kurento.commons.exception.KurentoException;
+import org.kurento.jsonrpc.JsonRpcErrorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Releases the media objects of a media server, with a bounded number of
+ * releases in flight. Releases that fail or get no response in time are
+ * retried a few times before being given up on. An attempt that got no
+ * response in time still counts as in flight until the media server answers
+ * it, so retries never exceed the bound.
+ * <p>
+ * The objects whose release is outstanding, and those given up on, are
+ * counted: a growing number of either means objects are leaking on the media
+ * server.
+ *
+ * @since 6.0.0
+ */
+public class MediaReleaser {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MediaReleaser.class);
+
+	static final String CONCURRENCY_PROPERTY = "groupcall.release.concurrency";
+	static final String TIMEOUT_PROPERTY = "groupcall.release.timeout.ms";
+	static final String RETRIES_PROPERTY = "groupcall.release.retries";
+
+	/**
+	 * Error code of the media server for an object that does not exist, which
+	 * is what a retry gets if a previous attempt did succeed.
+	 */
+	private static final int OBJECT_NOT_FOUND = 40101;
+
+	private final int concurrency;
+	private final long timeoutMillis;
+	private final int retries;
+
+	private final Queue<Release> waiting = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger outstanding = new AtomicInteger();
+	// Attempts given up on by timeout that still wait for their response
+	private final AtomicInteger lingering = new AtomicInteger();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong leaked = new AtomicLong();
+	private final LatencyHistogram releaseTime = new LatencyHistogram();
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor();
+	private final Runnable startWaiting = new Runnable() {
+		@Override
+		public void run() {
+			startWaiting();
+		}
+	};
+
+	/**
+	 * Configured through {@code groupcall.release.concurrency} (16),
+	 * {@code groupcall.release.timeout.ms} (5000) and
+	 * {@code groupcall.release.retries} (2).
+	 */
+	public MediaReleaser() {
+		this(Integer.getInteger(CONCURRENCY_PROPERTY, 16), Long.getLong(
+				TIMEOUT_PROPERTY, 5000), Integer
+				.getInteger(RETRIES_PROPERTY, 2));
+	}
+
+	/**
+	 * @param concurrency
+	 *            maximum number of releases in flight
+	 * @param timeoutMillis
+	 *            how long an attempt is waited for before it is retried
+	 * @param retries
+	 *            number of attempts after the first one
+	 */
+	public MediaReleaser(int concurrency, long timeoutMillis, int retries) {
+		this.concurrency = Math.max(1, concurrency);
+		this.timeoutMillis = timeoutMillis;
+		this.retries = retries;
+	}
+
+	/**
+	 * Releases an object once it has been created. Nothing is released if its
+	 * creation failed.
+	 *
+	 * @param object
+	 *            the object being created
+	 * @param description
+	 *            what the object is, for the logs
+	 * @return completes once the object has been released, or fails if it
+	 *         could not be
+	 */
+	public ContinuationFuture<Void> release(
+			ContinuationFuture<? extends MediaObject> object,
+			final String description) {
+		final ContinuationFuture<Void> done = new ContinuationFuture<>();
+		object.then(new Continuation<MediaObject>() {
+			@Override
+			public void onSuccess(MediaObject result) {
+				submit(new Release(result, description, done));
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				done.onSuccess(null);
+			}
+		});
+		return done;
+	}
+
+	/**
+	 * @see #release(ContinuationFuture, String)
+	 */
+	public ContinuationFuture<Void> release(MediaObject object,
+			String description) {
+		final ContinuationFuture<Void> done = new ContinuationFuture<>();
+		submit(new Release(object, description, done));
+		return done;
+	}
+
+	private void submit(Release release) {
+		outstanding.incrementAndGet();
+		waiting.add(release);
+		startWaiting();
+	}
+
+	private void startWaiting() {
+		while (!waiting.isEmpty()) {
+			final int current = running.get();
+			if (current >= concurrency) {
+				return;
+			}
+			if (!running.compareAndSet(current, current + 1)) {
+				continue;
+			}
+			final Release release = waiting.poll();
+			if (release == null) {
+				running.decrementAndGet();
+			} else {
+				release.attempt();
+			}
+		}
+	}
+
+	/**
+	 * Frees the slot of an attempt once its call has returned. The next
+	 * releases are started from the timer, as attempts that fail right away
+	 * finish within {@link #startWaiting()}.
+	 */
+	private void attemptFinished() {
+		running.decrementAndGet();
+		try {
+			timer.execute(startWaiting);
+		} catch (RejectedExecutionException e) {
+			// Shut down, nothing else is started
+		}
+	}
+
+	/**
+	 * @return releases outstanding, completed, retried and given up on, and
+	 *         how long releases take
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("outstanding", outstanding.get());
+		snapshot.put("inFlight", running.get());
+		snapshot.put("lingering", lingering.get());
+		snapshot.put("released", released.get());
+		snapshot.put("retried", retried.get());
+		snapshot.put("leaked", leaked.get());
+		snapshot.put("releaseTime", releaseTime.snapshot());
+		return snapshot;
+	}
+
+	/**
+	 * @return number of objects whose release has been requested and has not
+	 *         finished yet
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * @return number of objects given up on
+	 */
+	public long getLeaked() {
+		return leaked.get();
+	}
+
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	private static boolean isNotFound(Throwable cause) {
+		if (cause instanceof KurentoServerException) {
+			return ((KurentoServerException) cause).getCode()
+					== OBJECT_NOT_FOUND;
+		}
+		return cause instanceof JsonRpcErrorException
+				&& ((JsonRpcErrorException) cause).getCode()
+						== OBJECT_NOT_FOUND;
+	}
+
+	private class Release {
+
+		private final MediaObject object;
+		private final String description;
+		private final ContinuationFuture<Void> done;
+		private final long start = System.nanoTime();
+		private int attempts;
+
+		Release(MediaObject object, String description,
+				ContinuationFuture<Void> done) {
+			this.object = object;
+			this.description = description;
+			this.done = done;
+		}
+
+		void attempt() {
+			attempts++;
+			// Whichever comes first, the response or the timeout, settles
+			// the attempt. Only the response frees its slot
+			final AtomicBoolean settled = new AtomicBoolean();
+			final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					// Counted first, so that a response losing the race
+					// always finds it counted
+					lingering.incrementAndGet();
+					if (settled.compareAndSet(false, true)) {
+						failed(new TimeoutException("No response in "
+								+ timeoutMillis + " ms"));
+					} else {
+						lingering.decrementAndGet();
+					}
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+
+			try {
+				object.release(new Continuation<Void>() {
+					@Override
+					public void onSuccess(Void result) {
+						if (responded(settled, timeout)) {
+							succeeded();
+						}
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+						if (responded(settled, timeout)) {
+							if (attempts > 1 && isNotFound(cause)) {
+								succeeded();
+							} else {
+								failed(cause);
+							}
+						}
+					}
+				});
+			} catch (KurentoException e) {
+				if (responded(settled, timeout)) {
+					failed(e);
+				}
+			}
+		}
+
+		/**
+		 * Frees the slot of the attempt.
+		 *
+		 * @return false if the timeout settled the attempt already
+		 */
+		private boolean responded(AtomicBoolean settled,
+				ScheduledFuture<?> timeout) {
+			attemptFinished();
+			if (settled.compareAndSet(false, true)) {
+				timeout.cancel(false);
+				return true;
+			}
+			lingering.decrementAndGet();
+			return false;
+		}
+
+		private void succeeded() {
+			outstanding.decrementAndGet();
+			released.incrementAndGet();
+			releaseTime.recordSince(start);
+			log.trace("Released {}", description);
+			done.onSuccess(null);
+		}
+
+		private void failed(Throwable cause) {
+			if (attempts <= retries) {
+				retried.incrementAndGet();
+				log.debug("Could not release {}, retrying", description,
+						cause);
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						waiting.add(Release.this);
+						startWaiting();
+					}
+				}, backoffMillis(), TimeUnit.MILLISECONDS);
+				return;
+			}
+			outstanding.decrementAndGet();
+			leaked.incrementAndGet();
+			log.warn("Could not release {} after {} attempts", description,
+					attempts, cause);
+			done.onError(cause);
+		}
+
+		private long backoffMillis() {
+			return 100L << Math.min(attempts - 1, 6);
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+
+/**
+ * A Kurento Media Server rooms can be placed on, together with the load the
+ * application has put on it.
+ *
+ * @since 6.0.0
+ */
+public class MediaServer {
+
+	private final String uri;
+	private final KurentoClient kurento;
+	private final PipelinePool pipelinePool;
+	private final MediaReleaser releaser = new MediaReleaser();
+
+	private final AtomicInteger endpoints = new AtomicInteger();
+	private final AtomicInteger chargedEndpoints = new AtomicInteger();
+	private final AtomicInteger rooms = new AtomicInteger();
+	private volatile boolean draining;
+
+	/**
+	 * Connects to a media server, with a pipeline pool of the size configured
+	 * through {@code groupcall.pipeline.pool.size}.
+	 *
+	 * @param uri
+	 *            websocket URI of the media server
+	 */
+	public static MediaServer connect(String uri) {
+		return new MediaServer(uri, KurentoClient.create(uri),
+				Integer.getInteger(PipelinePool.SIZE_PROPERTY, 2));
+	}
+
+	/**
+	 * @param uri
+	 *            identifies the media server
+	 * @param kurento
+	 *            client connected to the media server
+	 * @param poolSize
+	 *            number of pipelines created in advance
+	 */
+	public MediaServer(String uri, KurentoClient kurento, int poolSize) {
+		this.uri = uri;
+		this.kurento = kurento;
+		this.pipelinePool = new PipelinePool(kurento, poolSize);
+		this.pipelinePool.init();
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public KurentoClient getKurentoClient() {
+		return kurento;
+	}
+
+	/**
+	 * Gets a pipeline on this media server.
+	 *
+	 * @param continuation
+	 *            receives the pipeline
+	 */
+	public void acquirePipeline(Continuation<MediaPipeline> continuation) {
+		pipelinePool.acquire(continuation);
+	}
+
+	/**
+	 * @return releases the media objects created on this media server
+	 */
+	public MediaReleaser getReleaser() {
+		return releaser;
+	}
+
+	/**
+	 * @return number of endpoints and hub ports currently created on this
+	 *         media server by the application
+	 */
+	public int getEndpoints() {
+		return endpoints.get();
+	}
+
+	/**
+	 * @return number of endpoints the rooms of this media server need for
+	 *         their participants and the participants being admitted, as
+	 *         charged by {@link Room}
+	 */
+	public int getChargedEndpoints() {
+		return chargedEndpoints.get();
+	}
+
+	/**
+	 * Adds to the endpoints charged to this media server.
+	 *
+	 * @param delta
+	 *            endpoints to add, or to take away if negative
+	 * @param limit
+	 *            endpoints that may be charged, or 0 for no limit. Taking
+	 *            endpoints away always succeeds
+	 * @return false if the limit would be exceeded, in which case nothing is
+	 *         charged
+	 */
+	boolean chargeEndpoints(int delta, int limit) {
+		while (true) {
+			final int current = chargedEndpoints.get();
+			if (delta > 0 && limit > 0 && current + delta > limit) {
+				return false;
+			}
+			if (chargedEndpoints.compareAndSet(current, current + delta)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return number of rooms placed on this media server
+	 */
+	public int getRooms() {
+		return rooms.get();
+	}
+
+	void endpointCreated() {
+		endpoints.incrementAndGet();
+	}
+
+	void endpointReleased() {
+		endpoints.decrementAndGet();
+	}
+
+	/**
+	 * Records a room placed on this media server. Rooms are counted apart from
+	 * their endpoints, as they are placed before any participant joins.
+	 */
+	public void roomCreated() {
+		rooms.incrementAndGet();
+	}
+
+	public void roomRemoved() {
+		rooms.decrementAndGet();
+	}
+
+	/**
+	 * @return whether the rooms of this media server are being moved away,
+	 *         in which case no new room is placed on it
+	 */
+	public boolean isDraining() {
+		return draining;
+	}
+
+	public void setDraining(boolean draining) {
+		this.draining = draining;
+	}
+
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("uri", uri);
+		snapshot.put("rooms", rooms.get());
+		snapshot.put("endpoints", endpoints.get());
+		snapshot.put("chargedEndpoints", chargedEndpoints.get());
+		snapshot.put("draining", draining);
+		snapshot.put("pipelines", pipelinePool.snapshot());
+		snapshot.put("releases", releaser.snapshot());
+		return snapshot;
+	}
+
+	public void shutdown() {
+		pipelinePool.shutdown();
+		releaser.shutdown();
+		kurento.destroy();
+	}
+
+	@Override
+	public String toString() {
+		return uri;
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application wide metrics, by name: counters that only go up, gauges read
+ * when the metrics are exported, and timers. Components register their own
+ * metrics through a {@code bindTo(Metrics)} method. Names are dotted and
+ * lower case, such as {@code groupcall.rooms}.
+ *
+ * @since 6.0.0
+ */
+public class Metrics {
+
+	/**
+	 * Current value of something the application keeps track of anyway.
+	 */
+	public interface Gauge {
+
+		/**
+		 * @return the value, called from the thread exporting the metrics
+		 */
+		Number value();
+
+	}
+
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<String, LatencyHistogram> timers = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @return the counter with that name, created on first use
+	 */
+	public AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			final AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return the timer with that name, created on first use
+	 */
+	public LatencyHistogram timer(String name) {
+		LatencyHistogram timer = timers.get(name);
+		if (timer == null) {
+			final LatencyHistogram newTimer = new LatencyHistogram();
+			timer = timers.putIfAbsent(name, newTimer);
+			if (timer == null) {
+				timer = newTimer;
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * Exports a histogram some component already records to.
+	 */
+	public void timer(String name, LatencyHistogram histogram) {
+		timers.put(name, histogram);
+	}
+
+	/**
+	 * Registers a gauge, replacing any previous one with the same name.
+	 */
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * @return the value of every counter and gauge, and the distribution of
+	 *         every timer, each group sorted by name
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> counterValues = new LinkedHashMap<>();
+		for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+			counterValues.put(counter.getKey(), counter.getValue().get());
+		}
+		final Map<String, Object> gaugeValues = new LinkedHashMap<>();
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			gaugeValues.put(gauge.getKey(), gauge.getValue().value());
+		}
+		final Map<String, Object> timerValues = new LinkedHashMap<>();
+		for (Map.Entry<String, LatencyHistogram> timer : timers.entrySet()) {
+			timerValues.put(timer.getKey(), timer.getValue().snapshot());
+		}
+
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("counters", counterValues);
+		snapshot.put("gauges", gaugeValues);
+		snapshot.put("timers", timerValues);
+		return snapshot;
+	}
+
+}
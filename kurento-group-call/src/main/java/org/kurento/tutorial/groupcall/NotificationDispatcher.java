@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.tutorial.signaling.OutboundQueue;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Shared by the {@link RoomNotifier} of every room: a scheduler that fires the
+ * coalescing ticks and the periodic tasks of the rooms, and the outbound
+ * queues that write the notifications so that a slow participant never delays
+ * the thread that handles a join or a leave.
+ *
+ * @since 6.0.0
+ */
+public class NotificationDispatcher {
+
+	static final String TICK_PROPERTY = "groupcall.notification.tick.ms";
+
+	private final long tickMillis;
+	private final OutboundQueues outboundQueues;
+	private final ScheduledExecutorService ticker = Executors
+			.newSingleThreadScheduledExecutor();
+
+	public NotificationDispatcher(OutboundQueues outboundQueues) {
+		this(Long.getLong(TICK_PROPERTY, 50), outboundQueues);
+	}
+
+	/**
+	 * @param tickMillis
+	 *            time during which membership events of a room are coalesced
+	 * @param outboundQueues
+	 *            queues the messages to every participant go through
+	 */
+	public NotificationDispatcher(long tickMillis,
+			OutboundQueues outboundQueues) {
+		this.tickMillis = tickMillis;
+		this.outboundQueues = outboundQueues;
+	}
+
+	void schedule(Runnable tick) {
+		ticker.schedule(tick, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a periodic task of a room on the same scheduler. The task must not
+	 * block nor throw.
+	 */
+	ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodMillis) {
+		return ticker.scheduleAtFixedRate(task, periodMillis, periodMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	OutboundQueue queueFor(WebSocketSession session) {
+		return outboundQueues.get(session);
+	}
+
+	OutboundQueues getOutboundQueues() {
+		return outboundQueues;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		ticker.shutdownNow();
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.tutorial.signaling.OutboundListener;
+
+/**
+ * Records the messages written to every participant: how long they take to
+ * be written, and how many are refused or dropped.
+ *
+ * @since 6.0.0
+ */
+class OutboundMetrics implements OutboundListener {
+
+	private final AtomicLong sent;
+	private final AtomicLong failed;
+	private final AtomicLong dropped;
+	private final LatencyHistogram latency;
+
+	OutboundMetrics(Metrics metrics) {
+		this.sent = metrics.counter("signaling.messages.sent");
+		this.failed = metrics.counter("signaling.messages.failed");
+		this.dropped = metrics.counter("signaling.messages.dropped");
+		this.latency = metrics.timer("signaling.messages.latency");
+	}
+
+	@Override
+	public void onSent(long latencyNanos) {
+		sent.incrementAndGet();
+		latency.record(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+	}
+
+	@Override
+	public void onFailed() {
+		failed.incrementAndGet();
+	}
+
+	@Override
+	public void onDropped(int count) {
+		dropped.addAndGet(count);
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a few media pipelines created in advance, so that the first
+ * participant of a new room does not wait for the creation of its pipeline.
+ * The pool is refilled in the background every time a pipeline is taken.
+ *
+ * @since 6.0.0
+ */
+public class PipelinePool {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(PipelinePool.class);
+
+	static final String SIZE_PROPERTY = "groupcall.pipeline.pool.size";
+
+	private final KurentoClient kurento;
+	private final int size;
+
+	private final Queue<MediaPipeline> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger warming = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final LatencyHistogram creationTime = new LatencyHistogram();
+
+	public PipelinePool(KurentoClient kurento) {
+		this(kurento, Integer.getInteger(SIZE_PROPERTY, 2));
+	}
+
+	/**
+	 * @param size
+	 *            number of idle pipelines to keep. With 0, every pipeline is
+	 *            created on demand
+	 */
+	public PipelinePool(KurentoClient kurento, int size) {
+		this.kurento = kurento;
+		this.size = size;
+	}
+
+	/**
+	 * Starts filling the pool.
+	 */
+	public void init() {
+		refill();
+	}
+
+	/**
+	 * Hands a pipeline to the continuation, taking it from the pool if there
+	 * is one available, or creating it otherwise.
+	 *
+	 * @param continuation
+	 *            receives the pipeline
+	 */
+	public void acquire(Continuation<MediaPipeline> continuation) {
+		final MediaPipeline pipeline = idle.poll();
+		if (pipeline != null) {
+			hits.incrementAndGet();
+			notifySuccess(continuation, pipeline);
+		} else {
+			misses.incrementAndGet();
+			create(continuation);
+		}
+		refill();
+	}
+
+	private void refill() {
+		while (idle.size() + warming.get() < size) {
+			warming.incrementAndGet();
+			create(new Continuation<MediaPipeline>() {
+				@Override
+				public void onSuccess(MediaPipeline result) {
+					idle.add(result);
+					warming.decrementAndGet();
+				}
+
+				@Override
+				public void onError(Throwable cause) {
+					warming.decrementAndGet();
+					log.warn("Could not pre-create a media pipeline", cause);
+				}
+			});
+		}
+	}
+
+	private void create(final Continuation<MediaPipeline> continuation) {
+		final long start = System.nanoTime();
+		kurento.createMediaPipeline(new Continuation<MediaPipeline>() {
+			@Override
+			public void onSuccess(MediaPipeline result) throws Exception {
+				creationTime.recordSince(start);
+				continuation.onSuccess(result);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				continuation.onError(cause);
+			}
+		});
+	}
+
+	private static void notifySuccess(
+			Continuation<MediaPipeline> continuation, MediaPipeline pipeline) {
+		try {
+			continuation.onSuccess(pipeline);
+		} catch (Exception e) {
+			log.warn("Exception while handing over a pipeline", e);
+		}
+	}
+
+	/**
+	 * @return pool size, idle pipelines, hits, misses and pipeline creation
+	 *         times
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("size", size);
+		snapshot.put("idle", idle.size());
+		snapshot.put("warming", warming.get());
+		snapshot.put("hits", hits.get());
+		snapshot.put("misses", misses.get());
+		snapshot.put("creationTime", creationTime.snapshot());
+		return snapshot;
+	}
+
+	/**
+	 * Releases the idle pipelines.
+	 */
+	public void shutdown() {
+		MediaPipeline pipeline;
+		while ((pipeline = idle.poll()) != null) {
+			pipeline.release();
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+/**
+ * Chooses the media server a new room is placed on. The room stays on that
+ * server until it is closed.
+ *
+ * @since 6.0.0
+ */
+public interface PlacementPolicy {
+
+	/**
+	 * @param roomName
+	 *            the name of the room being created
+	 * @return the media server that will host the room
+	 */
+	MediaServer select(String roomName);
+
+}
@@ -0,0 +1,238 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Periodically removes the participants that are gone without leaving, and
+ * the rooms nobody is in, so that their endpoints do not stay on the media
+ * servers forever.
+ * <p>
+ * Every pass pings the browser of each participant. A participant is reaped
+ * when its websocket is closed, when its browser has not answered nor sent
+ * anything for a while, or when it has not sent media for a while, either
+ * because it never negotiated or because its media session ended. Rooms found
+ * empty on two passes in a row are removed, unless someone is waiting for
+ * them.
+ * <p>
+ * At most a batch of participants is reaped per pass, so that a mass
+ * disconnection does not flood the media servers with releases.
+ *
+ * @since 6.0.0
+ */
+public class Reaper {
+
+	private static final Logger log = LoggerFactory.getLogger(Reaper.class);
+
+	static final String INTERVAL_PROPERTY = "groupcall.reaper.interval.ms";
+	static final String IDLE_PROPERTY = "groupcall.reaper.idle.ms";
+	static final String MEDIA_PROPERTY = "groupcall.reaper.media.ms";
+	static final String BATCH_PROPERTY = "groupcall.reaper.batch";
+
+	@Autowired
+	private RoomManager roomManager;
+
+	@Autowired
+	private Metrics metrics;
+
+	private final long intervalMillis;
+	private final long idleMillis;
+	private final long mediaMillis;
+	private final int batch;
+
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor();
+
+	// Only accessed by the timer thread
+	private Set<Room> emptyRooms = Collections
+			.newSetFromMap(new IdentityHashMap<Room, Boolean>());
+
+	private final AtomicLong closed = new AtomicLong();
+	private final AtomicLong unresponsive = new AtomicLong();
+	private final AtomicLong withoutMedia = new AtomicLong();
+	private final AtomicLong rooms = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+
+	/**
+	 * Configured through {@code groupcall.reaper.interval.ms} (10000),
+	 * {@code groupcall.reaper.idle.ms} (45000),
+	 * {@code groupcall.reaper.media.ms} (60000) and
+	 * {@code groupcall.reaper.batch} (50).
+	 */
+	public Reaper() {
+		this(Long.getLong(INTERVAL_PROPERTY, 10000), Long.getLong(
+				IDLE_PROPERTY, 45000), Long.getLong(MEDIA_PROPERTY, 60000),
+				Integer.getInteger(BATCH_PROPERTY, 50));
+	}
+
+	/**
+	 * @param intervalMillis
+	 *            time between passes
+	 * @param idleMillis
+	 *            time a browser may go without answering pings
+	 * @param mediaMillis
+	 *            time a participant may go without sending media
+	 * @param batch
+	 *            participants reaped per pass at most
+	 */
+	public Reaper(long intervalMillis, long idleMillis, long mediaMillis,
+			int batch) {
+		this.intervalMillis = intervalMillis;
+		this.idleMillis = idleMillis;
+		this.mediaMillis = mediaMillis;
+		this.batch = batch;
+	}
+
+	@PostConstruct
+	public void start() {
+		bindTo(metrics);
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reap();
+				} catch (RuntimeException e) {
+					log.warn("Reaper pass failed", e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a pass.
+	 */
+	void reap() {
+		int budget = batch;
+		final Set<Room> stillEmpty = Collections
+				.newSetFromMap(new IdentityHashMap<Room, Boolean>());
+		for (Room room : new ArrayList<>(roomManager.getRooms())) {
+			for (UserSession user : room.getParticipants()) {
+				final AtomicLong reason = reasonToReap(user);
+				if (reason == null) {
+					user.ping();
+				} else if (budget > 0) {
+					budget--;
+					reason.incrementAndGet();
+					reap(user);
+				} else {
+					deferred.incrementAndGet();
+				}
+			}
+			if (room.getParticipants().isEmpty()) {
+				if (emptyRooms.contains(room)
+						&& roomManager.getAdmission().removeIfUnused(room)) {
+					rooms.incrementAndGet();
+					log.info("Reaped empty room {}", room.getName());
+				} else {
+					stillEmpty.add(room);
+				}
+			}
+		}
+		emptyRooms = stillEmpty;
+	}
+
+	/**
+	 * @return the counter of the reason the participant has to be reaped
+	 *         for, or {@code null} if it is alive
+	 */
+	private AtomicLong reasonToReap(UserSession user) {
+		if (!user.getSession().isOpen()) {
+			return closed;
+		}
+		if (user.getIdleMillis() > idleMillis) {
+			return unresponsive;
+		}
+		if (user.getMediaIdleMillis() > mediaMillis) {
+			return withoutMedia;
+		}
+		return null;
+	}
+
+	private void reap(UserSession user) {
+		log.info("Reaping participant {} of room {}", user.getName(),
+				user.getRoomName());
+		try {
+			roomManager.leave(user);
+		} catch (IOException e) {
+			log.warn("Could not reap participant {}", user.getName(), e);
+		}
+		final WebSocketSession session = user.getSession();
+		if (session.isOpen()) {
+			try {
+				session.close(CloseStatus.SESSION_NOT_RELIABLE);
+			} catch (IOException e) {
+				log.debug("Could not close session {}", session.getId(), e);
+			}
+		}
+	}
+
+	/**
+	 * Exports the participants reaped for each reason, the rooms reaped, and
+	 * the participants left for a later pass.
+	 */
+	public void bindTo(Metrics metrics) {
+		bindCounter(metrics, "groupcall.reaper.closed", closed);
+		bindCounter(metrics, "groupcall.reaper.unresponsive", unresponsive);
+		bindCounter(metrics, "groupcall.reaper.no_media", withoutMedia);
+		bindCounter(metrics, "groupcall.reaper.rooms", rooms);
+		bindCounter(metrics, "groupcall.reaper.deferred", deferred);
+	}
+
+	private static void bindCounter(Metrics metrics, String name,
+			final AtomicLong counter) {
+		metrics.gauge(name, new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				return counter.get();
+			}
+		});
+	}
+
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("closed", closed.get());
+		snapshot.put("unresponsive", unresponsive.get());
+		snapshot.put("noMedia", withoutMedia.get());
+		snapshot.put("rooms", rooms.get());
+		snapshot.put("deferred", deferred.get());
+		return snapshot;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+}
@@ -18,14 +18,24 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PreDestroy;
 
+import org.kurento.client.Composite;
 import org.kurento.client.Continuation;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
+import org.kurento.tutorial.signaling.Layer;
+import org.kurento.tutorial.signaling.OutboundQueue;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketSession;
@@ -43,8 +53,31 @@ public class Room implements Closeable {
 	private final Logger log = LoggerFactory.getLogger(Room.class);
 
 	private final ConcurrentMap<String, UserSession> participants = new ConcurrentHashMap<>();
-	private final MediaPipeline pipeline;
+	private final ContinuationFuture<MediaPipeline> pipeline;
 	private final String name;
+	private final RoomMode mode;
+	private final ContinuationFuture<Composite> composite;
+	private final RoomNotifier notifier;
+	private final NotificationDispatcher dispatcher;
+	private final SignalingStats stats;
+	private final MediaServer mediaServer;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final AtomicInteger endpoints = new AtomicInteger();
+	private final ContinuationFuture<Void> released = new ContinuationFuture<>();
+
+	// Endpoints charged to the media server for the participants and the
+	// joins admitted to the room
+	private final Object load = new Object();
+	// Guarded by load
+	private int reservations;
+	private int charged;
+
+	private final ActiveSpeakers speakers;
+	private final int slots;
+	// Guarded by this
+	private ScheduledFuture<?> speakerSelection;
+
+	private volatile RoomBridge bridge;
 
 	/**
 	 * @return the name
@@ -53,10 +86,228 @@ public class Room implements Closeable {
 		return name;
 	}
 
-	public Room(String roomName, MediaPipeline pipeline) {
+	/**
+	 * @return the way media is distributed among the participants
+	 */
+	public RoomMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the media server hosting the room
+	 */
+	public MediaServer getMediaServer() {
+		return mediaServer;
+	}
+
+	/**
+	 * @return number of speakers every participant receives, or 0 if the room
+	 *         does not forward only the active speakers
+	 */
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * @return number of endpoints and hub ports in the pipeline of the room
+	 */
+	public int getEndpoints() {
+		return endpoints.get();
+	}
+
+	void endpointCreated() {
+		endpoints.incrementAndGet();
+	}
+
+	void endpointReleased() {
+		endpoints.decrementAndGet();
+	}
+
+	/**
+	 * Reserves the endpoints of one more participant, and charges them to the
+	 * media server, unless the room or the media server would exceed its
+	 * limit. The reservation is held until {@link #reservationDone()}.
+	 *
+	 * @param roomLimit
+	 *            endpoints the room may use, or 0 for no limit
+	 * @param serverLimit
+	 *            endpoints the rooms of the media server may use together, or
+	 *            0 for no limit
+	 * @return the limit that would be exceeded, or {@code NONE}
+	 */
+	Admission.Limit reserve(int roomLimit, int serverLimit) {
+		synchronized (load) {
+			final int occupancy = participants.size() + reservations;
+			final int needed = mode.getEndpoints(occupancy + 1, slots);
+			if (roomLimit > 0 && needed > roomLimit && occupancy > 0) {
+				return Admission.Limit.ROOM;
+			}
+			if (!mediaServer.chargeEndpoints(needed - charged, serverLimit)) {
+				return Admission.Limit.SERVER;
+			}
+			charged = needed;
+			reservations++;
+			return Admission.Limit.NONE;
+		}
+	}
+
+	/**
+	 * Ends a reservation, once its participant has joined or failed to.
+	 */
+	void reservationDone() {
+		synchronized (load) {
+			reservations--;
+			recharge();
+		}
+	}
+
+	/**
+	 * @return whether participants are being admitted to the room
+	 */
+	boolean hasReservations() {
+		synchronized (load) {
+			return reservations > 0;
+		}
+	}
+
+	/**
+	 * Charges the media server with what the participants and reservations
+	 * of the room use now.
+	 */
+	private void recharge() {
+		synchronized (load) {
+			final int needed = mode.getEndpoints(participants.size()
+					+ reservations, slots);
+			mediaServer.chargeEndpoints(needed - charged, 0);
+			charged = needed;
+		}
+	}
+
+	ContinuationFuture<MediaPipeline> getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * @return the mixer, or {@code null} if the room is not mixed
+	 */
+	ContinuationFuture<Composite> getComposite() {
+		return composite;
+	}
+
+	/**
+	 * Bridges the room with another one while participants are moved between
+	 * them, or stops bridging it.
+	 *
+	 * @param bridge
+	 *            the bridge, or {@code null}
+	 */
+	void setBridge(RoomBridge bridge) {
+		this.bridge = bridge;
+	}
+
+	/**
+	 * @return whether the participants of this room can receive the sender,
+	 *         that is, whether the sender is in this room or in a room bridged
+	 *         with it
+	 */
+	public boolean reaches(UserSession sender) {
+		final RoomBridge current = bridge;
+		return sender.getRoom() == this
+				|| (current != null && current.getOther(this) == sender
+						.getRoom());
+	}
+
+	/**
+	 * @param sender
+	 *            a participant of this room, or of a room bridged with it
+	 * @param layer
+	 *            the layer the receiving participant is at. Senders of a
+	 *            bridged room are received as they are
+	 * @return the element a participant of this room has to be connected to
+	 */
+	ContinuationFuture<? extends MediaElement> getSource(UserSession sender,
+			Layer layer) {
+		final RoomBridge current = bridge;
+		if (sender.getRoom() == this || current == null) {
+			return sender.getSource(layer);
+		}
+		return current.relay(sender);
+	}
+
+	SignalingStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return the queue the messages to a participant are written through
+	 */
+	OutboundQueue getOutboundQueue(WebSocketSession session) {
+		return dispatcher.queueFor(session);
+	}
+
+	OutboundQueues getOutboundQueues() {
+		return dispatcher.getOutboundQueues();
+	}
+
+	/**
+	 * @param mediaServer
+	 *            the media server the room is pinned to
+	 * @param pipeline
+	 *            the pipeline of the room, on that media server. Participants
+	 *            can join before it has been created
+	 */
+	public Room(String roomName, MediaServer mediaServer,
+			final ContinuationFuture<MediaPipeline> pipeline, RoomMode mode,
+			NotificationDispatcher dispatcher, SignalingStats stats) {
 		this.name = roomName;
+		this.mediaServer = mediaServer;
 		this.pipeline = pipeline;
-		log.info("ROOM {} has been created", roomName);
+		this.mode = mode;
+		this.dispatcher = dispatcher;
+		this.notifier = new RoomNotifier(this, dispatcher);
+		this.stats = stats;
+		if (mode == RoomMode.MIXED) {
+			this.composite = new ContinuationFuture<>();
+			pipeline.then(new Continuation<MediaPipeline>() {
+				@Override
+				public void onSuccess(MediaPipeline result) {
+					new Composite.Builder(result).buildAsync(composite);
+				}
+
+				@Override
+				public void onError(Throwable cause) {
+					composite.onError(cause);
+				}
+			});
+		} else {
+			this.composite = null;
+		}
+		if (mode == RoomMode.SPEAKERS) {
+			this.slots = Integer.getInteger(ActiveSpeakers.SLOTS_PROPERTY, 4);
+			// A participant among the leaders does not receive itself
+			this.speakers = new ActiveSpeakers(slots + 1);
+		} else {
+			this.slots = 0;
+			this.speakers = null;
+		}
+		log.info("ROOM {} has been created in {} mode", roomName, mode);
+	}
+
+	/**
+	 * Starts the periodic selection of the speakers of a room in
+	 * {@link RoomMode#SPEAKERS} mode. Only called once the room has been
+	 * published, so that rooms discarded by a lost race schedule nothing.
+	 */
+	public synchronized void start() {
+		if (speakers == null || speakerSelection != null || closed.get()) {
+			return;
+		}
+		speakerSelection = dispatcher.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				selectSpeakers();
+			}
+		}, Long.getLong(ActiveSpeakers.INTERVAL_PROPERTY, 300));
 	}
 
 	@PreDestroy
@@ -64,81 +315,139 @@ public class Room implements Closeable {
 		this.close();
 	}
 
+	/**
+	 * @throws RoomClosedException
+	 *             if the room has been closed
+	 */
 	public UserSession join(String userName, WebSocketSession session)
 			throws IOException {
+		return join(userName, session, "existingParticipants");
+	}
+
+	/**
+	 * Adds a participant moved from another room with the same name. The
+	 * participant is sent a {@code migrate} message, listing the participants
+	 * of this room, so that it negotiates its media again.
+	 *
+	 * @param userName
+	 *            the name the participant had in the previous room
+	 * @param session
+	 *            the session of the participant, which is kept open
+	 * @return the participant in this room
+	 * @throws RoomClosedException
+	 *             if the room has been closed
+	 */
+	public UserSession migrate(String userName, WebSocketSession session)
+			throws IOException {
+		return join(userName, session, "migrate");
+	}
+
+	private UserSession join(String userName, WebSocketSession session,
+			String messageId) throws IOException {
 		log.info("ROOM {}: adding participant {}", userName, userName);
-		final UserSession participant = new UserSession(userName, this.name,
-				session, this.pipeline);
-		joinRoom(participant);
-		participants.put(participant.getName(), participant);
-		sendParticipantNames(participant);
+		if (closed.get()) {
+			throw new RoomClosedException(name);
+		}
+		final UserSession participant = new UserSession(userName, this,
+				session);
+		final JsonObject participantNames;
+		synchronized (this) {
+			// Closed while the participant was being created
+			if (closed.get()) {
+				participant.release();
+				throw new RoomClosedException(name);
+			}
+			// Whoever joins concurrently is either in the list, or joins
+			// later and is reported in a delta sent to this participant
+			participants.put(participant.getName(), participant);
+			recharge();
+			participantNames = participantNames(participant, messageId);
+			log.debug(
+					"ROOM {}: notifying other participants of new participant {}",
+					name, userName);
+			notifier.participantJoined(userName);
+		}
+		participant.sendMessage(participantNames);
+		if (speakers != null) {
+			speakers.add(userName);
+		}
 		return participant;
 	}
 
-	public void leave(UserSession user) throws IOException {
+	/**
+	 * @return whether the user was in the room. The user is only closed by the
+	 *         first call
+	 */
+	public boolean leave(UserSession user) throws IOException {
 		log.debug("PARTICIPANT {}: Leaving room {}", user.getName(), this.name);
+		if (!participants.remove(user.getName(), user)) {
+			return false;
+		}
+		recharge();
 		this.removeParticipant(user.getName());
 		user.close();
+		final RoomBridge current = bridge;
+		if (current != null) {
+			current.left(user);
+		}
+		return true;
 	}
 
 	/**
-	 * @param participant
-	 * @throws IOException
+	 * Takes out a participant that has been moved to a bridged room, without
+	 * telling the others, who keep receiving it through the bridge.
+	 *
+	 * @return whether the user was in the room
 	 */
-	private Collection<String> joinRoom(UserSession newParticipant)
-			throws IOException {
-		final JsonObject newParticipantMsg = new JsonObject();
-		newParticipantMsg.addProperty("id", "newParticipantArrived");
-		newParticipantMsg.addProperty("name", newParticipant.getName());
-
-		final List<String> participantsList = new ArrayList<>(participants
-				.values().size());
-		log.debug(
-				"ROOM {}: notifying other participants of new participant {}",
-				name, newParticipant.getName());
+	boolean retire(UserSession user) {
+		if (!participants.remove(user.getName(), user)) {
+			return false;
+		}
+		recharge();
+		if (speakers != null) {
+			speakers.remove(user.getName());
+		}
+		user.release();
+		return true;
+	}
 
+	/**
+	 * Tells the participants that a participant of a bridged room has left.
+	 */
+	void remoteLeft(String name) {
 		for (final UserSession participant : participants.values()) {
-			try {
-				participant.sendMessage(newParticipantMsg);
-			} catch (final IOException e) {
-				log.debug("ROOM {}: participant {} could not be notified",
-						name, participant.getName(), e);
-			}
-			participantsList.add(participant.getName());
+			participant.cancelVideoFrom(name);
 		}
-
-		return participantsList;
+		notifier.participantLeft(name);
 	}
 
 	private void removeParticipant(String name) throws IOException {
-		participants.remove(name);
-
-		log.debug("ROOM {}: notifying all users that {} is leaving the room",
-				this.name, name);
-
-		final List<String> unnotifiedParticipants = new ArrayList<>();
-		final JsonObject participantLeftJson = new JsonObject();
-		participantLeftJson.addProperty("id", "participantLeft");
-		participantLeftJson.addProperty("name", name);
-		for (final UserSession participant : participants.values()) {
-			try {
-				participant.cancelVideoFrom(name);
-				participant.sendMessage(participantLeftJson);
-			} catch (final IOException e) {
-				unnotifiedParticipants.add(participant.getName());
-			}
+		if (speakers != null) {
+			speakers.remove(name);
 		}
-
-		if (!unnotifiedParticipants.isEmpty()) {
-			log.debug(
-					"ROOM {}: The users {} could not be notified that {} left the room",
-					this.name, unnotifiedParticipants, name);
+		for (final UserSession participant : participants.values()) {
+			participant.cancelVideoFrom(name);
 		}
 
+		log.debug("ROOM {}: notifying all users that {} is leaving the room",
+				this.name, name);
+		notifier.participantLeft(name);
 	}
 
 	public void sendParticipantNames(UserSession user) throws IOException {
+		sendParticipantNames(user, "existingParticipants");
+	}
 
+	private void sendParticipantNames(UserSession user, String messageId)
+			throws IOException {
+		user.sendMessage(participantNames(user, messageId));
+	}
+
+	/**
+	 * @return the message listing every participant but the user, including
+	 *         those of a bridged room
+	 */
+	private JsonObject participantNames(UserSession user, String messageId) {
 		final JsonArray participantsArray = new JsonArray();
 		for (final UserSession participant : this.getParticipants()) {
 			if (!participant.equals(user)) {
@@ -147,13 +456,94 @@ public class Room implements Closeable {
 				participantsArray.add(participantName);
 			}
 		}
+		final RoomBridge current = bridge;
+		final Room other = current != null ? current.getOther(this) : null;
+		if (other != null) {
+			for (final UserSession participant : other.getParticipants()) {
+				// Participants being moved are in both rooms for a while
+				if (!participant.getName().equals(user.getName())
+						&& !participants.containsKey(participant.getName())) {
+					participantsArray.add(new JsonPrimitive(participant
+							.getName()));
+				}
+			}
+		}
 
 		final JsonObject existingParticipantsMsg = new JsonObject();
-		existingParticipantsMsg.addProperty("id", "existingParticipants");
+		existingParticipantsMsg.addProperty("id", messageId);
+		existingParticipantsMsg.addProperty("mode", mode.name().toLowerCase());
+		if (slots > 0) {
+			existingParticipantsMsg.addProperty("slots", slots);
+		}
 		existingParticipantsMsg.add("data", participantsArray);
 		log.debug("PARTICIPANT {}: sending a list of {} participants",
 				user.getName(), participantsArray.size());
-		user.sendMessage(existingParticipantsMsg);
+		return existingParticipantsMsg;
+	}
+
+	/**
+	 * Records the audio level of a participant, in rooms that forward only
+	 * the active speakers. Levels may come from the participants themselves
+	 * or from any detector running on the media.
+	 *
+	 * @param level
+	 *            between 0 (silence) and 1
+	 */
+	public void reportAudioLevel(String userName, double level) {
+		if (speakers != null) {
+			speakers.report(userName, level);
+		}
+	}
+
+	/**
+	 * Feeds the slots of every participant with the most active speakers,
+	 * leaving the participant itself out.
+	 */
+	private void selectSpeakers() {
+		try {
+			final List<String> ranking = speakers.rank();
+			for (UserSession viewer : participants.values()) {
+				final List<UserSession> selected = new ArrayList<>(slots);
+				for (String speaker : ranking) {
+					if (selected.size() == slots) {
+						break;
+					}
+					final UserSession sender = participants.get(speaker);
+					if (sender != null && sender != viewer) {
+						selected.add(sender);
+					}
+				}
+				viewer.showSpeakers(selected, slots);
+			}
+		} catch (RuntimeException e) {
+			log.warn("ROOM {}: Could not select speakers", name, e);
+		}
+	}
+
+	/**
+	 * @return mode, media server, endpoints, and the metrics of every
+	 *         participant
+	 */
+	public Map<String, Object> snapshot() {
+		final List<Map<String, Object>> users = new ArrayList<>();
+		for (UserSession user : participants.values()) {
+			users.add(user.snapshot());
+		}
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("name", name);
+		snapshot.put("mode", mode.name().toLowerCase());
+		snapshot.put("server", mediaServer.getUri());
+		snapshot.put("endpoints", endpoints.get());
+		snapshot.put("participants", users);
+		return snapshot;
+	}
+
+	/**
+	 * @return whether the room has been closed, in which case nobody can join
+	 *         it anymore
+	 */
+	public boolean isClosed() {
+		return closed.get();
 	}
 
 	/**
@@ -173,32 +563,58 @@ public class Room implements Closeable {
 
 	@Override
 	public void close() {
-		for (final UserSession user : participants.values()) {
-			try {
-				user.close();
-			} catch (IOException e) {
-				log.debug("ROOM {}: Could not invoke close on participant {}",
-						this.name, user.getName(), e);
+		release();
+	}
+
+	/**
+	 * Releases the media elements of all the participants in parallel, and
+	 * then the pipeline. Only the first call releases anything.
+	 *
+	 * @return completes once the pipeline has been released
+	 */
+	public ContinuationFuture<Void> release() {
+		// Participants are added under the same lock, so none is added once
+		// the room is closed
+		synchronized (this) {
+			if (!closed.compareAndSet(false, true)) {
+				return released;
+			}
+			if (speakerSelection != null) {
+				speakerSelection.cancel(false);
 			}
 		}
+		final List<ContinuationFuture<Void>> releases = new ArrayList<>();
+		for (final UserSession user : participants.values()) {
+			releases.add(user.release());
+		}
 
 		participants.clear();
+		recharge();
 
-		pipeline.release(new Continuation<Void>() {
-
+		// Releasing the pipeline first would make the releases of its
+		// elements fail
+		ContinuationFuture.all(releases).then(new Continuation<Void>() {
 			@Override
-			public void onSuccess(Void result) throws Exception {
-				log.trace("ROOM {}: Released Pipeline", Room.this.name);
+			public void onSuccess(Void result) {
+				releasePipeline();
 			}
 
 			@Override
-			public void onError(Throwable cause) throws Exception {
-				log.warn("PARTICIPANT {}: Could not release Pipeline",
-						Room.this.name);
+			public void onError(Throwable cause) {
+				log.warn("ROOM {}: Some elements could not be released",
+						Room.this.name, cause);
+				releasePipeline();
 			}
 		});
 
 		log.debug("Room {} closed", this.name);
+		return released;
+	}
+
+	private void releasePipeline() {
+		mediaServer.getReleaser()
+				.release(pipeline, "pipeline of room " + name)
+				.then(released);
 	}
 
 }
@@ -0,0 +1,303 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.tutorial.signaling.Layer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays senders between a room being drained and the room replacing it, so
+ * that the participants of both rooms keep receiving each other while they are
+ * moved. The stream of a sender crosses pipelines through a pair of
+ * {@link RtpEndpoint}s: the uplink, in the pipeline of the sender, is fed by
+ * its outgoing endpoint, and the downlink, in the other pipeline, feeds the
+ * participants receiving it there. A relay is created the first time a
+ * participant of the other room receives the sender, and carries the stream
+ * as it is, whatever layer that participant receives.
+ *
+ * @since 6.0.0
+ */
+class RoomBridge {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RoomBridge.class);
+
+	private final Room from;
+	private final Room to;
+	private final ConcurrentMap<UserSession, Relay> relays = new ConcurrentHashMap<>();
+
+	private static class Relay {
+		final ContinuationFuture<RtpEndpoint> uplink = new ContinuationFuture<>();
+		final ContinuationFuture<RtpEndpoint> downlink = new ContinuationFuture<>();
+		/**
+		 * The downlink, once the sender feeds it
+		 */
+		final ContinuationFuture<RtpEndpoint> ready = new ContinuationFuture<>();
+	}
+
+	RoomBridge(Room from, Room to) {
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * @return the room on the other side of the bridge, or {@code null} if the
+	 *         room is not bridged
+	 */
+	Room getOther(Room room) {
+		if (room == from) {
+			return to;
+		}
+		return room == to ? from : null;
+	}
+
+	/**
+	 * @param sender
+	 *            a participant of either room
+	 * @return the element that feeds the participants of the other room with
+	 *         the stream of the sender, once the relay is ready
+	 */
+	ContinuationFuture<RtpEndpoint> relay(UserSession sender) {
+		Relay relay = relays.get(sender);
+		if (relay == null) {
+			final Room target = getOther(sender.getRoom());
+			if (target == null) {
+				final ContinuationFuture<RtpEndpoint> unbridged = new ContinuationFuture<>();
+				unbridged.onError(new IllegalStateException(sender.getName()
+						+ " is not in a bridged room"));
+				return unbridged;
+			}
+			final Relay newRelay = new Relay();
+			relay = relays.putIfAbsent(sender, newRelay);
+			if (relay == null) {
+				relay = newRelay;
+				log.debug("ROOM {}: relaying {} to {}", from.getName(),
+						sender.getName(), target.getMediaServer());
+				build(sender.getRoom(), relay.uplink);
+				build(target, relay.downlink);
+				negotiate(sender, relay);
+			}
+		}
+		return relay.ready;
+	}
+
+	private void build(final Room room,
+			final ContinuationFuture<RtpEndpoint> endpoint) {
+		room.getPipeline().then(new Continuation<MediaPipeline>() {
+			@Override
+			public void onSuccess(MediaPipeline result) {
+				new RtpEndpoint.Builder(result).buildAsync(endpoint);
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				endpoint.onError(cause);
+			}
+		});
+		endpoint.then(new Continuation<RtpEndpoint>() {
+			@Override
+			public void onSuccess(RtpEndpoint result) {
+				room.getMediaServer().endpointCreated();
+				room.endpointCreated();
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+			}
+		});
+	}
+
+	/**
+	 * The downlink offers, the uplink answers, and the sender is connected to
+	 * the uplink once the downlink has processed the answer.
+	 */
+	private void negotiate(final UserSession sender, final Relay relay) {
+		relay.downlink.then(new Continuation<RtpEndpoint>() {
+			@Override
+			public void onSuccess(final RtpEndpoint downlink) {
+				downlink.generateOffer(new Continuation<String>() {
+					@Override
+					public void onSuccess(String offer) {
+						answer(sender, relay, downlink, offer);
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+						relay.ready.onError(cause);
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				relay.ready.onError(cause);
+			}
+		});
+	}
+
+	private void answer(final UserSession sender, final Relay relay,
+			final RtpEndpoint downlink, final String offer) {
+		relay.uplink.then(new Continuation<RtpEndpoint>() {
+			@Override
+			public void onSuccess(final RtpEndpoint uplink) {
+				uplink.processOffer(offer, new Continuation<String>() {
+					@Override
+					public void onSuccess(String answer) {
+						downlink.processAnswer(answer,
+								new Continuation<String>() {
+									@Override
+									public void onSuccess(String result) {
+										feed(sender, relay, uplink, downlink);
+									}
+
+									@Override
+									public void onError(Throwable cause) {
+										relay.ready.onError(cause);
+									}
+								});
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+						relay.ready.onError(cause);
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				relay.ready.onError(cause);
+			}
+		});
+	}
+
+	private void feed(final UserSession sender, final Relay relay,
+			final RtpEndpoint uplink, final RtpEndpoint downlink) {
+		sender.getSource(Layer.HIGH).then(new Continuation<MediaElement>() {
+			@Override
+			public void onSuccess(MediaElement source) {
+				source.connect(uplink, new Continuation<Void>() {
+					@Override
+					public void onSuccess(Void result) {
+						relay.ready.onSuccess(downlink);
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+						relay.ready.onError(cause);
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				relay.ready.onError(cause);
+			}
+		});
+		relay.ready.then(new Continuation<RtpEndpoint>() {
+			@Override
+			public void onSuccess(RtpEndpoint result) {
+				log.debug("ROOM {}: {} relayed", from.getName(),
+						sender.getName());
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				log.warn("ROOM {}: could not relay {}", from.getName(),
+						sender.getName(), cause);
+			}
+		});
+	}
+
+	/**
+	 * Tells the participants of the other room that a sender has left its
+	 * room, and releases its relay.
+	 */
+	void left(UserSession sender) {
+		final Room other = getOther(sender.getRoom());
+		if (other != null) {
+			other.remoteLeft(sender.getName());
+		}
+		release(sender);
+	}
+
+	/**
+	 * Releases the relay of a sender, if it has one.
+	 *
+	 * @return completes once both of its endpoints have been released
+	 */
+	ContinuationFuture<Void> release(UserSession sender) {
+		final Relay relay = relays.remove(sender);
+		if (relay == null) {
+			return ContinuationFuture.completed(null);
+		}
+		final Room target = getOther(sender.getRoom());
+		final List<ContinuationFuture<Void>> releases = new ArrayList<>(2);
+		releases.add(release(sender.getRoom(), relay.uplink, "uplink of "
+				+ sender.getName()));
+		releases.add(release(target, relay.downlink, "downlink of "
+				+ sender.getName()));
+		return ContinuationFuture.all(releases);
+	}
+
+	private ContinuationFuture<Void> release(final Room room,
+			ContinuationFuture<RtpEndpoint> endpoint, String description) {
+		endpoint.then(new Continuation<RtpEndpoint>() {
+			@Override
+			public void onSuccess(RtpEndpoint result) {
+				room.getMediaServer().endpointReleased();
+				room.endpointReleased();
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+			}
+		});
+		return room.getMediaServer().getReleaser()
+				.release(endpoint, "ROOM " + room.getName() + " "
+						+ description);
+	}
+
+	/**
+	 * Releases every relay left.
+	 *
+	 * @return completes once all of them have been released
+	 */
+	ContinuationFuture<Void> close() {
+		final List<ContinuationFuture<Void>> releases = new ArrayList<>();
+		for (UserSession sender : relays.keySet()) {
+			releases.add(release(sender));
+		}
+		return ContinuationFuture.all(releases);
+	}
+
+	/**
+	 * @return number of senders relayed
+	 */
+	int size() {
+		return relays.size();
+	}
+
+}
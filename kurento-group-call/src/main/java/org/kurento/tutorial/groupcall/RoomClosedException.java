@@ -0,0 +1,33 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a participant is added to a room that has already been closed,
+ * so that the participant is placed in the room that replaces it.
+ *
+ * @since 6.0.0
+ */
+public class RoomClosedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public RoomClosedException(String roomName) {
+		super("Room " + roomName + " is closed");
+	}
+
+}
@@ -15,13 +15,24 @@
 package org.kurento.tutorial.groupcall;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import org.kurento.client.KurentoClient;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.WebSocketSession;
 
 /**
  * @author Ivan Gracia (izanmail@gmail.com)
@@ -32,9 +43,69 @@ public class RoomManager {
 	private final Logger log = LoggerFactory.getLogger(RoomManager.class);
 
 	@Autowired
-	private KurentoClient kurento;
+	private RoomPlacement placement;
+
+	@Autowired
+	private NotificationDispatcher notificationDispatcher;
+
+	@Autowired
+	private SignalingStats signalingStats;
+
+	@Autowired
+	private UserRegistry registry;
+
+	@Autowired
+	private Metrics metrics;
+
+	@Autowired
+	private OutboundQueues outboundQueues;
+
+	private Admission admission;
 
 	private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, RoomMigration> migrations = new ConcurrentHashMap<>();
+	private final ExecutorService drainer = Executors.newSingleThreadExecutor();
+
+	@PostConstruct
+	public void init() {
+		admission = new Admission(this, outboundQueues);
+		bindTo(metrics);
+		admission.bindTo(metrics);
+	}
+
+	/**
+	 * Exports the number of rooms, participants and running migrations.
+	 */
+	public void bindTo(Metrics metrics) {
+		metrics.gauge("groupcall.rooms", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				return rooms.size();
+			}
+		});
+		metrics.gauge("groupcall.participants", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				int participants = 0;
+				for (Room room : rooms.values()) {
+					participants += room.getParticipants().size();
+				}
+				return participants;
+			}
+		});
+		metrics.gauge("groupcall.migrations.running", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				int running = 0;
+				for (RoomMigration migration : migrations.values()) {
+					if (!migration.isFinished()) {
+						running++;
+					}
+				}
+				return running;
+			}
+		});
+	}
 
 	/**
 	 * @param roomName
@@ -43,28 +114,231 @@ public class RoomManager {
 	 *         first time this room is accessed
 	 */
 	public Room getRoom(String roomName) {
+		return getRoom(roomName, RoomMode.getDefault());
+	}
+
+	/**
+	 * @param roomName
+	 *            the name of the room
+	 * @param mode
+	 *            the mode used if the room has to be created. It is ignored
+	 *            if the room already exists
+	 * @return the room if it was already created, or a new one if it is the
+	 *         first time this room is accessed
+	 */
+	public Room getRoom(String roomName, RoomMode mode) {
 		log.debug("Searching for room {}", roomName);
 		Room room = rooms.get(roomName);
+		if (room != null && room.isClosed() && rooms.remove(roomName, room)) {
+			// Closed without being removed, nobody can join it anymore
+			room.getMediaServer().roomRemoved();
+			room = rooms.get(roomName);
+		}
 
 		if (room == null) {
-			log.debug("Room {} not existent. Will create now!", roomName);
-			room = new Room(roomName, kurento.createMediaPipeline());
-			rooms.put(roomName, room);
+			final MediaServer server = placement.place(roomName);
+			final ContinuationFuture<MediaPipeline> pipeline = new ContinuationFuture<>();
+			final Room newRoom = new Room(roomName, server, pipeline, mode,
+					notificationDispatcher, signalingStats);
+			room = rooms.putIfAbsent(roomName, newRoom);
+			if (room == null) {
+				// Only the winner of the race gets a pipeline
+				log.debug("Room {} not existent. Will create now on {}!",
+						roomName, server);
+				server.roomCreated();
+				server.acquirePipeline(pipeline);
+				newRoom.start();
+				room = newRoom;
+			}
 		}
 		log.debug("Room {} found!", roomName);
 		return room;
 	}
 
 	/**
-	 * Removes a room from the list of available rooms
+	 * @return the room, or {@code null} if it does not exist
+	 */
+	Room findRoom(String roomName) {
+		return rooms.get(roomName);
+	}
+
+	Collection<Room> getRooms() {
+		return rooms.values();
+	}
+
+	/**
+	 * Joins a participant to a room, as soon as the room and its media server
+	 * have capacity for it.
+	 *
+	 * @param mode
+	 *            the mode used if the room has to be created
+	 * @return whether the participant joined, was queued or turned away
+	 */
+	public Admission.Result join(String roomName, RoomMode mode,
+			String userName, WebSocketSession session) {
+		return admission.request(roomName, mode, userName, session);
+	}
+
+	void admit(Room room, String userName, WebSocketSession session)
+			throws IOException {
+		final UserSession user = room.join(userName, session);
+		registry.register(user);
+	}
+
+	/**
+	 * Takes a participant out of its room, removing the room if it is left
+	 * empty and nobody is being admitted to it, and lets waiting participants
+	 * in.
+	 */
+	public void leave(UserSession user) throws IOException {
+		registry.remove(user);
+		final Room room = user.getRoom();
+		room.leave(user);
+		if (room.getParticipants().isEmpty()) {
+			admission.removeIfUnused(room);
+		}
+		admission.admitWaiting();
+	}
+
+	/**
+	 * Lets the next participants waiting in, once others have left.
+	 */
+	public void admitWaiting() {
+		admission.admitWaiting();
+	}
+
+	/**
+	 * Drops the pending join of a session, if any.
+	 *
+	 * @return whether the session was waiting to join
+	 */
+	public boolean cancelJoin(WebSocketSession session) {
+		return admission.cancel(session);
+	}
+
+	public Admission getAdmission() {
+		return admission;
+	}
+
+	/**
+	 * Removes a room from the list of available rooms. Empty rooms are
+	 * removed through {@link Admission#removeIfUnused(Room)}, so that a room
+	 * a participant is being admitted to is kept
 	 *
 	 * @param room
-	 * @throws IOException
+	 * @return whether the room was closed. A room still receiving the
+	 *         participants of a migration is kept
 	 */
-	public void removeRoom(Room room) {
-		this.rooms.remove(room.getName());
+	public boolean removeRoom(Room room) {
+		final RoomMigration migration = migrations.get(room.getName());
+		if (migration != null && migration.getTo() == room
+				&& !migration.isFinished()) {
+			// Still receiving participants, removed once the migration ends
+			return false;
+		}
+		if (this.rooms.remove(room.getName(), room)) {
+			room.getMediaServer().roomRemoved();
+		}
 		room.close();
 		log.info("Room {} removed and closed", room.getName());
+		return true;
+	}
+
+	/**
+	 * Replaces a room by a new one, on a new pipeline placed by the placement
+	 * policy, and moves the participants to it in the background. Participants
+	 * joining from now on land in the replacement.
+	 *
+	 * @param roomName
+	 *            the name of the room
+	 * @return the migration, or {@code null} if there is no such room
+	 */
+	public RoomMigration drain(String roomName) {
+		final Room room = rooms.get(roomName);
+		if (room == null) {
+			return null;
+		}
+		final RoomMigration running = migrations.get(roomName);
+		if (running != null && !running.isFinished()) {
+			return running;
+		}
+
+		final MediaServer server = placement.place(roomName);
+		final ContinuationFuture<MediaPipeline> pipeline = new ContinuationFuture<>();
+		final Room replacement = new Room(roomName, server, pipeline,
+				room.getMode(), notificationDispatcher, signalingStats);
+		if (!rooms.replace(roomName, room, replacement)) {
+			// Removed or drained concurrently
+			return migrations.get(roomName);
+		}
+		server.roomCreated();
+		server.acquirePipeline(pipeline);
+		replacement.start();
+
+		final RoomMigration migration = new RoomMigration(room, replacement,
+				registry);
+		migrations.put(roomName, migration);
+		log.info("Room {} draining from {} to {}", roomName,
+				room.getMediaServer(), server);
+		drainer.execute(new Runnable() {
+			@Override
+			public void run() {
+				migration.run();
+				if (replacement.getParticipants().isEmpty()) {
+					admission.removeIfUnused(replacement);
+				}
+				// The old media server has capacity again
+				admission.admitWaiting();
+			}
+		});
+		return migration;
+	}
+
+	/**
+	 * Stops placing new rooms on a media server, and drains the rooms it
+	 * hosts to the other ones.
+	 *
+	 * @return the migrations started
+	 */
+	public List<RoomMigration> drainServer(MediaServer server) {
+		server.setDraining(true);
+		final List<RoomMigration> started = new ArrayList<>();
+		for (Room room : rooms.values()) {
+			if (room.getMediaServer() == server) {
+				final RoomMigration migration = drain(room.getName());
+				if (migration != null) {
+					started.add(migration);
+				}
+			}
+		}
+		return started;
+	}
+
+	/**
+	 * @return the metrics of every room and its participants
+	 */
+	public List<Map<String, Object>> snapshot() {
+		final List<Map<String, Object>> snapshot = new ArrayList<>();
+		for (Room room : rooms.values()) {
+			snapshot.add(room.snapshot());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return the progress of the last migration of every room drained
+	 */
+	public List<Map<String, Object>> migrationsSnapshot() {
+		final List<Map<String, Object>> snapshot = new ArrayList<>();
+		for (RoomMigration migration : migrations.values()) {
+			snapshot.add(migration.snapshot());
+		}
+		return snapshot;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		drainer.shutdownNow();
 	}
 
 }
@@ -0,0 +1,320 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.Continuation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Moves the participants of a room to a replacement room, created on a new
+ * pipeline, a few at a time. Each participant joins the new room with the same
+ * session, and is told to negotiate its media again through a {@code migrate}
+ * message, while it keeps its endpoints in the old room. Those are released,
+ * and the participant is sent a {@code migrated} message, only once the first
+ * answer has been sent from the new room, or the batch has timed out. The old
+ * pipeline is released once the old room is empty.
+ * <p>
+ * While a room is being drained, both rooms are joined by a
+ * {@link RoomBridge}, so that participants already moved receive those still
+ * in the old room, and vice versa. Participants of the old room that receive
+ * a moved participant are switched to its relay before its old endpoints are
+ * released, and participants of the new room are switched from the relay to
+ * its new endpoint, without a negotiation. Mixed rooms are not bridged. The
+ * size of the batches, configured through {@code groupcall.drain.batch},
+ * bounds the load put on the media servers at once.
+ *
+ * @since 6.0.0
+ */
+public class RoomMigration implements Runnable {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RoomMigration.class);
+
+	static final String BATCH_PROPERTY = "groupcall.drain.batch";
+	static final String TIMEOUT_PROPERTY = "groupcall.drain.timeout.ms";
+
+	enum State {
+		PENDING, RUNNING, DONE, FAILED
+	}
+
+	private final Room from;
+	private final Room to;
+	private final UserRegistry registry;
+	private final int batchSize;
+	private final long timeoutMillis;
+	private final RoomBridge bridge;
+	private final Set<String> attempted = new HashSet<>();
+
+	private volatile State state = State.PENDING;
+	private volatile long startTime;
+	private volatile long endTime;
+	private final AtomicInteger migrated = new AtomicInteger();
+	private final AtomicInteger timedOut = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * @param from
+	 *            the room being drained, no longer reachable by new
+	 *            participants
+	 * @param to
+	 *            the room replacing it
+	 */
+	public RoomMigration(Room from, Room to, UserRegistry registry) {
+		this(from, to, registry, Integer.getInteger(BATCH_PROPERTY, 5), Long
+				.getLong(TIMEOUT_PROPERTY, 10000));
+	}
+
+	/**
+	 * @param batchSize
+	 *            number of participants moved before waiting for them to
+	 *            negotiate their media
+	 * @param timeoutMillis
+	 *            how long a batch is waited for
+	 */
+	public RoomMigration(Room from, Room to, UserRegistry registry,
+			int batchSize, long timeoutMillis) {
+		this.from = from;
+		this.to = to;
+		this.registry = registry;
+		this.batchSize = Math.max(1, batchSize);
+		this.timeoutMillis = timeoutMillis;
+		this.bridge = new RoomBridge(from, to);
+	}
+
+	/**
+	 * A participant that has joined the new room, and is still in the old one
+	 */
+	private static class Move {
+		final UserSession oldUser;
+		final UserSession newUser;
+
+		Move(UserSession oldUser, UserSession newUser) {
+			this.oldUser = oldUser;
+			this.newUser = newUser;
+		}
+	}
+
+	public Room getFrom() {
+		return from;
+	}
+
+	public Room getTo() {
+		return to;
+	}
+
+	public boolean isFinished() {
+		return state == State.DONE || state == State.FAILED;
+	}
+
+	@Override
+	public void run() {
+		startTime = System.nanoTime();
+		state = State.RUNNING;
+		log.info("ROOM {}: migrating from {} to {}", from.getName(),
+				from.getMediaServer(), to.getMediaServer());
+		if (from.getMode() != RoomMode.MIXED) {
+			from.setBridge(bridge);
+			to.setBridge(bridge);
+		}
+		try {
+			// Participants that joined the old room while it was being
+			// replaced are picked up by the next batch
+			List<UserSession> batch;
+			while (!(batch = nextBatch()).isEmpty()) {
+				final List<Move> moves = migrate(batch);
+				awaitAnswers(moves);
+				for (Move move : moves) {
+					complete(move);
+				}
+			}
+			state = State.DONE;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			state = State.FAILED;
+		} catch (RuntimeException e) {
+			log.warn("ROOM {}: migration failed", from.getName(), e);
+			state = State.FAILED;
+		} finally {
+			from.setBridge(null);
+			to.setBridge(null);
+			// Whoever could not be moved is gone for the new room
+			for (UserSession user : from.getParticipants()) {
+				to.remoteLeft(user.getName());
+			}
+			bridge.close();
+			from.close();
+			from.getMediaServer().roomRemoved();
+			endTime = System.nanoTime();
+			log.info("ROOM {}: {} participants migrated to {}",
+					from.getName(), migrated.get(), to.getMediaServer());
+		}
+	}
+
+	private List<UserSession> nextBatch() {
+		final List<UserSession> batch = new ArrayList<>(batchSize);
+		for (UserSession user : from.getParticipants()) {
+			if (batch.size() == batchSize) {
+				break;
+			}
+			// Participants that could not be moved stay until the end
+			if (attempted.add(user.getName())) {
+				batch.add(user);
+			}
+		}
+		return batch;
+	}
+
+	private List<Move> migrate(List<UserSession> batch) {
+		final List<Move> moves = new ArrayList<>(batch.size());
+		for (UserSession user : batch) {
+			final long start = System.nanoTime();
+			try {
+				final UserSession newUser = to.migrate(user.getName(),
+						user.getSession());
+				// Messages of the session reach the new participant from now
+				// on
+				registry.register(newUser);
+				newUser.getFirstAnswer().then(new Continuation<Void>() {
+					@Override
+					public void onSuccess(Void result) {
+						migrated.incrementAndGet();
+						latency.recordSince(start);
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+					}
+				});
+				moves.add(new Move(user, newUser));
+			} catch (IOException e) {
+				failed.incrementAndGet();
+				log.warn("USER {}: could not be migrated to room {}",
+						user.getName(), to.getName(), e);
+			}
+		}
+		return moves;
+	}
+
+	private void awaitAnswers(List<Move> moves) throws InterruptedException {
+		final long deadline = deadline();
+		for (Move move : moves) {
+			try {
+				move.newUser.getFirstAnswer().get(remaining(deadline),
+						TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				timedOut.incrementAndGet();
+				log.debug("USER {}: no answer sent after migration",
+						move.newUser.getName());
+			} catch (ExecutionException e) {
+				failed.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Releases the endpoints of a participant in the old room, once the
+	 * participants of both rooms receiving it have been switched to its new
+	 * endpoint, or to its relay.
+	 */
+	private void complete(Move move) throws InterruptedException {
+		final UserSession newUser = move.newUser;
+		if (to.getParticipant(newUser.getName()) != newUser) {
+			// Left while it was being moved
+			try {
+				from.leave(move.oldUser);
+			} catch (IOException e) {
+				log.debug("USER {}: could not leave room {}",
+						newUser.getName(), from.getName(), e);
+			}
+			return;
+		}
+		for (UserSession user : to.getParticipants()) {
+			user.reconnect(newUser);
+		}
+		if (from.getParticipants().size() > 1) {
+			try {
+				bridge.relay(newUser).get(remaining(deadline()),
+						TimeUnit.NANOSECONDS);
+			} catch (TimeoutException | ExecutionException e) {
+				log.debug("USER {}: not relayed to room {} in time",
+						newUser.getName(), from.getName());
+			}
+			for (UserSession user : from.getParticipants()) {
+				user.reconnect(newUser);
+			}
+		}
+		from.retire(move.oldUser);
+		bridge.release(move.oldUser);
+
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", "migrated");
+		try {
+			newUser.sendMessage(message);
+		} catch (IOException e) {
+			log.debug("USER {}: could not be told about the migration",
+					newUser.getName(), e);
+		}
+	}
+
+	private long deadline() {
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	private static long remaining(long deadline) {
+		return Math.max(0, deadline - System.nanoTime());
+	}
+
+	/**
+	 * @return state, participants moved, senders relayed, and per participant
+	 *         latency from joining the new room to receiving the first answer
+	 *         in it
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("room", from.getName());
+		snapshot.put("from", from.getMediaServer().getUri());
+		snapshot.put("to", to.getMediaServer().getUri());
+		snapshot.put("state", state.name().toLowerCase());
+		snapshot.put("remaining", from.getParticipants().size());
+		snapshot.put("migrated", migrated.get());
+		snapshot.put("timedOut", timedOut.get());
+		snapshot.put("failed", failed.get());
+		snapshot.put("relays", bridge.size());
+		if (startTime != 0) {
+			snapshot.put("elapsedMillis", TimeUnit.NANOSECONDS
+					.toMillis((endTime != 0 ? endTime : System.nanoTime())
+							- startTime));
+		}
+		snapshot.put("latency", latency.snapshot());
+		return snapshot;
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+/**
+ * How media is distributed among the participants of a {@link Room}.
+ *
+ * @since 6.0.0
+ */
+public enum RoomMode {
+
+	/**
+	 * Every participant receives each sender through a dedicated incoming
+	 * {@code WebRtcEndpoint}, so a room with N participants uses N² endpoints.
+	 */
+	MESH,
+
+	/**
+	 * Every participant sends to and receives from a {@code Composite} through
+	 * a single {@code WebRtcEndpoint}, so a room with N participants uses N
+	 * endpoints and N hub ports.
+	 */
+	MIXED,
+
+	/**
+	 * Every participant receives only the most active speakers, through a
+	 * fixed number K of incoming {@code WebRtcEndpoint}s that are rewired as
+	 * the speakers change, so a room with N participants uses N·(K+1)
+	 * endpoints.
+	 */
+	SPEAKERS;
+
+	static final String DEFAULT_PROPERTY = "groupcall.room.mode";
+
+	/**
+	 * @param participants
+	 *            number of participants in the room
+	 * @param slots
+	 *            number of speakers every participant receives, in
+	 *            {@link #SPEAKERS} mode
+	 * @return number of endpoints and hub ports the room needs once every
+	 *         participant sends and receives
+	 */
+	public int getEndpoints(int participants, int slots) {
+		switch (this) {
+		case MIXED:
+			return 2 * participants;
+		case SPEAKERS:
+			return participants * (slots + 1);
+		default:
+			return participants * participants;
+		}
+	}
+
+	/**
+	 * @return the mode configured through the {@code groupcall.room.mode}
+	 *         system property, or {@link #MESH} if none is set
+	 */
+	public static RoomMode getDefault() {
+		return parse(System.getProperty(DEFAULT_PROPERTY), MESH);
+	}
+
+	/**
+	 * @param value
+	 *            the name of the mode, case insensitive
+	 * @param defaultMode
+	 *            the mode to return if the value is missing or unknown
+	 * @return the parsed mode
+	 */
+	public static RoomMode parse(String value, RoomMode defaultMode) {
+		if (value == null) {
+			return defaultMode;
+		}
+		try {
+			return RoomMode.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return defaultMode;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Coalesces the membership changes of a room. Joins and leaves that happen
+ * within one tick are sent to every participant as a single
+ * {@code participantsDelta} message, which is serialized only once.
+ * <p>
+ * Participants are processed in the order {@code left}, then {@code joined},
+ * so a participant that leaves and joins again within a tick is reported in
+ * both lists. One that joins and leaves within a tick is only reported as
+ * left, since some participants may already know it through their
+ * {@code existingParticipants} list. Clients must ignore their own name and
+ * names they already know.
+ *
+ * @since 6.0.0
+ */
+class RoomNotifier {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RoomNotifier.class);
+
+	private final Room room;
+	private final NotificationDispatcher dispatcher;
+
+	private Set<String> joined = new LinkedHashSet<>();
+	private Set<String> left = new LinkedHashSet<>();
+	private boolean scheduled;
+
+	private final Runnable tick = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	RoomNotifier(Room room, NotificationDispatcher dispatcher) {
+		this.room = room;
+		this.dispatcher = dispatcher;
+	}
+
+	synchronized void participantJoined(String name) {
+		joined.add(name);
+		scheduleFlush();
+	}
+
+	synchronized void participantLeft(String name) {
+		joined.remove(name);
+		left.add(name);
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (!scheduled) {
+			scheduled = true;
+			dispatcher.schedule(tick);
+		}
+	}
+
+	private void flush() {
+		final Set<String> joinedNow;
+		final Set<String> leftNow;
+		synchronized (this) {
+			joinedNow = joined;
+			leftNow = left;
+			joined = new LinkedHashSet<>();
+			left = new LinkedHashSet<>();
+			scheduled = false;
+		}
+
+		final JsonObject delta = new JsonObject();
+		delta.addProperty("id", "participantsDelta");
+		delta.add("left", toJsonArray(leftNow));
+		delta.add("joined", toJsonArray(joinedNow));
+		final TextMessage message = new TextMessage(delta.toString());
+
+		log.debug("ROOM {}: notifying {} joined and {} left", room.getName(),
+				joinedNow, leftNow);
+
+		for (final UserSession participant : room.getParticipants()) {
+			participant.sendNotification(message);
+		}
+	}
+
+	private static JsonArray toJsonArray(Set<String> names) {
+		final JsonArray array = new JsonArray();
+		for (String name : names) {
+			array.add(new JsonPrimitive(name));
+		}
+		return array;
+	}
+
+}
@@ -0,0 +1,193 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The media servers available to the application, and the policy used to
+ * place new rooms on them.
+ *
+ * @since 6.0.0
+ */
+public class RoomPlacement {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RoomPlacement.class);
+
+	static final String POLICY_PROPERTY = "groupcall.placement";
+
+	private final List<MediaServer> servers;
+	private final PlacementPolicy policy;
+
+	/**
+	 * Connects to every media server in a comma separated list of URIs, and
+	 * uses the policy named by the {@code groupcall.placement} system property:
+	 * {@code round-robin}, {@code least-endpoints} (the default) or
+	 * {@code consistent-hash}.
+	 *
+	 * @param uris
+	 *            comma separated websocket URIs
+	 */
+	public static RoomPlacement connect(String uris) {
+		final List<MediaServer> servers = new ArrayList<>();
+		for (String uri : uris.split(",")) {
+			if (!uri.trim().isEmpty()) {
+				servers.add(MediaServer.connect(uri.trim()));
+			}
+		}
+		return new RoomPlacement(servers, System.getProperty(
+				POLICY_PROPERTY, "least-endpoints"));
+	}
+
+	/**
+	 * @param servers
+	 *            the media servers, at least one
+	 * @param policyName
+	 *            {@code round-robin}, {@code least-endpoints} or
+	 *            {@code consistent-hash}
+	 */
+	public RoomPlacement(List<MediaServer> servers, String policyName) {
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("No media server configured");
+		}
+		this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+		this.policy = createPolicy(policyName, this.servers);
+		log.info("Placing rooms on {} with {} policy", servers, policyName);
+	}
+
+	private static PlacementPolicy createPolicy(String name,
+			List<MediaServer> servers) {
+		switch (name) {
+		case "round-robin":
+			return new RoundRobinPlacement(servers);
+		case "least-endpoints":
+			return new LeastEndpointsPlacement(servers);
+		case "consistent-hash":
+			return new ConsistentHashPlacement(servers);
+		default:
+			throw new IllegalArgumentException("Unknown placement policy "
+					+ name);
+		}
+	}
+
+	/**
+	 * @param roomName
+	 *            the room being created
+	 * @return the media server the room has to be created on. Draining media
+	 *         servers are skipped, unless all of them are draining
+	 */
+	public MediaServer place(String roomName) {
+		MediaServer server = policy.select(roomName);
+		if (server.isDraining()) {
+			server = leastLoadedActive(server);
+		}
+		log.debug("Room {} placed on {}", roomName, server);
+		return server;
+	}
+
+	private MediaServer leastLoadedActive(MediaServer fallback) {
+		MediaServer selected = null;
+		for (MediaServer server : servers) {
+			if (!server.isDraining()
+					&& (selected == null || server.getEndpoints() < selected
+							.getEndpoints())) {
+				selected = server;
+			}
+		}
+		return selected != null ? selected : fallback;
+	}
+
+	/**
+	 * @param uri
+	 *            websocket URI of a media server
+	 * @return the media server, or {@code null} if there is none with that URI
+	 */
+	public MediaServer getServer(String uri) {
+		for (MediaServer server : servers) {
+			if (server.getUri().equals(uri)) {
+				return server;
+			}
+		}
+		return null;
+	}
+
+	public List<MediaServer> getServers() {
+		return servers;
+	}
+
+	/**
+	 * Exports the load of all the media servers together.
+	 */
+	public void bindTo(Metrics metrics) {
+		metrics.gauge("kms.endpoints", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				int endpoints = 0;
+				for (MediaServer server : servers) {
+					endpoints += server.getEndpoints();
+				}
+				return endpoints;
+			}
+		});
+		metrics.gauge("kms.releases.outstanding", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				int outstanding = 0;
+				for (MediaServer server : servers) {
+					outstanding += server.getReleaser().getOutstanding();
+				}
+				return outstanding;
+			}
+		});
+		metrics.gauge("kms.releases.leaked", new Metrics.Gauge() {
+			@Override
+			public Number value() {
+				long leaked = 0;
+				for (MediaServer server : servers) {
+					leaked += server.getReleaser().getLeaked();
+				}
+				return leaked;
+			}
+		});
+	}
+
+	/**
+	 * @return the load of every media server
+	 */
+	public List<Map<String, Object>> snapshot() {
+		final List<Map<String, Object>> snapshot = new ArrayList<>();
+		for (MediaServer server : servers) {
+			snapshot.add(server.snapshot());
+		}
+		return snapshot;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		for (MediaServer server : servers) {
+			server.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Places rooms on each media server in turn, regardless of their load.
+ *
+ * @since 6.0.0
+ */
+public class RoundRobinPlacement implements PlacementPolicy {
+
+	private final List<MediaServer> servers;
+	private final AtomicInteger next = new AtomicInteger();
+
+	public RoundRobinPlacement(List<MediaServer> servers) {
+		this.servers = servers;
+	}
+
+	@Override
+	public MediaServer select(String roomName) {
+		final int index = next.getAndIncrement() & Integer.MAX_VALUE;
+		return servers.get(index % servers.size());
+	}
+
+}
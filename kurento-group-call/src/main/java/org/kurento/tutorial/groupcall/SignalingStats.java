@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latencies of the group call signaling, as seen by the server.
+ *
+ * @since 6.0.0
+ */
+public class SignalingStats {
+
+	private final LatencyHistogram joinToFirstAnswer = new LatencyHistogram();
+	private final LatencyHistogram offerToAnswer = new LatencyHistogram();
+	private final LatencyHistogram processOffer = new LatencyHistogram();
+
+	/**
+	 * @return time from a {@code joinRoom} request to the first
+	 *         {@code receiveVideoAnswer} sent to the new participant
+	 */
+	public LatencyHistogram getJoinToFirstAnswer() {
+		return joinToFirstAnswer;
+	}
+
+	/**
+	 * @return time from a {@code receiveVideoFrom} request to its
+	 *         {@code receiveVideoAnswer}
+	 */
+	public LatencyHistogram getOfferToAnswer() {
+		return offerToAnswer;
+	}
+
+	/**
+	 * @return time the media server takes to process an SDP offer, once the
+	 *         endpoint exists
+	 */
+	public LatencyHistogram getProcessOffer() {
+		return processOffer;
+	}
+
+	public void bindTo(Metrics metrics) {
+		metrics.timer("groupcall.join.first_answer", joinToFirstAnswer);
+		metrics.timer("groupcall.offer.answer", offerToAnswer);
+		metrics.timer("kms.process_offer", processOffer);
+	}
+
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("joinToFirstAnswer", joinToFirstAnswer.snapshot());
+		snapshot.put("offerToAnswer", offerToAnswer.snapshot());
+		snapshot.put("processOffer", processOffer.snapshot());
+		return snapshot;
+	}
+
+}
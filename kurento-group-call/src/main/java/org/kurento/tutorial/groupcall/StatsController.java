@@ -0,0 +1,91 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.List;
+import java.util.Map;
+
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Exposes the server statistics as JSON.
+ *
+ * @since 6.0.0
+ */
+@RestController
+public class StatsController {
+
+	@Autowired
+	private SignalingStats signalingStats;
+
+	@Autowired
+	private RoomPlacement roomPlacement;
+
+	@Autowired
+	private OutboundQueues outboundQueues;
+
+	@Autowired
+	private RoomManager roomManager;
+
+	@Autowired
+	private Metrics metrics;
+
+	@Autowired
+	private Reaper reaper;
+
+	@RequestMapping("/stats/metrics")
+	public Map<String, Object> metrics() {
+		return metrics.snapshot();
+	}
+
+	@RequestMapping("/stats/rooms")
+	public List<Map<String, Object>> rooms() {
+		return roomManager.snapshot();
+	}
+
+	@RequestMapping("/stats/signaling")
+	public Map<String, Object> signaling() {
+		return signalingStats.snapshot();
+	}
+
+	@RequestMapping("/stats/servers")
+	public List<Map<String, Object>> servers() {
+		return roomPlacement.snapshot();
+	}
+
+	@RequestMapping("/stats/outbound")
+	public Map<String, Map<String, Object>> outbound() {
+		return outboundQueues.snapshot();
+	}
+
+	@RequestMapping("/stats/admission")
+	public Map<String, Object> admission() {
+		return roomManager.getAdmission().snapshot();
+	}
+
+	@RequestMapping("/stats/reaper")
+	public Map<String, Object> reaper() {
+		return reaper.snapshot();
+	}
+
+	@RequestMapping("/stats/migrations")
+	public List<Map<String, Object>> migrations() {
+		return roomManager.migrationsSnapshot();
+	}
+
+}
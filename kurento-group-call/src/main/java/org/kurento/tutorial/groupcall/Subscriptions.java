@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The senders a participant receives media from. Active senders have their
+ * media flowing to the participant. Parked senders keep their negotiated
+ * endpoint but no media flows to it, so that they can be resumed without a new
+ * negotiation.
+ * <p>
+ * At most {@code groupcall.subscriptions.max} senders are active at once, 0
+ * meaning no limit, and at most {@code groupcall.subscriptions.parked} are
+ * parked. When too many are parked, the endpoints parked the longest are
+ * released.
+ *
+ * @since 6.0.0
+ */
+class Subscriptions {
+
+	static final String MAX_ACTIVE_PROPERTY = "groupcall.subscriptions.max";
+	static final String MAX_PARKED_PROPERTY = "groupcall.subscriptions.parked";
+
+	private final int maxActive;
+	private final int maxParked;
+
+	// guarded by this, in the order senders were activated or parked
+	private final LinkedHashSet<String> active = new LinkedHashSet<>();
+	private final LinkedHashSet<String> parked = new LinkedHashSet<>();
+
+	Subscriptions() {
+		this(Integer.getInteger(MAX_ACTIVE_PROPERTY, 0), Integer.getInteger(
+				MAX_PARKED_PROPERTY, 8));
+	}
+
+	Subscriptions(int maxActive, int maxParked) {
+		this.maxActive = maxActive;
+		this.maxParked = maxParked;
+	}
+
+	/**
+	 * What a change of the subscriptions requires from the media server and
+	 * from the participant.
+	 */
+	static class Changes {
+
+		/** Senders whose media the participant has to negotiate */
+		final List<String> negotiate = new ArrayList<>();
+		/** Parked senders that have to be connected again */
+		final List<String> resumed = new ArrayList<>();
+		/** Senders over the limit of active senders */
+		final List<String> rejected = new ArrayList<>();
+		/** Active senders that have to be disconnected */
+		final List<String> parked = new ArrayList<>();
+		/** Parked senders whose endpoint has to be released */
+		final List<String> released = new ArrayList<>();
+	}
+
+	/**
+	 * Activates senders, as long as the limit allows it.
+	 */
+	synchronized Changes subscribe(Collection<String> senders) {
+		final Changes changes = new Changes();
+		for (String sender : senders) {
+			if (active.contains(sender)) {
+				continue;
+			}
+			if (maxActive > 0 && active.size() >= maxActive) {
+				changes.rejected.add(sender);
+			} else if (parked.remove(sender)) {
+				active.add(sender);
+				changes.resumed.add(sender);
+			} else {
+				active.add(sender);
+				changes.negotiate.add(sender);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Parks active senders, and evicts the oldest parked ones if there are too
+	 * many.
+	 */
+	synchronized Changes unsubscribe(Collection<String> senders) {
+		final Changes changes = new Changes();
+		for (String sender : senders) {
+			if (active.remove(sender)) {
+				parked.add(sender);
+				changes.parked.add(sender);
+			}
+		}
+		final Iterator<String> oldest = parked.iterator();
+		while (parked.size() > maxParked && oldest.hasNext()) {
+			final String sender = oldest.next();
+			oldest.remove();
+			changes.released.add(sender);
+			changes.parked.remove(sender);
+		}
+		return changes;
+	}
+
+	/**
+	 * Forgets a sender whose endpoint has been released.
+	 */
+	synchronized void remove(String sender) {
+		active.remove(sender);
+		parked.remove(sender);
+	}
+
+	synchronized boolean isParked(String sender) {
+		return parked.contains(sender);
+	}
+
+	synchronized int getActive() {
+		return active.size();
+	}
+
+	synchronized int getParked() {
+		return parked.size();
+	}
+
+}
@@ -14,13 +14,21 @@
  */
 package org.kurento.tutorial.groupcall;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.springframework.web.socket.WebSocketSession;
 
 /**
- * Map of users registered in the system. This class has a concurrent hash map
- * to store users, using its name as key in the map.
+ * Map of users registered in the system, indexed by name, by session id and by
+ * room.
+ * <p>
+ * Lookups never lock nor allocate. Updates are serialized, and each of them
+ * leaves the three indexes consistent with each other before the next one
+ * starts. The users of a room are kept in an immutable list that is replaced
+ * on every change, so broadcasts can iterate over it without copying it.
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
@@ -31,10 +39,30 @@ public class UserRegistry {
 
 	private final ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<String, UserSession>();
 	private final ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<String, UserSession>();
+	private final ConcurrentHashMap<String, List<UserSession>> usersByRoom = new ConcurrentHashMap<String, List<UserSession>>();
 
-	public void register(UserSession user) {
-		usersByName.put(user.getName(), user);
-		usersBySessionId.put(user.getSession().getId(), user);
+	private final Object writeLock = new Object();
+
+	/**
+	 * Registers a user. A user previously registered with the same name is
+	 * unregistered.
+	 * 
+	 * @return the user that had the same name, or {@code null}
+	 */
+	public UserSession register(UserSession user) {
+		synchronized (writeLock) {
+			final UserSession previous = usersByName.put(user.getName(), user);
+			if (previous != null && previous != user) {
+				usersBySessionId.remove(previous.getSession().getId(),
+						previous);
+				removeFromRoom(previous);
+			}
+			usersBySessionId.put(user.getSession().getId(), user);
+			if (previous != user) {
+				addToRoom(user);
+			}
+			return previous;
+		}
 	}
 
 	public UserSession getByName(String name) {
@@ -45,15 +73,88 @@ public class UserRegistry {
 		return usersBySessionId.get(session.getId());
 	}
 
+	/**
+	 * @return the users of a room, as they were when the method was called.
+	 *         The list cannot be modified
+	 */
+	public List<UserSession> getByRoom(String roomName) {
+		final List<UserSession> users = usersByRoom.get(roomName);
+		return users != null ? users : Collections.<UserSession> emptyList();
+	}
+
 	public boolean exists(String name) {
-		return usersByName.keySet().contains(name);
+		return usersByName.containsKey(name);
 	}
 
+	/**
+	 * @return number of registered users
+	 */
+	public int size() {
+		return usersBySessionId.size();
+	}
+
+	/**
+	 * @return the user of the session, or {@code null} if the session has no
+	 *         registered user
+	 */
 	public UserSession removeBySession(WebSocketSession session) {
-		final UserSession user = getBySession(session);
-		usersByName.remove(user.getName());
-		usersBySessionId.remove(session.getId());
-		return user;
+		synchronized (writeLock) {
+			final UserSession user = usersBySessionId.remove(session.getId());
+			if (user != null) {
+				usersByName.remove(user.getName(), user);
+				removeFromRoom(user);
+			}
+			return user;
+		}
+	}
+
+	/**
+	 * Unregisters a user, unless its session has been registered again for
+	 * another user since.
+	 *
+	 * @return whether the user was registered
+	 */
+	public boolean remove(UserSession user) {
+		synchronized (writeLock) {
+			if (!usersBySessionId.remove(user.getSession().getId(), user)) {
+				return false;
+			}
+			usersByName.remove(user.getName(), user);
+			removeFromRoom(user);
+			return true;
+		}
+	}
+
+	private void addToRoom(UserSession user) {
+		final List<UserSession> users = getByRoom(user.getRoomName());
+		final List<UserSession> updated = new ArrayList<>(users.size() + 1);
+		updated.addAll(users);
+		updated.add(user);
+		usersByRoom.put(user.getRoomName(),
+				Collections.unmodifiableList(updated));
+	}
+
+	/**
+	 * Users are compared by identity, as a user that reconnects with the same
+	 * name is equal to the one it replaces.
+	 */
+	private void removeFromRoom(UserSession user) {
+		final List<UserSession> users = getByRoom(user.getRoomName());
+		final List<UserSession> updated = new ArrayList<>(users.size());
+		for (UserSession other : users) {
+			if (other != user) {
+				updated.add(other);
+			}
+		}
+		if (updated.size() == users.size()) {
+			return;
+		}
+		if (updated.isEmpty()) {
+			usersByRoom.remove(user.getRoomName());
+		} else {
+			usersByRoom.put(user.getRoomName(),
+					Collections.unmodifiableList(updated));
+		}
 	}
 
 }
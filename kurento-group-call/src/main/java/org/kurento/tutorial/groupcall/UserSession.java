@@ -16,24 +16,45 @@ package org.kurento.tutorial.groupcall;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.kurento.client.Composite;
 import org.kurento.client.Continuation;
 import org.kurento.client.EventListener;
+import org.kurento.client.HubPort;
 import org.kurento.client.IceCandidate;
+import org.kurento.client.ListenerSubscription;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
-import org.kurento.client.OnIceCandidateEvent;
+import org.kurento.client.MediaSessionStartedEvent;
+import org.kurento.client.MediaSessionTerminatedEvent;
 import org.kurento.client.WebRtcEndpoint;
-import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.tutorial.signaling.Layer;
+import org.kurento.tutorial.signaling.OutboundQueue;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 /**
+ * Participant of a room. All the operations on the media server are issued
+ * asynchronously, so that signaling threads never wait for the media server.
  * 
  * @author Ivan Gracia (izanmail@gmail.com)
  * @since 4.3.1
@@ -46,45 +67,394 @@ public class UserSession implements Closeable {
 	private final String name;
 	private final WebSocketSession session;
 
-	private final MediaPipeline pipeline;
+	private final ContinuationFuture<MediaPipeline> pipeline;
+	private final MediaServer mediaServer;
 
+	private final Room room;
 	private final String roomName;
-	private final WebRtcEndpoint outgoingMedia;
-	private final ConcurrentMap<String, WebRtcEndpoint> incomingMedia = new ConcurrentHashMap<>();
+	private final ContinuationFuture<WebRtcEndpoint> outgoingMedia;
+	private final ContinuationFuture<HubPort> hubPort;
+	private final ConcurrentMap<String, ContinuationFuture<WebRtcEndpoint>> incomingMedia = new ConcurrentHashMap<>();
 
-	public UserSession(final String name, String roomName,
-			final WebSocketSession session, MediaPipeline pipeline) {
+	private final SignalingStats stats;
+	private final long joinTime = System.nanoTime();
+	private final AtomicBoolean answered = new AtomicBoolean();
+	private final ContinuationFuture<Void> firstAnswer = new ContinuationFuture<>();
+	private volatile long firstAnswerMillis = -1;
+	private final Subscriptions subscriptions = new Subscriptions();
 
-		this.pipeline = pipeline;
+	private final LayeredSource layers;
+	private volatile Layer layer = Layer.HIGH;
+
+	private final boolean speakersOnly;
+	private final ConcurrentMap<Integer, ContinuationFuture<WebRtcEndpoint>> slotMedia = new ConcurrentHashMap<>();
+	private volatile List<UserSession> speakers = Collections.emptyList();
+
+	private final OutboundQueues outboundQueues;
+	private final OutboundQueue outbound;
+
+	private volatile long lastSeen = System.nanoTime();
+	private volatile boolean mediaFlowing;
+	private volatile long mediaStoppedAt = joinTime;
+
+	/**
+	 * @param room
+	 *            the room being joined, whose pipeline may still be being
+	 *            created
+	 */
+	public UserSession(final String name, Room room,
+			final WebSocketSession session) {
+
+		this.pipeline = room.getPipeline();
+		this.mediaServer = room.getMediaServer();
 		this.name = name;
 		this.session = session;
-		this.roomName = roomName;
-		this.outgoingMedia = new WebRtcEndpoint.Builder(pipeline).build();
+		this.outboundQueues = room.getOutboundQueues();
+		this.outbound = room.getOutboundQueue(session);
+		this.room = room;
+		this.roomName = room.getName();
+		this.stats = room.getStats();
+		this.outgoingMedia = createEndpoint(name);
+		this.layers = new LayeredSource(name, pipeline, outgoingMedia);
+		this.speakersOnly = room.getMode() == RoomMode.SPEAKERS;
+		watchMediaSession();
+
+		final ContinuationFuture<Composite> composite = room.getComposite();
+		if (composite != null) {
+			this.hubPort = new ContinuationFuture<>();
+			countEndpoint(hubPort);
+			composite.then(new Continuation<Composite>() {
+				@Override
+				public void onSuccess(Composite result) {
+					new HubPort.Builder(result).buildAsync(hubPort);
+				}
+
+				@Override
+				public void onError(Throwable cause) {
+					hubPort.onError(cause);
+				}
+			});
+			outgoingMedia.then(new Continuation<WebRtcEndpoint>() {
+				@Override
+				public void onSuccess(final WebRtcEndpoint endpoint) {
+					hubPort.then(new Continuation<HubPort>() {
+						@Override
+						public void onSuccess(HubPort port) {
+							endpoint.connect(port, UserSession.this
+									.<Void> logErrors("connect to hub port"));
+							port.connect(endpoint, UserSession.this
+									.<Void> logErrors("connect from hub port"));
+						}
+
+						@Override
+						public void onError(Throwable cause) {
+							log.warn("USER {}: Could not create hub port",
+									UserSession.this.name, cause);
+						}
+					});
+				}
+
+				@Override
+				public void onError(Throwable cause) {
+				}
+			});
+		} else {
+			this.hubPort = null;
+		}
+	}
+
+	/**
+	 * @return the endpoint this participant sends its media through, once it
+	 *         is ready
+	 */
+	public ContinuationFuture<WebRtcEndpoint> getOutgoingWebRtcPeer() {
+		return outgoingMedia;
+	}
+
+	/**
+	 * @param layer
+	 *            the layer a participant receives this sender at
+	 * @return the element that participant has to be connected to
+	 */
+	ContinuationFuture<? extends MediaElement> getSource(Layer layer) {
+		return layers.get(layer);
+	}
+
+	/**
+	 * @return the layer this participant receives the other senders at
+	 */
+	public Layer getLayer() {
+		return layer;
+	}
+
+	/**
+	 * Switches this participant to another layer. The media of the senders it
+	 * receives, apart from the parked ones, comes from the new layer straight
+	 * away, without a new negotiation.
+	 *
+	 * @param senders
+	 *            participants of the same room
+	 */
+	public void selectLayer(Layer newLayer, Collection<UserSession> senders) {
+		if (hubPort != null || newLayer == layer) {
+			return;
+		}
+		log.debug("USER {}: switching from {} to {} layer", name, layer,
+				newLayer);
+		layer = newLayer;
+		// Connecting the new source replaces the connection from the old one
+		for (UserSession sender : senders) {
+			if (!sender.getName().equals(name)
+					&& !subscriptions.isParked(sender.getName())) {
+				connectIncoming(sender, true);
+			}
+		}
+		final List<UserSession> shown = speakers;
+		for (int slot = 0; slot < shown.size(); slot++) {
+			if (shown.get(slot) != null) {
+				connectSlot(slot, shown.get(slot), true);
+			}
+		}
 
-		this.outgoingMedia
-				.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", "layerSelected");
+		message.addProperty("layer", newLayer.name());
+		try {
+			sendMessage(message);
+		} catch (IOException e) {
+			log.debug("USER {}: Could not send layer", name, e);
+		}
+	}
+
+	/**
+	 * Negotiates one of the slots this participant receives the active
+	 * speakers through. The answer is sent as {@code receiveSlotAnswer}, and
+	 * the slot is fed with its current speaker once the endpoint is ready.
+	 *
+	 * @param slot
+	 *            between 0 and the number of slots of the room
+	 * @return the SDP answer, once it has been sent
+	 */
+	public ContinuationFuture<String> receiveSlot(final int slot,
+			final String sdpOffer) {
+		final long start = System.nanoTime();
+		final ContinuationFuture<String> answer = new ContinuationFuture<>();
+		if (!speakersOnly || slot < 0 || slot >= room.getSlots()) {
+			answer.onError(new IllegalArgumentException("No slot " + slot
+					+ " in room " + roomName));
+			return answer;
+		}
+
+		ContinuationFuture<WebRtcEndpoint> endpoint = slotMedia.get(slot);
+		if (endpoint == null) {
+			final ContinuationFuture<WebRtcEndpoint> newEndpoint = new ContinuationFuture<>();
+			endpoint = slotMedia.putIfAbsent(slot, newEndpoint);
+			if (endpoint == null) {
+				final JsonObject header = new JsonObject();
+				header.addProperty("slot", slot);
+				endpoint = createEndpoint(header, newEndpoint);
+			}
+		}
+		final List<UserSession> shown = speakers;
+		if (slot < shown.size() && shown.get(slot) != null) {
+			connectSource(shown.get(slot), endpoint, true);
+		}
 
+		endpoint.then(new Continuation<WebRtcEndpoint>() {
+			@Override
+			public void onSuccess(final WebRtcEndpoint webRtc) {
+				final long processStart = System.nanoTime();
+				webRtc.processOffer(sdpOffer, new Continuation<String>() {
 					@Override
-					public void onEvent(OnIceCandidateEvent event) {
-						JsonObject response = new JsonObject();
-						response.addProperty("id", "iceCandidate");
-						response.addProperty("name", name);
-						response.add("candidate",
-								JsonUtils.toJsonObject(event.getCandidate()));
+					public void onSuccess(String ipSdpAnswer) {
+						stats.getProcessOffer().recordSince(processStart);
+						final JsonObject message = new JsonObject();
+						message.addProperty("id", "receiveSlotAnswer");
+						message.addProperty("slot", slot);
+						message.addProperty("sdpAnswer", ipSdpAnswer);
 						try {
-							synchronized (session) {
-								session.sendMessage(new TextMessage(response
-										.toString()));
-							}
+							sendMessage(message);
 						} catch (IOException e) {
-							log.debug(e.getMessage());
+							log.debug(
+									"USER {}: Could not send answer for slot {}",
+									name, slot, e);
 						}
+						stats.getOfferToAnswer().recordSince(start);
+						webRtc.gatherCandidates(UserSession.this
+								.<Void> logErrors("gather candidates"));
+						answer.onSuccess(ipSdpAnswer);
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+						log.warn("USER {}: Could not process offer for slot {}",
+								name, slot, cause);
+						answer.onError(cause);
 					}
 				});
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				log.warn("USER {}: Could not create endpoint for slot {}",
+						name, slot, cause);
+				answer.onError(cause);
+			}
+		});
+		return answer;
 	}
 
-	public WebRtcEndpoint getOutgoingWebRtcPeer() {
-		return outgoingMedia;
+	/**
+	 * Feeds the slots of this participant with the given speakers. Speakers
+	 * that already have a slot keep it, so only the slots whose speaker
+	 * changes are rewired, and the participant is told about those changes
+	 * with a {@code speakers} message.
+	 *
+	 * @param selected
+	 *            the most active speakers of the room, this participant
+	 *            excluded, most active first
+	 * @param slotCount
+	 *            number of slots of the room
+	 */
+	void showSpeakers(List<UserSession> selected, int slotCount) {
+		final List<UserSession> current = speakers;
+		final List<UserSession> pending = new ArrayList<>(selected);
+		final UserSession[] next = new UserSession[slotCount];
+		for (int slot = 0; slot < slotCount && slot < current.size(); slot++) {
+			final UserSession speaker = current.get(slot);
+			if (speaker != null && pending.remove(speaker)) {
+				next[slot] = speaker;
+			}
+		}
+		for (int slot = 0; slot < slotCount && !pending.isEmpty(); slot++) {
+			if (next[slot] == null) {
+				next[slot] = pending.remove(0);
+			}
+		}
+
+		final List<UserSession> nextSpeakers = Arrays.asList(next);
+		if (nextSpeakers.equals(current)) {
+			return;
+		}
+		speakers = nextSpeakers;
+
+		final JsonArray names = new JsonArray();
+		for (int slot = 0; slot < slotCount; slot++) {
+			final UserSession previous = slot < current.size() ? current
+					.get(slot) : null;
+			if (next[slot] != null && next[slot] != previous) {
+				// Connecting the new speaker replaces the previous one
+				connectSlot(slot, next[slot], true);
+			} else if (next[slot] == null && previous != null) {
+				connectSlot(slot, previous, false);
+			}
+			names.add(next[slot] != null ? new JsonPrimitive(
+					next[slot].getName()) : JsonNull.INSTANCE);
+		}
+
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", "speakers");
+		message.add("slots", names);
+		try {
+			sendMessage(message);
+		} catch (IOException e) {
+			log.debug("USER {}: Could not send speakers", name, e);
+		}
+	}
+
+	private void connectSlot(int slot, UserSession speaker, boolean connect) {
+		final ContinuationFuture<WebRtcEndpoint> endpoint = slotMedia
+				.get(slot);
+		if (endpoint != null) {
+			connectSource(speaker, endpoint, connect);
+		}
+	}
+
+	/**
+	 * Follows the media session of the outgoing endpoint, so that a
+	 * participant whose media stopped can be told apart from a live one.
+	 */
+	private void watchMediaSession() {
+		outgoingMedia.then(new Continuation<WebRtcEndpoint>() {
+			@Override
+			public void onSuccess(WebRtcEndpoint endpoint) {
+				endpoint.addMediaSessionStartedListener(
+						new EventListener<MediaSessionStartedEvent>() {
+							@Override
+							public void onEvent(
+									MediaSessionStartedEvent event) {
+								mediaFlowing = true;
+							}
+						}, UserSession.this.<ListenerSubscription> logErrors(
+								"watch media session"));
+				endpoint.addMediaSessionTerminatedListener(
+						new EventListener<MediaSessionTerminatedEvent>() {
+							@Override
+							public void onEvent(
+									MediaSessionTerminatedEvent event) {
+								mediaStoppedAt = System.nanoTime();
+								mediaFlowing = false;
+							}
+						}, UserSession.this.<ListenerSubscription> logErrors(
+								"watch media session"));
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+			}
+		});
+	}
+
+	/**
+	 * Records that the browser of the participant is still there, because it
+	 * sent a message or answered a ping.
+	 */
+	public void touch() {
+		lastSeen = System.nanoTime();
+	}
+
+	/**
+	 * @return milliseconds since the browser was last heard from
+	 */
+	public long getIdleMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSeen);
+	}
+
+	/**
+	 * @return milliseconds the participant has gone without sending media:
+	 *         since it joined if it never negotiated, since its media session
+	 *         ended if it did, or 0 while media may be flowing
+	 */
+	public long getMediaIdleMillis() {
+		if (firstAnswer.isDone()
+				&& (mediaFlowing || mediaStoppedAt == joinTime)) {
+			// Media servers that do not report media sessions count as live
+			return 0;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- mediaStoppedAt);
+	}
+
+	/**
+	 * Sends a websocket ping, answered by the browser with a pong.
+	 */
+	void ping() {
+		outbound.ping();
+	}
+
+	/**
+	 * @return the endpoints of this participant, how long it waited for its
+	 *         first answer, and the state of its outbound queue
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("name", name);
+		snapshot.put("incoming", incomingMedia.size());
+		snapshot.put("slots", slotMedia.size());
+		snapshot.put("layer", layer.name());
+		snapshot.put("firstAnswerMs", firstAnswerMillis);
+		snapshot.put("outbound", outbound.snapshot());
+		return snapshot;
 	}
 
 	/**
@@ -111,30 +481,135 @@ public class UserSession implements Closeable {
 	}
 
 	/**
+	 * @return the room instance the user joined. After a migration, the user
+	 *         is represented by a new session in the replacement room
+	 */
+	public Room getRoom() {
+		return room;
+	}
+
+	/**
+	 * @return completes once the first SDP answer has been sent to the user
+	 */
+	public ContinuationFuture<Void> getFirstAnswer() {
+		return firstAnswer;
+	}
+
+	/**
+	 * Negotiates the reception of the media of a sender. The answer is sent to
+	 * the participant once the media server has processed the offer.
+	 * 
 	 * @param sender
 	 * @param sdpOffer
-	 * @throws IOException
+	 * @return the SDP answer, once it has been sent
 	 */
-	public void receiveVideoFrom(UserSession sender, String sdpOffer)
-			throws IOException {
+	public ContinuationFuture<String> receiveVideoFrom(
+			final UserSession sender, final String sdpOffer) {
+		final long start = System.nanoTime();
+		final ContinuationFuture<String> answer = new ContinuationFuture<>();
+
+		if (hubPort != null && !sender.getName().equals(name)) {
+			log.warn(
+					"USER {}: ignoring request for video from {}, room {} is mixed",
+					this.name, sender.getName(), this.roomName);
+			answer.onError(new IllegalStateException("Room " + roomName
+					+ " is mixed"));
+			return answer;
+		}
+
+		if (speakersOnly && !sender.getName().equals(name)) {
+			log.warn(
+					"USER {}: ignoring request for video from {}, room {} only forwards speakers",
+					this.name, sender.getName(), this.roomName);
+			answer.onError(new IllegalStateException("Room " + roomName
+					+ " only forwards the active speakers"));
+			return answer;
+		}
+
+		if (!sender.getName().equals(name)) {
+			// A new offer replaces the endpoint of a parked sender
+			if (subscriptions.isParked(sender.getName())) {
+				cancelVideoFrom(sender.getName());
+			}
+			final Subscriptions.Changes changes = subscriptions
+					.subscribe(Collections.singletonList(sender.getName()));
+			if (!changes.rejected.isEmpty()) {
+				log.info("USER {}: too many active senders to receive {}",
+						this.name, sender.getName());
+				sendSubscriptions(changes);
+				answer.onError(new IllegalStateException(
+						"Too many active senders"));
+				return answer;
+			}
+		}
+
 		log.info("USER {}: connecting with {} in room {}", this.name,
 				sender.getName(), this.roomName);
 
 		log.trace("USER {}: SdpOffer for {} is {}", this.name,
 				sender.getName(), sdpOffer);
 
-		final String ipSdpAnswer = this.getEndpointForUser(sender)
-				.processOffer(sdpOffer);
+		this.getEndpointForUser(sender).then(
+				new Continuation<WebRtcEndpoint>() {
+					@Override
+					public void onSuccess(final WebRtcEndpoint endpoint) {
+						final long processStart = System.nanoTime();
+						endpoint.processOffer(sdpOffer,
+								new Continuation<String>() {
+									@Override
+									public void onSuccess(String ipSdpAnswer) {
+										stats.getProcessOffer().recordSince(
+												processStart);
+										sendAnswer(sender.getName(),
+												ipSdpAnswer, start);
+										log.debug("gather candidates");
+										endpoint.gatherCandidates(UserSession.this
+												.<Void> logErrors("gather candidates"));
+										answer.onSuccess(ipSdpAnswer);
+									}
+
+									@Override
+									public void onError(Throwable cause) {
+										log.warn(
+												"USER {}: Could not process offer for {}",
+												name, sender.getName(), cause);
+										answer.onError(cause);
+									}
+								});
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+						log.warn("USER {}: Could not create endpoint for {}",
+								name, sender.getName(), cause);
+						answer.onError(cause);
+					}
+				});
+		return answer;
+	}
+
+	private void sendAnswer(String senderName, String ipSdpAnswer, long start) {
 		final JsonObject scParams = new JsonObject();
 		scParams.addProperty("id", "receiveVideoAnswer");
-		scParams.addProperty("name", sender.getName());
+		scParams.addProperty("name", senderName);
 		scParams.addProperty("sdpAnswer", ipSdpAnswer);
 
-		log.trace("USER {}: SdpAnswer for {} is {}", this.name,
-				sender.getName(), ipSdpAnswer);
-		this.sendMessage(scParams);
-		log.debug("gather candidates");
-		this.getEndpointForUser(sender).gatherCandidates();
+		log.trace("USER {}: SdpAnswer for {} is {}", this.name, senderName,
+				ipSdpAnswer);
+		try {
+			this.sendMessage(scParams);
+		} catch (IOException e) {
+			log.debug("USER {}: Could not send answer for {}", this.name,
+					senderName, e);
+		}
+
+		stats.getOfferToAnswer().recordSince(start);
+		if (answered.compareAndSet(false, true)) {
+			firstAnswerMillis = TimeUnit.NANOSECONDS.toMillis(System
+					.nanoTime() - joinTime);
+			stats.getJoinToFirstAnswer().record(firstAnswerMillis);
+			firstAnswer.onSuccess(null);
+		}
 	}
 
 	/**
@@ -142,49 +617,240 @@ public class UserSession implements Closeable {
 	 *            the user
 	 * @return the endpoint used to receive media from a certain user
 	 */
-	private WebRtcEndpoint getEndpointForUser(final UserSession sender) {
+	private ContinuationFuture<WebRtcEndpoint> getEndpointForUser(
+			final UserSession sender) {
 		if (sender.getName().equals(name)) {
-			log.debug("PARTICIPANT {}: configuring loopback", this.name);
+			log.debug("PARTICIPANT {}: configuring {}", this.name,
+					hubPort != null ? "mixed stream" : "loopback");
 			return outgoingMedia;
 		}
 
 		log.debug("PARTICIPANT {}: receiving video from {}", this.name,
 				sender.getName());
 
-		WebRtcEndpoint incoming = incomingMedia.get(sender.getName());
+		ContinuationFuture<WebRtcEndpoint> incoming = incomingMedia.get(sender
+				.getName());
 		if (incoming == null) {
-			log.debug("PARTICIPANT {}: creating new endpoint for {}",
-					this.name, sender.getName());
-			incoming = new WebRtcEndpoint.Builder(pipeline).build();
+			final ContinuationFuture<WebRtcEndpoint> newIncoming = new ContinuationFuture<>();
+			incoming = incomingMedia.putIfAbsent(sender.getName(), newIncoming);
+			if (incoming == null) {
+				log.debug("PARTICIPANT {}: creating new endpoint for {}",
+						this.name, sender.getName());
+				incoming = createEndpoint(sender.getName(), newIncoming);
+			}
+		}
 
-			incoming.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
+		// The connection is made while the offer is being processed
+		final ContinuationFuture<WebRtcEndpoint> sink = incoming;
+		room.getSource(sender, layer).then(
+				new Continuation<MediaElement>() {
+					@Override
+					public void onSuccess(final MediaElement source) {
+						sink.then(new Continuation<WebRtcEndpoint>() {
+							@Override
+							public void onSuccess(WebRtcEndpoint endpoint) {
+								log.debug(
+										"PARTICIPANT {}: obtained endpoint for {}",
+										name, sender.getName());
+								source.connect(endpoint, UserSession.this
+										.<Void> logErrors("connect with "
+												+ sender.getName()));
+							}
 
-				@Override
-				public void onEvent(OnIceCandidateEvent event) {
-					JsonObject response = new JsonObject();
-					response.addProperty("id", "iceCandidate");
-					response.addProperty("name", sender.getName());
-					response.add("candidate",
-							JsonUtils.toJsonObject(event.getCandidate()));
-					try {
-						synchronized (session) {
-							session.sendMessage(new TextMessage(response
-									.toString()));
-						}
-					} catch (IOException e) {
-						log.debug(e.getMessage());
+							@Override
+							public void onError(Throwable cause) {
+							}
+						});
 					}
-				}
-			});
 
-			incomingMedia.put(sender.getName(), incoming);
+					@Override
+					public void onError(Throwable cause) {
+						log.warn("USER {}: {} has no outgoing endpoint", name,
+								sender.getName());
+					}
+				});
+
+		return incoming;
+	}
+
+	private ContinuationFuture<WebRtcEndpoint> createEndpoint(
+			String senderName) {
+		return createEndpoint(senderName,
+				new ContinuationFuture<WebRtcEndpoint>());
+	}
+
+	private ContinuationFuture<WebRtcEndpoint> createEndpoint(
+			String senderName, ContinuationFuture<WebRtcEndpoint> ready) {
+		final JsonObject header = new JsonObject();
+		header.addProperty("name", senderName);
+		return createEndpoint(header, ready);
+	}
+
+	/**
+	 * Creates an endpoint whose candidates are forwarded to the participant.
+	 * The future completes once the candidates listener is subscribed, so no
+	 * candidate can be gathered before that.
+	 */
+	private ContinuationFuture<WebRtcEndpoint> createEndpoint(
+			final JsonObject header,
+			final ContinuationFuture<WebRtcEndpoint> ready) {
+		countEndpoint(ready);
+		pipeline.then(new Continuation<MediaPipeline>() {
+			@Override
+			public void onSuccess(MediaPipeline result) {
+				new WebRtcEndpoint.Builder(result)
+						.buildAsync(new CandidatesSubscription(header, ready));
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				ready.onError(cause);
+			}
+		});
+		return ready;
+	}
+
+	/**
+	 * Starts receiving media from some senders. Parked senders are connected
+	 * again straight away, and the participant is told which of the other
+	 * senders it has to negotiate with {@code receiveVideoFrom}, and which
+	 * ones exceed its limit of active senders.
+	 *
+	 * @param senders
+	 *            participants of the same room
+	 */
+	public void subscribe(Collection<UserSession> senders) {
+		final Map<String, UserSession> byName = byName(senders);
+		final Subscriptions.Changes changes;
+		if (hubPort != null) {
+			changes = new Subscriptions.Changes();
+			changes.rejected.addAll(byName.keySet());
+		} else {
+			changes = subscriptions.subscribe(byName.keySet());
+		}
+		for (String resumed : changes.resumed) {
+			connectIncoming(byName.get(resumed), true);
 		}
+		sendSubscriptions(changes);
+	}
 
-		log.debug("PARTICIPANT {}: obtained endpoint for {}", this.name,
-				sender.getName());
-		sender.getOutgoingWebRtcPeer().connect(incoming);
+	/**
+	 * Stops receiving media from some senders. Their endpoints are kept for a
+	 * while, so that subscribing to them again does not need a negotiation.
+	 *
+	 * @param senders
+	 *            participants of the same room
+	 */
+	public void unsubscribe(Collection<UserSession> senders) {
+		final Map<String, UserSession> byName = byName(senders);
+		final Subscriptions.Changes changes = subscriptions
+				.unsubscribe(byName.keySet());
+		for (String parked : changes.parked) {
+			connectIncoming(byName.get(parked), false);
+		}
+		for (String released : changes.released) {
+			cancelVideoFrom(released);
+		}
+		sendSubscriptions(changes);
+	}
 
-		return incoming;
+	private Map<String, UserSession> byName(Collection<UserSession> senders) {
+		final Map<String, UserSession> byName = new LinkedHashMap<>();
+		for (UserSession sender : senders) {
+			if (!sender.getName().equals(name)) {
+				byName.put(sender.getName(), sender);
+			}
+		}
+		return byName;
+	}
+
+	/**
+	 * Feeds the endpoint this participant receives a sender through from the
+	 * current source of that sender, if the participant receives it. Used
+	 * when the sender is moved to another room, so that no negotiation is
+	 * needed.
+	 *
+	 * @param sender
+	 *            a participant of the same room, or of a bridged one
+	 */
+	void reconnect(UserSession sender) {
+		if (!sender.getName().equals(name)
+				&& !subscriptions.isParked(sender.getName())) {
+			connectIncoming(sender, true);
+		}
+	}
+
+	/**
+	 * Connects or disconnects the layer of a sender this participant receives
+	 * from the endpoint it receives that sender through, keeping both.
+	 */
+	private void connectIncoming(final UserSession sender,
+			final boolean connect) {
+		final ContinuationFuture<WebRtcEndpoint> incoming = incomingMedia
+				.get(sender.getName());
+		if (incoming != null) {
+			connectSource(sender, incoming, connect);
+		}
+	}
+
+	/**
+	 * Connects or disconnects the layer of a sender this participant receives
+	 * from an endpoint of this participant.
+	 */
+	private void connectSource(final UserSession sender,
+			final ContinuationFuture<WebRtcEndpoint> incoming,
+			final boolean connect) {
+		room.getSource(sender, layer).then(
+				new Continuation<MediaElement>() {
+					@Override
+					public void onSuccess(final MediaElement source) {
+						incoming.then(new Continuation<WebRtcEndpoint>() {
+							@Override
+							public void onSuccess(WebRtcEndpoint sink) {
+								if (connect) {
+									source.connect(sink, UserSession.this
+											.<Void> logErrors("connect "
+													+ sender.getName()));
+								} else {
+									source.disconnect(sink, UserSession.this
+											.<Void> logErrors("disconnect "
+													+ sender.getName()));
+								}
+							}
+
+							@Override
+							public void onError(Throwable cause) {
+							}
+						});
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+					}
+				});
+	}
+
+	private void sendSubscriptions(Subscriptions.Changes changes) {
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", "subscriptions");
+		message.add("negotiate", toJsonArray(changes.negotiate));
+		message.add("resumed", toJsonArray(changes.resumed));
+		message.add("rejected", toJsonArray(changes.rejected));
+		message.add("parked", toJsonArray(changes.parked));
+		message.add("released", toJsonArray(changes.released));
+		try {
+			sendMessage(message);
+		} catch (IOException e) {
+			log.debug("USER {}: Could not send subscriptions", name, e);
+		}
+	}
+
+	private static JsonArray toJsonArray(List<String> names) {
+		final JsonArray array = new JsonArray();
+		for (String name : names) {
+			array.add(new JsonPrimitive(name));
+		}
+		return array;
 	}
 
 	/**
@@ -202,87 +868,215 @@ public class UserSession implements Closeable {
 	public void cancelVideoFrom(final String senderName) {
 		log.debug("PARTICIPANT {}: canceling video reception from {}",
 				this.name, senderName);
-		final WebRtcEndpoint incoming = incomingMedia.remove(senderName);
+		subscriptions.remove(senderName);
+		final ContinuationFuture<WebRtcEndpoint> incoming = incomingMedia
+				.remove(senderName);
+		if (incoming == null) {
+			return;
+		}
 
 		log.debug("PARTICIPANT {}: removing endpoint for {}", this.name,
 				senderName);
-		incoming.release(new Continuation<Void>() {
-			@Override
-			public void onSuccess(Void result) throws Exception {
-				log.trace(
-						"PARTICIPANT {}: Released successfully incoming EP for {}",
-						UserSession.this.name, senderName);
-			}
-
-			@Override
-			public void onError(Throwable cause) throws Exception {
-				log.warn(
-						"PARTICIPANT {}: Could not release incoming EP for {}",
-						UserSession.this.name, senderName);
-			}
-		});
+		release(incoming, "incoming EP for " + senderName);
 	}
 
 	@Override
 	public void close() throws IOException {
+		release();
+	}
+
+	/**
+	 * Releases all the media elements of the participant, in parallel.
+	 *
+	 * @return completes once all of them have been released, or fails if any
+	 *         of them could not be
+	 */
+	public ContinuationFuture<Void> release() {
 		log.debug("PARTICIPANT {}: Releasing resources", this.name);
+		final List<ContinuationFuture<Void>> releases = new ArrayList<>();
 		for (final String remoteParticipantName : incomingMedia.keySet()) {
 
-			log.trace("PARTICIPANT {}: Released incoming EP for {}", this.name,
-					remoteParticipantName);
+			log.trace("PARTICIPANT {}: Releasing incoming EP for {}",
+					this.name, remoteParticipantName);
 
-			final WebRtcEndpoint ep = this.incomingMedia
-					.get(remoteParticipantName);
-
-			ep.release(new Continuation<Void>() {
+			final ContinuationFuture<WebRtcEndpoint> ep = this.incomingMedia
+					.remove(remoteParticipantName);
+			if (ep != null) {
+				releases.add(release(ep, "incoming EP for "
+						+ remoteParticipantName));
+			}
+		}
 
-				@Override
-				public void onSuccess(Void result) throws Exception {
-					log.trace(
-							"PARTICIPANT {}: Released successfully incoming EP for {}",
-							UserSession.this.name, remoteParticipantName);
-				}
+		for (final Integer slot : slotMedia.keySet()) {
+			final ContinuationFuture<WebRtcEndpoint> ep = slotMedia
+					.remove(slot);
+			if (ep != null) {
+				releases.add(release(ep, "slot " + slot));
+			}
+		}
+		speakers = Collections.emptyList();
 
-				@Override
-				public void onError(Throwable cause) throws Exception {
-					log.warn(
-							"PARTICIPANT {}: Could not release incoming EP for {}",
-							UserSession.this.name, remoteParticipantName);
-				}
-			});
+		if (hubPort != null) {
+			releases.add(release(hubPort, "hub port"));
 		}
 
-		outgoingMedia.release(new Continuation<Void>() {
+		releases.add(layers.release(mediaServer.getReleaser()));
+		releases.add(release(outgoingMedia, "outgoing EP"));
+		return ContinuationFuture.all(releases);
+	}
+
+	/**
+	 * Accounts the element in the load of the media server once it has been
+	 * created.
+	 */
+	private void countEndpoint(
+			ContinuationFuture<? extends MediaElement> element) {
+		element.then(new Continuation<MediaElement>() {
+			@Override
+			public void onSuccess(MediaElement result) {
+				mediaServer.endpointCreated();
+				room.endpointCreated();
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+			}
+		});
+	}
 
+	/**
+	 * Releases a media element once it has been created. Nothing is released
+	 * if its creation failed.
+	 */
+	private ContinuationFuture<Void> release(
+			ContinuationFuture<? extends MediaElement> element,
+			String description) {
+		element.then(new Continuation<MediaElement>() {
 			@Override
-			public void onSuccess(Void result) throws Exception {
-				log.trace("PARTICIPANT {}: Released outgoing EP",
-						UserSession.this.name);
+			public void onSuccess(MediaElement result) {
+				mediaServer.endpointReleased();
+				room.endpointReleased();
 			}
 
 			@Override
-			public void onError(Throwable cause) throws Exception {
-				log.warn("USER {}: Could not release outgoing EP",
-						UserSession.this.name);
+			public void onError(Throwable cause) {
 			}
 		});
+		return mediaServer.getReleaser().release(element,
+				"PARTICIPANT " + name + " " + description);
 	}
 
+	private <T> Continuation<T> logErrors(final String operation) {
+		return new Continuation<T>() {
+			@Override
+			public void onSuccess(T result) {
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				log.warn("USER {}: Could not {}", name, operation, cause);
+			}
+		};
+	}
+
+	/**
+	 * Queues a message to the participant. It is written by the outbound queue
+	 * of the session, so the calling thread never waits for the participant.
+	 */
 	public void sendMessage(JsonObject message) throws IOException {
 		log.debug("USER {}: Sending message {}", name, message);
-		synchronized (session) {
-			session.sendMessage(new TextMessage(message.toString()));
-		}
+		outbound.send(new TextMessage(message.toString()));
 	}
 
-	public void addCandidate(IceCandidate e, String name) {
+	/**
+	 * Queues an already serialized notification.
+	 *
+	 * @param message
+	 *            the notification
+	 */
+	void sendNotification(TextMessage message) {
+		outbound.send(message);
+	}
+
+	/**
+	 * Applies a candidate as soon as the endpoint it is meant for is ready.
+	 */
+	public void addCandidate(final IceCandidate e, String name) {
+		final ContinuationFuture<WebRtcEndpoint> webRtc;
 		if (this.name.compareTo(name) == 0) {
-			outgoingMedia.addIceCandidate(e);
+			webRtc = outgoingMedia;
 		} else {
-			WebRtcEndpoint webRtc = incomingMedia.get(name);
-			if (webRtc != null) {
-				webRtc.addIceCandidate(e);
-			}
+			webRtc = incomingMedia.get(name);
+		}
+		addCandidate(e, webRtc);
+	}
+
+	/**
+	 * Applies a candidate for one of the slots the active speakers are
+	 * received through.
+	 */
+	public void addSlotCandidate(IceCandidate e, int slot) {
+		addCandidate(e, slotMedia.get(slot));
+	}
+
+	private void addCandidate(final IceCandidate e,
+			ContinuationFuture<WebRtcEndpoint> webRtc) {
+		if (webRtc != null) {
+			webRtc.then(new Continuation<WebRtcEndpoint>() {
+				@Override
+				public void onSuccess(WebRtcEndpoint endpoint) {
+					endpoint.addIceCandidate(e, UserSession.this
+							.<Void> logErrors("add candidate"));
+				}
+
+				@Override
+				public void onError(Throwable cause) {
+				}
+			});
+		}
+	}
+
+	/**
+	 * Subscribes the candidates listener of a new endpoint, and then hands the
+	 * endpoint over.
+	 */
+	private class CandidatesSubscription implements
+			Continuation<WebRtcEndpoint> {
+
+		private final JsonObject header;
+		private final ContinuationFuture<WebRtcEndpoint> ready;
+
+		/**
+		 * @param header
+		 *            fields added to every candidate sent to the participant,
+		 *            to tell which endpoint it belongs to
+		 */
+		CandidatesSubscription(JsonObject header,
+				ContinuationFuture<WebRtcEndpoint> ready) {
+			this.header = header;
+			this.ready = ready;
+		}
+
+		@Override
+		public void onSuccess(final WebRtcEndpoint endpoint) {
+			endpoint.addOnIceCandidateListener(
+					outboundQueues.iceCandidateForwarder(session, header),
+					new Continuation<ListenerSubscription>() {
+					@Override
+					public void onSuccess(ListenerSubscription subscription) {
+						ready.onSuccess(endpoint);
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+						ready.onError(cause);
+					}
+				});
+		}
+
+		@Override
+		public void onError(Throwable cause) {
+			ready.onError(cause);
 		}
 	}
 
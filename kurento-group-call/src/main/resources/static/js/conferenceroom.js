@@ -13,9 +13,18 @@
  *
  */
 
-var ws = new WebSocket('ws://' + location.host + '/groupcall');
+var ws = new WebSocket('ws://' + location.host + '/groupcall?iceBatch=true');
 var participants = {};
 var name;
+var mixed = false;
+var speakersOnly = false;
+// Rooms that only forward the active speakers are received through slots
+var slots = [];
+var audioLevel;
+// Connections of the previous room, kept while a migration is under way
+var retiring;
+
+const AUDIO_LEVEL_MILLIS = 250;
 
 window.onbeforeunload = function() {
 	ws.close();
@@ -29,31 +38,68 @@ ws.onmessage = function(message) {
 	case 'existingParticipants':
 		onExistingParticipants(parsedMessage);
 		break;
-	case 'newParticipantArrived':
-		onNewParticipant(parsedMessage);
+	case 'queued':
+		onQueued(parsedMessage);
+		break;
+	case 'roomFull':
+		onRoomFull(parsedMessage);
+		break;
+	case 'migrate':
+		onMigrate(parsedMessage);
 		break;
-	case 'participantLeft':
-		onParticipantLeft(parsedMessage);
+	case 'migrated':
+		onMigrated();
+		break;
+	case 'participantsDelta':
+		onParticipantsDelta(parsedMessage);
 		break;
 	case 'receiveVideoAnswer':
 		receiveVideoResponse(parsedMessage);
 		break;
+	case 'receiveSlotAnswer':
+		receiveVideoResponse(parsedMessage);
+		break;
+	case 'speakers':
+		onSpeakers(parsedMessage);
+		break;
 	case 'iceCandidate':
-		participants[parsedMessage.name].rtcPeer.addIceCandidate(parsedMessage.candidate, function (error) {
-	        if (error) {
-		      console.error("Error adding candidate: " + error);
-		      return;
-	        }
-	    });
-	    break;
+		addIceCandidate(parsedMessage, parsedMessage.candidate);
+		break;
+	case 'iceCandidates':
+		parsedMessage.candidates.forEach(function(candidate) {
+			addIceCandidate(parsedMessage, candidate);
+		});
+		break;
 	default:
 		console.error('Unrecognized message', parsedMessage);
 	}
 }
 
+/**
+ * @return the participant or slot a message from the server is about
+ */
+function participantFor(message) {
+	return message.slot !== undefined ? slots[message.slot]
+			: participants[message.name];
+}
+
+function addIceCandidate(message, candidate) {
+	var participant = participantFor(message);
+	if (!participant) {
+		// Candidates of a connection already disposed of
+		return;
+	}
+	participant.rtcPeer.addIceCandidate(candidate, function (error) {
+		if (error) {
+			console.error("Error adding candidate: " + error);
+		}
+	});
+}
+
 function register() {
 	name = document.getElementById('name').value;
 	var room = document.getElementById('roomName').value;
+	var mode = document.getElementById('roomMode').value;
 
 	document.getElementById('room-header').innerText = 'ROOM ' + room;
 	document.getElementById('join').style.display = 'none';
@@ -63,16 +109,46 @@ function register() {
 		id : 'joinRoom',
 		name : name,
 		room : room,
+		mode : mode
 	}
 	sendMessage(message);
 }
 
+function onQueued(request) {
+	document.getElementById('room-header').innerText = 'ROOM ' + request.room
+			+ ' is full, waiting to join (position ' + request.position + ')';
+}
+
+function onRoomFull(request) {
+	var reason = request.limit === 'server' ? 'The server is at capacity'
+			: 'The room is full';
+	alert(reason + ', please try joining ' + request.room + ' later');
+	document.getElementById('join').style.display = 'block';
+	document.getElementById('room').style.display = 'none';
+}
+
+function onParticipantsDelta(request) {
+	request.left.forEach(function(participantName) {
+		onParticipantLeft({ name : participantName });
+	});
+	request.joined.forEach(function(participantName) {
+		// Deltas may include ourselves or participants we already know
+		if (participantName !== name && !participants[participantName]) {
+			onNewParticipant({ name : participantName });
+		}
+	});
+}
+
 function onNewParticipant(request) {
+	if (mixed || speakersOnly) {
+		// The new participant is already part of the mixed stream
+		return;
+	}
 	receiveVideo(request.name);
 }
 
 function receiveVideoResponse(result) {
-	participants[result.name].rtcPeer.processAnswer (result.sdpAnswer, function (error) {
+	participantFor(result).rtcPeer.processAnswer (result.sdpAnswer, function (error) {
 		if (error) return console.error (error);
 	});
 }
@@ -89,6 +165,9 @@ function callResponse(message) {
 }
 
 function onExistingParticipants(msg) {
+	// We may have been waiting for a place in the room
+	document.getElementById('room-header').innerText = 'ROOM '
+			+ document.getElementById('roomName').value;
 	var constraints = {
 		audio : true,
 		video : {
@@ -100,24 +179,167 @@ function onExistingParticipants(msg) {
 		}
 	};
 	console.log(name + " registered in room " + room);
+	mixed = msg.mode === 'mixed';
+	speakersOnly = msg.mode === 'speakers';
 	var participant = new Participant(name);
 	participants[name] = participant;
 	var video = participant.getVideoElement();
 
 	var options = {
-	      localVideo: video,
 	      mediaConstraints: constraints,
 	      onicecandidate: participant.onIceCandidate.bind(participant)
 	    }
-	participant.rtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerSendonly(options,
+	var WebRtcPeer;
+	if (mixed) {
+		// A single endpoint both sends our media and receives the mix
+		options.remoteVideo = video;
+		WebRtcPeer = kurentoUtils.WebRtcPeer.WebRtcPeerSendrecv;
+	} else {
+		options.localVideo = video;
+		WebRtcPeer = kurentoUtils.WebRtcPeer.WebRtcPeerSendonly;
+	}
+	participant.rtcPeer = new WebRtcPeer(options,
 		function (error) {
 		  if(error) {
 			  return console.error(error);
 		  }
 		  this.generateOffer (participant.offerToReceiveVideo.bind(participant));
+		  if (speakersOnly) {
+			  reportAudioLevel(this.getLocalStream());
+		  }
+	});
+
+	if (speakersOnly) {
+		for (var slot = 0; slot < msg.slots; slot++) {
+			receiveSlot(slot);
+		}
+	} else if (!mixed) {
+		msg.data.forEach(receiveVideo);
+	}
+}
+
+function receiveSlot(slot) {
+	var participant = new Participant('slot' + slot, slot);
+	participant.setLabel('');
+	slots[slot] = participant;
+
+	var options = {
+      remoteVideo: participant.getVideoElement(),
+      onicecandidate: participant.onIceCandidate.bind(participant)
+    }
+
+	participant.rtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerRecvonly(options,
+			function (error) {
+			  if(error) {
+				  return console.error(error);
+			  }
+			  this.generateOffer (participant.offerToReceiveVideo.bind(participant));
 	});
+}
 
-	msg.data.forEach(receiveVideo);
+/**
+ * The server rewired some slots to other speakers: only their labels change.
+ */
+function onSpeakers(msg) {
+	msg.slots.forEach(function(speaker, slot) {
+		if (slots[slot]) {
+			slots[slot].setLabel(speaker || '');
+		}
+	});
+}
+
+/**
+ * Sends the level of our microphone to the server a few times per second,
+ * while we are not silent, so that it can pick the active speakers.
+ */
+function reportAudioLevel(stream) {
+	var AudioContext = window.AudioContext || window.webkitAudioContext;
+	if (!AudioContext || !stream) {
+		return;
+	}
+	var context = new AudioContext();
+	var analyser = context.createAnalyser();
+	analyser.fftSize = 512;
+	context.createMediaStreamSource(stream).connect(analyser);
+	var samples = new Uint8Array(analyser.fftSize);
+	var lastLevel = 0;
+
+	var timer = setInterval(function() {
+		analyser.getByteTimeDomainData(samples);
+		var sum = 0;
+		for (var i = 0; i < samples.length; i++) {
+			var sample = (samples[i] - 128) / 128;
+			sum += sample * sample;
+		}
+		var level = Math.min(1, 4 * Math.sqrt(sum / samples.length));
+		level = Math.round(level * 100) / 100;
+		if (level >= 0.02 || lastLevel >= 0.02) {
+			sendMessage({
+				id : 'audioLevel',
+				level : level
+			});
+		}
+		lastLevel = level;
+	}, AUDIO_LEVEL_MILLIS);
+
+	audioLevel = {
+		stop : function() {
+			clearInterval(timer);
+			context.close();
+		}
+	};
+}
+
+/**
+ * Disposes of every connection: participants, slots and the level reports.
+ */
+function disposeAll() {
+	dispose({
+		participants : participants,
+		slots : slots,
+		audioLevel : audioLevel
+	});
+	participants = {};
+	slots = [];
+	audioLevel = undefined;
+	onMigrated();
+}
+
+function dispose(connections) {
+	for ( var key in connections.participants) {
+		connections.participants[key].dispose();
+	}
+	connections.slots.forEach(function(slot) {
+		slot.dispose();
+	});
+	if (connections.audioLevel) {
+		connections.audioLevel.stop();
+	}
+}
+
+/**
+ * The room has been moved to another media server: every connection is set up
+ * again with the participants listed in the message. The previous ones keep
+ * playing until the server tells us it has released them.
+ */
+function onMigrate(msg) {
+	onMigrated();
+	retiring = {
+		participants : participants,
+		slots : slots,
+		audioLevel : audioLevel
+	};
+	participants = {};
+	slots = [];
+	audioLevel = undefined;
+	onExistingParticipants(msg);
+}
+
+function onMigrated() {
+	if (retiring) {
+		dispose(retiring);
+		retiring = undefined;
+	}
 }
 
 function leaveRoom() {
@@ -125,9 +347,7 @@ function leaveRoom() {
 		id : 'leaveRoom'
 	});
 
-	for ( var key in participants) {
-		participants[key].dispose();
-	}
+	disposeAll();
 
 	document.getElementById('join').style.display = 'block';
 	document.getElementById('room').style.display = 'none';
@@ -157,6 +377,9 @@ function receiveVideo(sender) {
 function onParticipantLeft(request) {
 	console.log('Participant ' + request.name + ' left');
 	var participant = participants[request.name];
+	if (!participant || request.name === name) {
+		return;
+	}
 	participant.dispose();
 	delete participants[request.name];
 }
@@ -15,6 +15,7 @@
 
 const PARTICIPANT_MAIN_CLASS = 'participant main';
 const PARTICIPANT_CLASS = 'participant';
+const ICE_BATCH_MILLIS = 10;
 
 /**
  * Creates a video element for a new participant
@@ -22,9 +23,11 @@ const PARTICIPANT_CLASS = 'participant';
  * @param {String} name - the name of the new participant, to be used as tag
  *                        name of the video element.
  *                        The tag of the new element will be 'video<name>'
+ * @param {Number} slot - optional, the slot of the active speakers this
+ *                        element shows, in rooms that only forward speakers
  * @return
  */
-function Participant(name) {
+function Participant(name, slot) {
 	this.name = name;
 	var container = document.createElement('div');
 	container.className = isPresentMainParticipant() ? PARTICIPANT_CLASS : PARTICIPANT_MAIN_CLASS;
@@ -53,6 +56,10 @@ function Participant(name) {
 		return video;
 	}
 
+	this.setLabel = function(label) {
+		span.textContent = label;
+	}
+
 	function switchContainerClass() {
 		if (container.className === PARTICIPANT_CLASS) {
 			var elements = Array.prototype.slice.call(document.getElementsByClassName(PARTICIPANT_MAIN_CLASS));
@@ -77,25 +84,49 @@ function Participant(name) {
 				sender : name,
 				sdpOffer : offerSdp
 			};
+		if (slot !== undefined) {
+			msg = { id : "receiveSlot",
+				slot : slot,
+				sdpOffer : offerSdp
+			};
+		}
 		sendMessage(msg);
 	}
 
 
+	var pendingCandidates = [];
+	var disposed = false;
+
+	// Candidates gathered within a few milliseconds are sent together
 	this.onIceCandidate = function (candidate, wp) {
-		  console.log("Local candidate" + JSON.stringify(candidate));
-
-		  var message = {
-		    id: 'onIceCandidate',
-		    candidate: candidate,
-		    name: name
-		  };
-		  sendMessage(message);
+		console.log("Local candidate" + JSON.stringify(candidate));
+
+		pendingCandidates.push(candidate);
+		if (pendingCandidates.length > 1) {
+			return;
+		}
+		setTimeout(function() {
+			if (disposed) {
+				return;
+			}
+			var message = {
+				id: 'onIceCandidates',
+				candidates: pendingCandidates,
+				name: name
+			};
+			if (slot !== undefined) {
+				message.slot = slot;
+			}
+			pendingCandidates = [];
+			sendMessage(message);
+		}, ICE_BATCH_MILLIS);
 	}
 
 	Object.defineProperty(this, 'rtcPeer', { writable: true});
 
 	this.dispose = function() {
 		console.log('Disposing participant ' + this.name);
+		disposed = true;
 		this.rtcPeer.dispose();
 		container.parentNode.removeChild(container);
 	};
@@ -15,6 +15,7 @@
 package org.kurento.tutorial.helloworld;
 
 import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -46,6 +47,11 @@ public class HelloWorldApp implements WebSocketConfigurer {
 		return KurentoClient.create(System.getProperty("kms.ws.uri", DEFAULT_KMS_WS_URI));
 	}
 
+	@Bean
+	public OutboundQueues outboundQueues() {
+		return new OutboundQueues();
+	}
+
 	@Override
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
 		registry.addHandler(handler(), "/helloworld");
@@ -14,25 +14,23 @@
  */
 package org.kurento.tutorial.helloworld;
 
-import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
-import org.kurento.client.OnIceCandidateEvent;
 import org.kurento.client.WebRtcEndpoint;
-import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.kurento.tutorial.signaling.SignalingCodec;
+import org.kurento.tutorial.signaling.SignalingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 /**
@@ -45,20 +43,22 @@ import com.google.gson.JsonObject;
 public class HelloWorldHandler extends TextWebSocketHandler {
 
 	private final Logger log = LoggerFactory.getLogger(HelloWorldHandler.class);
-	private static final Gson gson = new GsonBuilder().create();
 
 	@Autowired
 	private KurentoClient kurento;
 
+	@Autowired
+	private OutboundQueues outboundQueues;
+
 	private final ConcurrentHashMap<String, UserSession> users = new ConcurrentHashMap<String, UserSession>();
 
 	@Override
 	public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-		JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
+		SignalingMessage jsonMessage = SignalingCodec.decode(message.getPayload());
 
 		log.debug("Incoming message: {}", jsonMessage);
 
-		switch (jsonMessage.get("id").getAsString()) {
+		switch (jsonMessage.getId()) {
 		case "start":
 			start(session, jsonMessage);
 			break;
@@ -69,24 +69,23 @@ public class HelloWorldHandler extends TextWebSocketHandler {
 			}
 			break;
 		}
-		case "onIceCandidate": {
-			JsonObject jsonCandidate = jsonMessage.get("candidate").getAsJsonObject();
-
+		case "onIceCandidate":
+		case "onIceCandidates": {
 			UserSession user = users.get(session.getId());
 			if (user != null) {
-				IceCandidate candidate = new IceCandidate(jsonCandidate.get("candidate").getAsString(),
-						jsonCandidate.get("sdpMid").getAsString(), jsonCandidate.get("sdpMLineIndex").getAsInt());
-				user.addCandidate(candidate);
+				for (IceCandidate candidate : jsonMessage.getCandidates()) {
+					user.addCandidate(candidate);
+				}
 			}
 			break;
 		}
 		default:
-			sendError(session, "Invalid message with id " + jsonMessage.get("id").getAsString());
+			sendError(session, "Invalid message with id " + jsonMessage.getId());
 			break;
 		}
 	}
 
-	private void start(final WebSocketSession session, JsonObject jsonMessage) {
+	private void start(final WebSocketSession session, SignalingMessage jsonMessage) {
 		try {
 			// 1. Media logic (webRtcEndpoint in loopback)
 			MediaPipeline pipeline = kurento.createMediaPipeline();
@@ -100,33 +99,17 @@ public class HelloWorldHandler extends TextWebSocketHandler {
 			users.put(session.getId(), user);
 
 			// 3. SDP negotiation
-			String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
+			String sdpOffer = jsonMessage.getSdpOffer();
 			String sdpAnswer = webRtcEndpoint.processOffer(sdpOffer);
 
 			JsonObject response = new JsonObject();
 			response.addProperty("id", "startResponse");
 			response.addProperty("sdpAnswer", sdpAnswer);
 
-			synchronized (session) {
-				session.sendMessage(new TextMessage(response.toString()));
-			}
+			outboundQueues.get(session).send(new TextMessage(response.toString()));
 
 			// 4. Gather ICE candidates
-			webRtcEndpoint.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-				@Override
-				public void onEvent(OnIceCandidateEvent event) {
-					JsonObject response = new JsonObject();
-					response.addProperty("id", "iceCandidate");
-					response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-					try {
-						synchronized (session) {
-							session.sendMessage(new TextMessage(response.toString()));
-						}
-					} catch (IOException e) {
-						log.error(e.getMessage());
-					}
-				}
-			});
+			webRtcEndpoint.addOnIceCandidateListener(outboundQueues.iceCandidateForwarder(session));
 			webRtcEndpoint.gatherCandidates();
 
 		} catch (Throwable t) {
@@ -134,14 +117,15 @@ public class HelloWorldHandler extends TextWebSocketHandler {
 		}
 	}
 
+	@Override
+	public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+		outboundQueues.remove(session);
+	}
+
 	private void sendError(WebSocketSession session, String message) {
-		try {
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "error");
-			response.addProperty("message", message);
-			session.sendMessage(new TextMessage(response.toString()));
-		} catch (IOException e) {
-			log.error("Exception sending message", e);
-		}
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "error");
+		response.addProperty("message", message);
+		outboundQueues.get(session).send(new TextMessage(response.toString()));
 	}
 }
@@ -15,6 +15,7 @@
 package org.kurento.tutorial.magicmirror;
 
 import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -48,6 +49,11 @@ public class MagicMirrorApp implements WebSocketConfigurer {
 				DEFAULT_KMS_WS_URI));
 	}
 
+	@Bean
+	public OutboundQueues outboundQueues() {
+		return new OutboundQueues();
+	}
+
 	@Override
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
 		registry.addHandler(handler(), "/magicmirror");
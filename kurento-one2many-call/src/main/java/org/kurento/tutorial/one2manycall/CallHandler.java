@@ -14,16 +14,11 @@
  */
 package org.kurento.tutorial.one2manycall;
 
-import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
-
-import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
-import org.kurento.client.MediaPipeline;
-import org.kurento.client.OnIceCandidateEvent;
-import org.kurento.client.WebRtcEndpoint;
-import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.tutorial.signaling.Layer;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.kurento.tutorial.signaling.SignalingCodec;
+import org.kurento.tutorial.signaling.SignalingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,12 +27,12 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 /**
- * Protocol handler for 1 to N video call communication.
+ * Protocol handler for 1 to N video call communication. Every message may name
+ * the broadcast channel it is meant for. Viewers are negotiated once their
+ * turn comes in the {@link JoinQueue}.
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @since 5.0.0
@@ -45,61 +40,79 @@ import com.google.gson.JsonObject;
 public class CallHandler extends TextWebSocketHandler {
 
 	private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
-	private static final Gson gson = new GsonBuilder().create();
 
-	private final ConcurrentHashMap<String, UserSession> viewers = new ConcurrentHashMap<String, UserSession>();
+	/**
+	 * Channel of the clients that do not name one
+	 */
+	static final String DEFAULT_CHANNEL = "default";
+
+	/**
+	 * Whether viewers receive the presenter at the layer that fits the
+	 * bandwidth they report
+	 */
+	static final String LAYERS_PROPERTY = "one2many.layers";
 
 	@Autowired
-	private KurentoClient kurento;
+	private ChannelRegistry channels;
 
-	private MediaPipeline pipeline;
-	private UserSession presenterUserSession;
+	@Autowired
+	private JoinQueue joinQueue;
+
+	@Autowired
+	private OutboundQueues outboundQueues;
 
 	@Override
 	public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-		JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
+		SignalingMessage jsonMessage = SignalingCodec.decode(message.getPayload());
 		log.debug("Incoming message from session '{}': {}", session.getId(), jsonMessage);
 
-		switch (jsonMessage.get("id").getAsString()) {
+		String channelName = jsonMessage.has("channel") ? jsonMessage.getString("channel") : DEFAULT_CHANNEL;
+		switch (jsonMessage.getId()) {
 		case "presenter":
 			try {
-				presenter(session, jsonMessage);
+				channels.presenter(channelName, session, jsonMessage.getSdpOffer());
 			} catch (Throwable t) {
 				stop(session);
 				log.error(t.getMessage(), t);
-				JsonObject response = new JsonObject();
-				response.addProperty("id", "presenterResponse");
-				response.addProperty("response", "rejected");
-				response.addProperty("message", t.getMessage());
-				session.sendMessage(new TextMessage(response.toString()));
+				reject(session, "presenterResponse", t.getMessage());
 			}
 			break;
-		case "viewer":
-			try {
-				viewer(session, jsonMessage);
-			} catch (Throwable t) {
-				stop(session);
-				log.error(t.getMessage(), t);
-				JsonObject response = new JsonObject();
-				response.addProperty("id", "viewerResponse");
-				response.addProperty("response", "rejected");
-				response.addProperty("message", t.getMessage());
-				session.sendMessage(new TextMessage(response.toString()));
+		case "viewer": {
+			UserSession viewer = channels.startJoin(session);
+			if (!joinQueue.submit(session, viewerJoin(viewer, channelName, jsonMessage))) {
+				channels.endJoin(viewer);
+				reject(session, "viewerResponse", "Too many viewers are joining right now. Try again later ...");
 			}
 			break;
-		case "onIceCandidate": {
-			JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
-
-			UserSession user = null;
-			if (presenterUserSession.getSession() == session) {
-				user = presenterUserSession;
-			} else {
-				user = viewers.get(session.getId());
+		}
+		case "onIceCandidate":
+		case "onIceCandidates": {
+			// The viewer is only bound to its channel once its join is run
+			UserSession viewer = channels.getJoining(session);
+			if (viewer != null) {
+				for (IceCandidate candidate : jsonMessage.getCandidates()) {
+					viewer.addCandidate(candidate);
+				}
+				break;
 			}
-			if (user != null) {
-				IceCandidate cand = new IceCandidate(candidate.get("candidate").getAsString(),
-						candidate.get("sdpMid").getAsString(), candidate.get("sdpMLineIndex").getAsInt());
-				user.addCandidate(cand);
+			Channel channel = channels.getBySession(session);
+			if (channel != null) {
+				channel.addCandidates(session, jsonMessage.getCandidates());
+			}
+			break;
+		}
+		case "bandwidth":
+			if (Layer.isEnabled(LAYERS_PROPERTY)) {
+				Channel channel = channels.getBySession(session);
+				if (channel != null) {
+					channel.selectLayer(session, Layer.forBandwidth(jsonMessage.getInt("kbps")));
+				}
+			}
+			break;
+		case "firstFrame": {
+			Channel channel = channels.getBySession(session);
+			if (channel != null) {
+				channel.firstFrame(session);
 			}
 			break;
 		}
@@ -111,137 +124,52 @@ public class CallHandler extends TextWebSocketHandler {
 		}
 	}
 
-	private synchronized void presenter(final WebSocketSession session, JsonObject jsonMessage) throws IOException {
-		if (presenterUserSession == null) {
-			presenterUserSession = new UserSession(session);
-
-			pipeline = kurento.createMediaPipeline();
-			presenterUserSession.setWebRtcEndpoint(new WebRtcEndpoint.Builder(pipeline).build());
-
-			WebRtcEndpoint presenterWebRtc = presenterUserSession.getWebRtcEndpoint();
-
-			presenterWebRtc.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-
-				@Override
-				public void onEvent(OnIceCandidateEvent event) {
-					JsonObject response = new JsonObject();
-					response.addProperty("id", "iceCandidate");
-					response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-					try {
-						synchronized (session) {
-							session.sendMessage(new TextMessage(response.toString()));
-						}
-					} catch (IOException e) {
-						log.debug(e.getMessage());
+	private Runnable viewerJoin(final UserSession viewer, final String channelName, final SignalingMessage jsonMessage) {
+		final WebSocketSession session = viewer.getSession();
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Channel channel = channels.get(channelName);
+					if (channel == null) {
+						reject(session, "viewerResponse", "No active sender now. Become sender or . Try again later ...");
+					} else {
+						channel.viewer(viewer, jsonMessage.getSdpOffer(),
+								jsonMessage.has("kbps") ? jsonMessage.getInt("kbps") : null);
 					}
+				} catch (Throwable t) {
+					stop(session);
+					log.error(t.getMessage(), t);
+					reject(session, "viewerResponse", t.getMessage());
+				} finally {
+					// Bound to its channel by now, if it was accepted
+					channels.endJoin(viewer);
 				}
-			});
-
-			String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
-			String sdpAnswer = presenterWebRtc.processOffer(sdpOffer);
-
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "presenterResponse");
-			response.addProperty("response", "accepted");
-			response.addProperty("sdpAnswer", sdpAnswer);
-
-			synchronized (session) {
-				presenterUserSession.sendMessage(response);
 			}
-			presenterWebRtc.gatherCandidates();
-
-		} else {
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "presenterResponse");
-			response.addProperty("response", "rejected");
-			response.addProperty("message", "Another user is currently acting as sender. Try again later ...");
-			session.sendMessage(new TextMessage(response.toString()));
-		}
+		};
 	}
 
-	private synchronized void viewer(final WebSocketSession session, JsonObject jsonMessage) throws IOException {
-		if (presenterUserSession == null || presenterUserSession.getWebRtcEndpoint() == null) {
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "viewerResponse");
-			response.addProperty("response", "rejected");
-			response.addProperty("message", "No active sender now. Become sender or . Try again later ...");
-			session.sendMessage(new TextMessage(response.toString()));
-		} else {
-			if (viewers.containsKey(session.getId())) {
-				JsonObject response = new JsonObject();
-				response.addProperty("id", "viewerResponse");
-				response.addProperty("response", "rejected");
-				response.addProperty("message",
-						"You are already viewing in this session. Use a different browser to add additional viewers.");
-				session.sendMessage(new TextMessage(response.toString()));
-				return;
-			}
-			UserSession viewer = new UserSession(session);
-			viewers.put(session.getId(), viewer);
-
-			String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
-
-			WebRtcEndpoint nextWebRtc = new WebRtcEndpoint.Builder(pipeline).build();
-
-			nextWebRtc.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-
-				@Override
-				public void onEvent(OnIceCandidateEvent event) {
-					JsonObject response = new JsonObject();
-					response.addProperty("id", "iceCandidate");
-					response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-					try {
-						synchronized (session) {
-							session.sendMessage(new TextMessage(response.toString()));
-						}
-					} catch (IOException e) {
-						log.debug(e.getMessage());
-					}
-				}
-			});
-
-			viewer.setWebRtcEndpoint(nextWebRtc);
-			presenterUserSession.getWebRtcEndpoint().connect(nextWebRtc);
-			String sdpAnswer = nextWebRtc.processOffer(sdpOffer);
-
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "viewerResponse");
-			response.addProperty("response", "accepted");
-			response.addProperty("sdpAnswer", sdpAnswer);
-
-			synchronized (session) {
-				viewer.sendMessage(response);
-			}
-			nextWebRtc.gatherCandidates();
-		}
+	private void reject(WebSocketSession session, String responseId, String message) {
+		JsonObject response = new JsonObject();
+		response.addProperty("id", responseId);
+		response.addProperty("response", "rejected");
+		response.addProperty("message", message);
+		outboundQueues.get(session).send(new TextMessage(response.toString()));
 	}
 
-	private synchronized void stop(WebSocketSession session) throws IOException {
-		String sessionId = session.getId();
-		if (presenterUserSession != null && presenterUserSession.getSession().getId().equals(sessionId)) {
-			for (UserSession viewer : viewers.values()) {
-				JsonObject response = new JsonObject();
-				response.addProperty("id", "stopCommunication");
-				viewer.sendMessage(response);
-			}
-
-			log.info("Releasing media pipeline");
-			if (pipeline != null) {
-				pipeline.release();
-			}
-			pipeline = null;
-			presenterUserSession = null;
-		} else if (viewers.containsKey(sessionId)) {
-			if (viewers.get(sessionId).getWebRtcEndpoint() != null) {
-				viewers.get(sessionId).getWebRtcEndpoint().release();
-			}
-			viewers.remove(sessionId);
+	private void stop(WebSocketSession session) {
+		joinQueue.cancel(session);
+		channels.cancelJoin(session);
+		Channel channel = channels.unbind(session);
+		if (channel != null) {
+			channel.stop(session);
 		}
 	}
 
 	@Override
 	public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
 		stop(session);
+		outboundQueues.remove(session);
 	}
 
 }
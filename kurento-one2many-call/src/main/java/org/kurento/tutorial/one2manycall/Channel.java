@@ -0,0 +1,374 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kurento.client.EventListener;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaSessionStartedEvent;
+import org.kurento.client.PassThrough;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.tutorial.signaling.Layer;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A named broadcast, with its presenter, the pipelines it is relayed over and
+ * its viewers.
+ * <p>
+ * Only the arrival and departure of the presenter lock the channel. Viewers
+ * are negotiated concurrently, even within the same channel. Their endpoints
+ * are taken from the pool of their pipeline, and a keyframe is requested as
+ * soon as their media starts, so that they do not wait for the next periodic
+ * one.
+ *
+ * @since 6.0.0
+ */
+public class Channel {
+
+	private static final Logger log = LoggerFactory.getLogger(Channel.class);
+
+	private final String name;
+	private final RelayTree relayTree;
+	private final KeyframeRequester keyframes;
+	private final TokenBucket kmsCalls;
+	private final ChannelRegistry registry;
+	private final OutboundQueues outboundQueues;
+	private final ConcurrentHashMap<String, UserSession> viewers = new ConcurrentHashMap<>();
+	private final LatencyHistogram mediaStarted = new LatencyHistogram();
+	private final LatencyHistogram firstFrame = new LatencyHistogram();
+
+	private volatile UserSession presenter;
+	private volatile SegmentedRecorder recorder;
+	// Written under the lock of the channel
+	private volatile boolean closed;
+
+	public Channel(String name, RelayTree relayTree,
+			KeyframeRequester keyframes, TokenBucket kmsCalls,
+			ChannelRegistry registry, OutboundQueues outboundQueues) {
+		this.name = name;
+		this.relayTree = relayTree;
+		this.keyframes = keyframes;
+		this.kmsCalls = kmsCalls;
+		this.registry = registry;
+		this.outboundQueues = outboundQueues;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Makes a session the presenter of the channel.
+	 *
+	 * @return false if the channel has been closed, in which case the
+	 *         presenter has to go to the channel that replaced it
+	 */
+	public synchronized boolean presenter(WebSocketSession session,
+			String sdpOffer) {
+		if (closed) {
+			return false;
+		}
+		if (presenter != null) {
+			reject(session, "presenterResponse",
+					"Another user is currently acting as sender in channel "
+							+ name + ". Try again later ...");
+			return true;
+		}
+		final UserSession user = new UserSession(session,
+				outboundQueues.get(session));
+		presenter = user;
+		registry.bind(session, this);
+
+		final MediaPipeline pipeline = relayTree.start();
+		final WebRtcEndpoint presenterWebRtc = new WebRtcEndpoint.Builder(
+				pipeline).build();
+		user.setWebRtcEndpoint(presenterWebRtc);
+		user.setKeyframeProbe(new PassThrough.Builder(pipeline).build());
+		relayTree.setPresenter(presenterWebRtc);
+		presenterWebRtc.addOnIceCandidateListener(outboundQueues
+				.iceCandidateForwarder(session));
+
+		final String sdpAnswer = presenterWebRtc.processOffer(sdpOffer);
+
+		final JsonObject response = new JsonObject();
+		response.addProperty("id", "presenterResponse");
+		response.addProperty("response", "accepted");
+		response.addProperty("sdpAnswer", sdpAnswer);
+		user.sendMessage(response);
+		presenterWebRtc.gatherCandidates();
+		keyframes.setPresenter(user);
+		log.info("Channel {}: presenter {} started broadcasting", name,
+				session.getId());
+
+		recorder = registry.createRecorder(name, pipeline, presenterWebRtc,
+				new Runnable() {
+					@Override
+					public void run() {
+						keyframes.request();
+					}
+				});
+		if (recorder != null) {
+			try {
+				recorder.start();
+			} catch (RuntimeException e) {
+				log.warn("Channel {}: could not start recording", name, e);
+				recorder = null;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Attaches a viewer to the pipeline of the relay tree it is placed on.
+	 *
+	 * @param viewer
+	 *            the viewer, created when its join was queued, with the
+	 *            candidates its browser sent meanwhile
+	 * @param kbps
+	 *            bandwidth the viewer reported, or {@code null}
+	 */
+	public void viewer(final UserSession viewer, String sdpOffer,
+			Integer kbps) {
+		final WebSocketSession session = viewer.getSession();
+		final UserSession current = presenter;
+		if (current == null || current.getWebRtcEndpoint() == null) {
+			reject(session, "viewerResponse",
+					"No active sender now. Become sender or . Try again later ...");
+			return;
+		}
+		if (viewers.containsKey(session.getId())) {
+			reject(session, "viewerResponse",
+					"You are already viewing in this session. Use a different browser to add additional viewers.");
+			return;
+		}
+		final RelayTree.Node node = relayTree.place();
+		if (node == null) {
+			reject(session, "viewerResponse",
+					"The broadcast has reached its maximum audience. Try again later ...");
+			return;
+		}
+		viewer.setNode(node);
+		if (viewers.putIfAbsent(session.getId(), viewer) != null) {
+			relayTree.leave(node);
+			return;
+		}
+		registry.bind(session, this);
+		if (closed) {
+			// Missed by the presenter when it stopped, which may also have
+			// unbound the viewers before this binding
+			registry.unbind(session, this);
+			if (viewers.remove(session.getId(), viewer)) {
+				relayTree.leave(node);
+				reject(session, "viewerResponse",
+						"No active sender now. Become sender or . Try again later ...");
+			}
+			return;
+		}
+
+		final WebRtcEndpoint nextWebRtc = node.takeEndpoint();
+		kmsCalls.charge(2);
+		nextWebRtc.addOnIceCandidateListener(outboundQueues
+				.iceCandidateForwarder(session));
+		nextWebRtc
+				.addMediaSessionStartedListener(new EventListener<MediaSessionStartedEvent>() {
+					@Override
+					public void onEvent(MediaSessionStartedEvent event) {
+						mediaStarted.recordSince(viewer.getCreatedNanos());
+						keyframes.request();
+					}
+				});
+
+		viewer.setWebRtcEndpoint(nextWebRtc);
+		if (Layer.isEnabled(CallHandler.LAYERS_PROPERTY) && kbps != null) {
+			viewer.setLayer(Layer.forBandwidth(kbps));
+		}
+		final MediaElement source = node.getSource(viewer.getLayer());
+		kmsCalls.charge(1);
+		source.connect(nextWebRtc);
+		kmsCalls.charge(1);
+		final String sdpAnswer = nextWebRtc.processOffer(sdpOffer);
+
+		final JsonObject response = new JsonObject();
+		response.addProperty("id", "viewerResponse");
+		response.addProperty("response", "accepted");
+		response.addProperty("sdpAnswer", sdpAnswer);
+		viewer.sendMessage(response);
+		kmsCalls.charge(1);
+		nextWebRtc.gatherCandidates();
+	}
+
+	private void reject(WebSocketSession session, String responseId,
+			String message) {
+		final JsonObject response = new JsonObject();
+		response.addProperty("id", responseId);
+		response.addProperty("response", "rejected");
+		response.addProperty("message", message);
+		outboundQueues.get(session).send(new TextMessage(response.toString()));
+	}
+
+	public void addCandidates(WebSocketSession session,
+			List<IceCandidate> candidates) {
+		final UserSession current = presenter;
+		final UserSession user = current != null
+				&& current.getSession() == session ? current : viewers
+				.get(session.getId());
+		if (user != null) {
+			for (IceCandidate candidate : candidates) {
+				user.addCandidate(candidate);
+			}
+		}
+	}
+
+	/**
+	 * Records the time a viewer took to display its first frame, as reported
+	 * by its browser.
+	 */
+	public void firstFrame(WebSocketSession session) {
+		final UserSession viewer = viewers.get(session.getId());
+		if (viewer != null && viewer.firstFrame()) {
+			firstFrame.recordSince(viewer.getCreatedNanos());
+		}
+	}
+
+	/**
+	 * Moves a viewer to another layer. Connecting the new source replaces the
+	 * connection from the old one, so no new negotiation is needed.
+	 */
+	public void selectLayer(WebSocketSession session, Layer layer) {
+		final UserSession viewer = viewers.get(session.getId());
+		if (viewer == null || viewer.getWebRtcEndpoint() == null) {
+			return;
+		}
+		synchronized (viewer) {
+			if (viewer.getLayer() == layer) {
+				return;
+			}
+			log.debug("Viewer {} switching from {} to {} layer",
+					session.getId(), viewer.getLayer(), layer);
+			viewer.getNode().getSource(layer)
+					.connect(viewer.getWebRtcEndpoint());
+			viewer.setLayer(layer);
+		}
+
+		final JsonObject response = new JsonObject();
+		response.addProperty("id", "layerSelected");
+		response.addProperty("layer", layer.name());
+		viewer.sendMessage(response);
+	}
+
+	/**
+	 * Ends the participation of a session. When the presenter leaves, the
+	 * channel is closed: every viewer is told with a message serialized once,
+	 * and all the pipelines are released in parallel.
+	 */
+	public void stop(WebSocketSession session) {
+		final UserSession current = presenter;
+		if (current != null && current.getSession() == session) {
+			stopBroadcast(current);
+			return;
+		}
+		final UserSession viewer = viewers.remove(session.getId());
+		if (viewer != null) {
+			if (viewer.getWebRtcEndpoint() != null) {
+				viewer.getWebRtcEndpoint().release();
+			}
+			relayTree.leave(viewer.getNode());
+		}
+	}
+
+	private void stopBroadcast(UserSession current) {
+		final long start = System.nanoTime();
+		final List<UserSession> audience;
+		synchronized (this) {
+			if (presenter != current) {
+				return;
+			}
+			presenter = null;
+			closed = true;
+			audience = removeViewers();
+		}
+		keyframes.setPresenter(null);
+		registry.remove(this);
+		if (recorder != null) {
+			recorder.stop();
+		}
+
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", "stopCommunication");
+		final TextMessage stopCommunication = new TextMessage(
+				message.toString());
+		for (UserSession viewer : audience) {
+			viewer.send(stopCommunication);
+			registry.unbind(viewer.getSession(), this);
+		}
+
+		log.info("Channel {}: {} viewers told, releasing media pipelines",
+				name, audience.size());
+		relayTree.stop(new Runnable() {
+			@Override
+			public void run() {
+				registry.recordTeardown(audience.size(), start);
+			}
+		});
+	}
+
+	/**
+	 * Empties the viewers of a closed channel. Viewers joining meanwhile
+	 * remove themselves, as they find the channel closed.
+	 */
+	private List<UserSession> removeViewers() {
+		final List<UserSession> removed = new ArrayList<>(viewers.size());
+		for (Map.Entry<String, UserSession> viewer : viewers.entrySet()) {
+			if (viewers.remove(viewer.getKey(), viewer.getValue())) {
+				removed.add(viewer.getValue());
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return whether the channel has a presenter, its viewers, how long they
+	 *         took to start, the keyframes requested for them, the recording
+	 *         and the relay tree
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("name", name);
+		snapshot.put("broadcasting", presenter != null);
+		snapshot.put("viewers", viewers.size());
+		snapshot.put("mediaStarted", mediaStarted.snapshot());
+		snapshot.put("firstFrame", firstFrame.snapshot());
+		snapshot.put("keyframes", keyframes.snapshot());
+		final SegmentedRecorder currentRecorder = recorder;
+		snapshot.put("recording", currentRecorder != null ? currentRecorder
+				.snapshot() : null);
+		snapshot.put("relay", relayTree.snapshot());
+		return snapshot;
+	}
+
+}
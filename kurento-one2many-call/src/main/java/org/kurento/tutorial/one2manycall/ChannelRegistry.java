@@ -0,0 +1,298 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * The broadcast channels being served, by name, and the channel every session
+ * takes part in. Channels are created by their presenter and removed when it
+ * leaves; the root pipelines of successive channels go round the media
+ * servers.
+ *
+ * @since 6.0.0
+ */
+public class ChannelRegistry {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ChannelRegistry.class);
+
+	/**
+	 * Upper bounds of the audiences teardown times are grouped by
+	 */
+	private static final int[] AUDIENCE_SIZES = { 10, 100, 1000 };
+
+	@Autowired
+	private OutboundQueues outboundQueues;
+
+	private final Map<String, KurentoClient> servers;
+	private final TokenBucket kmsCalls;
+	private final ConcurrentMap<String, Channel> channels = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Channel> bySession = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, UserSession> joining = new ConcurrentHashMap<>();
+	private final AtomicInteger created = new AtomicInteger();
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor();
+	// Rotating segments waits for the media server, keyframes do not
+	private final ScheduledExecutorService recordings = Executors
+			.newSingleThreadScheduledExecutor();
+	// Filling the endpoint pools waits for the calls to the media servers
+	private final ExecutorService refills = Executors.newSingleThreadExecutor();
+	private final LatencyHistogram[] teardowns;
+
+	/**
+	 * Connects to every media server in a comma separated list of URIs.
+	 *
+	 * @param kmsCalls
+	 *            the calls to the media servers made for the viewers
+	 */
+	public static ChannelRegistry connect(String uris, TokenBucket kmsCalls) {
+		final Map<String, KurentoClient> servers = new LinkedHashMap<>();
+		for (String uri : uris.split(",")) {
+			if (!uri.trim().isEmpty()) {
+				servers.put(uri.trim(), KurentoClient.create(uri.trim()));
+			}
+		}
+		return new ChannelRegistry(servers, kmsCalls);
+	}
+
+	/**
+	 * @param servers
+	 *            clients of the media servers, by URI
+	 * @param kmsCalls
+	 *            the calls to the media servers made for the viewers
+	 */
+	public ChannelRegistry(Map<String, KurentoClient> servers,
+			TokenBucket kmsCalls) {
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("No media server configured");
+		}
+		this.servers = servers;
+		this.kmsCalls = kmsCalls;
+		this.teardowns = new LatencyHistogram[AUDIENCE_SIZES.length + 1];
+		for (int i = 0; i < teardowns.length; i++) {
+			teardowns[i] = new LatencyHistogram();
+		}
+		log.info("Broadcasting over {}", servers.keySet());
+	}
+
+	/**
+	 * @return the channel, or {@code null} if nobody is broadcasting on it
+	 */
+	public Channel get(String name) {
+		return channels.get(name);
+	}
+
+	/**
+	 * Makes a session the presenter of a channel, creating the channel if
+	 * needed.
+	 */
+	public void presenter(String name, WebSocketSession session,
+			String sdpOffer) {
+		Channel channel = getOrCreate(name);
+		while (!channel.presenter(session, sdpOffer)) {
+			channel = replace(channel);
+		}
+	}
+
+	private Channel getOrCreate(String name) {
+		Channel channel = channels.get(name);
+		if (channel == null) {
+			final Channel newChannel = newChannel(name);
+			channel = channels.putIfAbsent(name, newChannel);
+			if (channel == null) {
+				log.info("Channel {} created", name);
+				channel = newChannel;
+			}
+		}
+		return channel;
+	}
+
+	/**
+	 * Replaces a channel closed by its previous presenter, without waiting
+	 * for the presenter to remove it.
+	 *
+	 * @return the channel that took its place
+	 */
+	private Channel replace(Channel closed) {
+		final Channel newChannel = newChannel(closed.getName());
+		if (channels.replace(closed.getName(), closed, newChannel)) {
+			log.info("Channel {} replaced", closed.getName());
+			return newChannel;
+		}
+		// Already removed, or replaced by another presenter
+		return getOrCreate(closed.getName());
+	}
+
+	private Channel newChannel(String name) {
+		return new Channel(name, RelayTree.create(servers,
+				created.getAndIncrement(), kmsCalls, timer, refills),
+				KeyframeRequester.create(timer), kmsCalls, this,
+				outboundQueues);
+	}
+
+	void remove(Channel channel) {
+		if (channels.remove(channel.getName(), channel)) {
+			log.info("Channel {} removed", channel.getName());
+		}
+	}
+
+	void bind(WebSocketSession session, Channel channel) {
+		bySession.put(session.getId(), channel);
+	}
+
+	/**
+	 * Creates the viewer of a session whose join is about to be queued. It
+	 * keeps the candidates the browser sends until the join binds it to its
+	 * channel.
+	 */
+	public UserSession startJoin(WebSocketSession session) {
+		final UserSession viewer = new UserSession(session,
+				outboundQueues.get(session));
+		joining.put(session.getId(), viewer);
+		return viewer;
+	}
+
+	/**
+	 * @return the viewer of a session whose join is queued or being run, or
+	 *         {@code null}
+	 */
+	public UserSession getJoining(WebSocketSession session) {
+		return joining.get(session.getId());
+	}
+
+	/**
+	 * Forgets the viewer of a join that was run or rejected, along with the
+	 * candidates it kept, unless the session has queued another join since.
+	 */
+	public void endJoin(UserSession viewer) {
+		joining.remove(viewer.getSession().getId(), viewer);
+	}
+
+	/**
+	 * Forgets the viewer of a join cancelled by its session.
+	 */
+	public void cancelJoin(WebSocketSession session) {
+		joining.remove(session.getId());
+	}
+
+	/**
+	 * @return the channel the session presents or views, or {@code null}
+	 */
+	public Channel getBySession(WebSocketSession session) {
+		return bySession.get(session.getId());
+	}
+
+	/**
+	 * @return a recorder of the stream of the presenter of a channel, or
+	 *         {@code null} if broadcasts are not recorded
+	 */
+	SegmentedRecorder createRecorder(String channel, MediaPipeline pipeline,
+			MediaElement presenter, Runnable keyframeRequest) {
+		return SegmentedRecorder.isEnabled() ? SegmentedRecorder.create(
+				channel, pipeline, presenter, recordings, keyframeRequest)
+				: null;
+	}
+
+	/**
+	 * Forgets a session, if it still takes part in the given channel.
+	 */
+	void unbind(WebSocketSession session, Channel channel) {
+		bySession.remove(session.getId(), channel);
+	}
+
+	/**
+	 * Records the time taken to tear a channel down, from the departure of
+	 * its presenter to the release of its last pipeline.
+	 *
+	 * @param audience
+	 *            viewers the channel had
+	 */
+	void recordTeardown(int audience, long startNanos) {
+		int bucket = 0;
+		while (bucket < AUDIENCE_SIZES.length
+				&& audience > AUDIENCE_SIZES[bucket]) {
+			bucket++;
+		}
+		teardowns[bucket].recordSince(startNanos);
+		log.info("Channel with {} viewers torn down in {} ms", audience,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Forgets a session that went away.
+	 *
+	 * @return the channel the session took part in, or {@code null}
+	 */
+	public Channel unbind(WebSocketSession session) {
+		return bySession.remove(session.getId());
+	}
+
+	/**
+	 * @return teardown times, by the audience of the channels, keyed by its
+	 *         upper bound
+	 */
+	public Map<String, Object> teardownSnapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		for (int i = 0; i < AUDIENCE_SIZES.length; i++) {
+			snapshot.put("le" + AUDIENCE_SIZES[i], teardowns[i].snapshot());
+		}
+		snapshot.put("inf", teardowns[AUDIENCE_SIZES.length].snapshot());
+		return snapshot;
+	}
+
+	/**
+	 * @return every channel, with its relay tree
+	 */
+	public List<Map<String, Object>> snapshot() {
+		final List<Map<String, Object>> snapshot = new ArrayList<>();
+		for (Channel channel : channels.values()) {
+			snapshot.add(channel.snapshot());
+		}
+		return snapshot;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		timer.shutdownNow();
+		recordings.shutdownNow();
+		refills.shutdownNow();
+		for (KurentoClient client : servers.values()) {
+			client.destroy();
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a few viewer endpoints created in advance in a pipeline of a relay
+ * tree, so that a joining viewer does not wait for the creation of its
+ * endpoint. The pool is refilled in the background every time an endpoint is
+ * taken, and emptied along with its pipeline.
+ *
+ * @since 6.0.0
+ */
+public class EndpointPool {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(EndpointPool.class);
+
+	static final String SIZE_PROPERTY = "one2many.viewer.pool.size";
+
+	private final MediaPipeline pipeline;
+	private final int size;
+	private final TokenBucket kmsCalls;
+
+	private final Queue<WebRtcEndpoint> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger warming = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final LatencyHistogram creationTime = new LatencyHistogram();
+	private volatile boolean closed;
+
+	/**
+	 * @param size
+	 *            number of idle endpoints to keep. With 0, every endpoint is
+	 *            created on demand
+	 * @param kmsCalls
+	 *            charged with the creation of every endpoint
+	 */
+	public EndpointPool(MediaPipeline pipeline, int size,
+			TokenBucket kmsCalls) {
+		this.pipeline = pipeline;
+		this.size = size;
+		this.kmsCalls = kmsCalls;
+	}
+
+	/**
+	 * Starts filling the pool.
+	 */
+	public void init() {
+		refill();
+	}
+
+	/**
+	 * @return an endpoint of the pipeline, taken from the pool if there is one
+	 *         available, or created otherwise
+	 */
+	public WebRtcEndpoint take() {
+		WebRtcEndpoint endpoint = idle.poll();
+		if (endpoint != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			kmsCalls.charge(1);
+			final long start = System.nanoTime();
+			endpoint = new WebRtcEndpoint.Builder(pipeline).build();
+			creationTime.recordSince(start);
+		}
+		refill();
+		return endpoint;
+	}
+
+	private void refill() {
+		while (!closed && idle.size() + warming.get() < size) {
+			warming.incrementAndGet();
+			kmsCalls.charge(1);
+			final long start = System.nanoTime();
+			new WebRtcEndpoint.Builder(pipeline)
+					.buildAsync(new Continuation<WebRtcEndpoint>() {
+						@Override
+						public void onSuccess(WebRtcEndpoint result) {
+							creationTime.recordSince(start);
+							// Once closed, the pipeline releases it
+							if (!closed) {
+								idle.add(result);
+							}
+							warming.decrementAndGet();
+						}
+
+						@Override
+						public void onError(Throwable cause) {
+							warming.decrementAndGet();
+							if (!closed) {
+								log.warn(
+										"Could not pre-create a viewer endpoint",
+										cause);
+							}
+						}
+					});
+		}
+	}
+
+	/**
+	 * @return pool size, idle endpoints, hits, misses and endpoint creation
+	 *         times
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("size", size);
+		snapshot.put("idle", idle.size());
+		snapshot.put("warming", warming.get());
+		snapshot.put("hits", hits.get());
+		snapshot.put("misses", misses.get());
+		snapshot.put("creationTime", creationTime.snapshot());
+		return snapshot;
+	}
+
+	/**
+	 * Stops refilling the pool and forgets its endpoints. They are not
+	 * released one by one, as the pipeline is about to be released with them.
+	 */
+	public void close() {
+		closed = true;
+		idle.clear();
+	}
+
+}
@@ -0,0 +1,218 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Queues the viewers joining a broadcast, so that a crowd arriving at once
+ * does not tie up the websocket threads while their endpoints are negotiated
+ * with the media servers.
+ * <p>
+ * Joins are run in arrival order by a fixed number of workers. A join starts
+ * once the media server calls reserved before it are due, and each of its own
+ * calls is charged to the {@link TokenBucket} where it is made. Viewers still
+ * waiting are told their position periodically. Configured through system
+ * properties:
+ * <ul>
+ * <li>{@code one2many.join.queue.size}: joins waiting at most (1000). Joins
+ * beyond it are rejected</li>
+ * <li>{@code one2many.join.workers}: joins negotiated at the same time (8)</li>
+ * <li>{@code one2many.join.position.interval.ms}: time between position
+ * updates (2000)</li>
+ * </ul>
+ *
+ * @since 6.0.0
+ */
+public class JoinQueue {
+
+	private static final Logger log = LoggerFactory.getLogger(JoinQueue.class);
+
+	static final String SIZE_PROPERTY = "one2many.join.queue.size";
+	static final String WORKERS_PROPERTY = "one2many.join.workers";
+	static final String POSITION_INTERVAL_PROPERTY = "one2many.join.position.interval.ms";
+
+	private class Join implements Runnable {
+
+		private final WebSocketSession session;
+		private final Runnable task;
+		private final long enqueuedNanos = System.nanoTime();
+
+		Join(WebSocketSession session, Runnable task) {
+			this.session = session;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				kmsCalls.acquire(0);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			waitTime.recordSince(enqueuedNanos);
+			task.run();
+		}
+	}
+
+	@Autowired
+	private OutboundQueues outboundQueues;
+
+	private final int capacity;
+	private final int workers;
+	private final long positionIntervalMillis;
+	private final ThreadPoolExecutor executor;
+	private final TokenBucket kmsCalls;
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final LatencyHistogram waitTime = new LatencyHistogram();
+
+	/**
+	 * Creates a queue configured through the system properties.
+	 *
+	 * @param kmsCalls
+	 *            the calls to the media servers made for the viewers
+	 */
+	public static JoinQueue create(TokenBucket kmsCalls) {
+		return new JoinQueue(Integer.getInteger(SIZE_PROPERTY, 1000),
+				Integer.getInteger(WORKERS_PROPERTY, 8), kmsCalls,
+				Long.getLong(POSITION_INTERVAL_PROPERTY, 2000));
+	}
+
+	/**
+	 * @param capacity
+	 *            joins waiting at most
+	 * @param workers
+	 *            joins run at the same time
+	 * @param kmsCalls
+	 *            the calls to the media servers made for the viewers
+	 * @param positionIntervalMillis
+	 *            time between position updates
+	 */
+	public JoinQueue(int capacity, int workers, TokenBucket kmsCalls,
+			long positionIntervalMillis) {
+		this.capacity = capacity;
+		this.workers = workers;
+		this.positionIntervalMillis = positionIntervalMillis;
+		this.executor = new ThreadPoolExecutor(workers, workers, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+						capacity));
+		this.kmsCalls = kmsCalls;
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sendPositions();
+			}
+		}, positionIntervalMillis, positionIntervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues the join of a viewer.
+	 *
+	 * @param task
+	 *            negotiates the viewer, once its turn comes
+	 * @return false if the queue is full
+	 */
+	public boolean submit(WebSocketSession session, Runnable task) {
+		try {
+			executor.execute(new Join(session, task));
+			accepted.incrementAndGet();
+			return true;
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			log.warn("Join queue full, rejecting viewer {}", session.getId());
+			return false;
+		}
+	}
+
+	/**
+	 * Drops the joins of a session still waiting, when it stops or goes away.
+	 */
+	public void cancel(WebSocketSession session) {
+		for (Runnable runnable : executor.getQueue()) {
+			if (((Join) runnable).session == session
+					&& executor.remove(runnable)) {
+				cancelled.incrementAndGet();
+			}
+		}
+	}
+
+	private void sendPositions() {
+		try {
+			int position = 0;
+			for (Runnable runnable : executor.getQueue()) {
+				final JsonObject message = new JsonObject();
+				message.addProperty("id", "queued");
+				message.addProperty("position", ++position);
+				outboundQueues.get(((Join) runnable).session).send(
+						new TextMessage(message.toString()));
+			}
+		} catch (RuntimeException e) {
+			log.warn("Could not send the positions of the queued viewers", e);
+		}
+	}
+
+	/**
+	 * @return the configuration of the queue, the joins waiting and being
+	 *         run, the counts of accepted, rejected and cancelled joins, the
+	 *         time joins waited and the rate of media server calls
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("capacity", capacity);
+		snapshot.put("workers", workers);
+		snapshot.put("positionIntervalMs", positionIntervalMillis);
+		snapshot.put("queued", executor.getQueue().size());
+		snapshot.put("running", executor.getActiveCount());
+		snapshot.put("accepted", accepted.get());
+		snapshot.put("rejected", rejected.get());
+		snapshot.put("cancelled", cancelled.get());
+		snapshot.put("waitTime", waitTime.snapshot());
+		snapshot.put("kmsCalls", kmsCalls.snapshot());
+		return snapshot;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		timer.shutdownNow();
+		executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asks the presenter of a channel for a keyframe when a viewer starts
+ * receiving media, so that the viewer does not wait for the next periodic one.
+ * The request goes upstream to the browser of the presenter, and the keyframe
+ * it sends reaches every viewer of the channel through the relays.
+ * <p>
+ * Since a single keyframe serves every viewer waiting for one, requests are
+ * rate limited per channel: the first one is sent at once, and those arriving
+ * in the following {@code one2many.keyframe.interval.ms} milliseconds (1000
+ * by default) are coalesced into a single request sent when the interval
+ * ends.
+ *
+ * @since 6.0.0
+ */
+public class KeyframeRequester {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(KeyframeRequester.class);
+
+	static final String INTERVAL_PROPERTY = "one2many.keyframe.interval.ms";
+
+	private final ScheduledExecutorService timer;
+	private final long intervalMillis;
+	private final long intervalNanos;
+
+	private final AtomicLong requested = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	private volatile UserSession presenter;
+
+	// Guarded by this
+	private boolean scheduled;
+	private long lastSent;
+	private boolean everSent;
+
+	/**
+	 * Creates a requester with the interval configured through the system
+	 * properties.
+	 *
+	 * @param timer
+	 *            sends the requests, so that the event threads of the media
+	 *            server client are not blocked
+	 */
+	public static KeyframeRequester create(ScheduledExecutorService timer) {
+		return new KeyframeRequester(timer, Long.getLong(INTERVAL_PROPERTY,
+				1000));
+	}
+
+	/**
+	 * @param intervalMillis
+	 *            minimum time between two requests
+	 */
+	public KeyframeRequester(ScheduledExecutorService timer,
+			long intervalMillis) {
+		this.timer = timer;
+		this.intervalMillis = intervalMillis;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+	}
+
+	/**
+	 * @param presenter
+	 *            the presenter keyframes are requested from, or {@code null}
+	 *            once the broadcast stops
+	 */
+	public void setPresenter(UserSession presenter) {
+		this.presenter = presenter;
+	}
+
+	/**
+	 * Requests a keyframe from the presenter, now or once the current
+	 * interval ends.
+	 */
+	public void request() {
+		requested.incrementAndGet();
+		final long delay;
+		synchronized (this) {
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+			delay = everSent ? Math.max(0, lastSent + intervalNanos
+					- System.nanoTime()) : 0;
+		}
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				send();
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	private void send() {
+		synchronized (this) {
+			scheduled = false;
+			lastSent = System.nanoTime();
+			everSent = true;
+		}
+		final UserSession current = presenter;
+		if (current == null) {
+			failed.incrementAndGet();
+			return;
+		}
+		try {
+			current.requestKeyframe();
+			sent.incrementAndGet();
+		} catch (RuntimeException e) {
+			// The broadcast stopped in the meantime
+			failed.incrementAndGet();
+			log.debug("Could not request a keyframe from presenter {}",
+					current.getSession().getId(), e);
+		}
+	}
+
+	/**
+	 * @return the interval, the requests made, and those actually sent to the
+	 *         presenter or failed. The rest were coalesced
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("intervalMs", intervalMillis);
+		snapshot.put("requested", requested.get());
+		snapshot.put("sent", sent.get());
+		snapshot.put("failed", failed.get());
+		return snapshot;
+	}
+
+}
@@ -14,7 +14,7 @@
  */
 package org.kurento.tutorial.one2manycall;
 
-import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -24,7 +24,9 @@ import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
 /**
- * Video call 1 to N demo (main).
+ * Video call 1 to N demo (main). The {@code kms.ws.uri} system property
+ * accepts a comma separated list of media servers, the broadcasts being spread
+ * and relayed among them.
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @since 5.0.0
@@ -42,9 +44,29 @@ public class One2ManyCallApp implements WebSocketConfigurer {
 	}
 
 	@Bean
-	public KurentoClient kurentoClient() {
-		return KurentoClient.create(System.getProperty("kms.ws.uri",
-				DEFAULT_KMS_WS_URI));
+	public ChannelRegistry channelRegistry() {
+		return ChannelRegistry.connect(System.getProperty("kms.ws.uri",
+				DEFAULT_KMS_WS_URI), kmsCalls());
+	}
+
+	@Bean
+	public TokenBucket kmsCalls() {
+		return TokenBucket.create();
+	}
+
+	@Bean
+	public JoinQueue joinQueue() {
+		return JoinQueue.create(kmsCalls());
+	}
+
+	@Bean
+	public RelayController relayController() {
+		return new RelayController();
+	}
+
+	@Bean
+	public OutboundQueues outboundQueues() {
+		return new OutboundQueues();
 	}
 
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
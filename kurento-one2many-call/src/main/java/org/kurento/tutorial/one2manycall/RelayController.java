@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall;
+
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Exposes the broadcast channels, the pipelines each of them is relayed over
+ * and how many viewers each pipeline holds, as JSON, along with the queue of
+ * joining viewers and the time taken to tear broadcasts down.
+ *
+ * @since 6.0.0
+ */
+@RestController
+public class RelayController {
+
+	@Autowired
+	private ChannelRegistry channels;
+
+	@Autowired
+	private JoinQueue joinQueue;
+
+	@RequestMapping("/relay")
+	public List<Map<String, Object>> relay() {
+		return channels.snapshot();
+	}
+
+	@RequestMapping("/relay/teardowns")
+	public Map<String, Object> teardowns() {
+		return channels.teardownSnapshot();
+	}
+
+	@RequestMapping("/relay/joins")
+	public Map<String, Object> joins() {
+		return joinQueue.snapshot();
+	}
+
+}
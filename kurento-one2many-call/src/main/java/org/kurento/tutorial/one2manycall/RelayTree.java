@@ -0,0 +1,624 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.FilterType;
+import org.kurento.client.GStreamerFilter;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.tutorial.signaling.Layer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pipelines a broadcast is spread over. The presenter sends to the root
+ * pipeline; once every pipeline holds as many viewers as allowed, the stream
+ * of the presenter is relayed through a pair of {@link RtpEndpoint}s into a
+ * new child pipeline, on the next media server, where new viewers attach.
+ * Every broadcast channel has its own tree.
+ * <p>
+ * Configured through system properties:
+ * <ul>
+ * <li>{@code one2many.relay.fanout}: viewers per pipeline. 0, the default,
+ * puts every viewer on the root pipeline</li>
+ * <li>{@code one2many.relay.children}: child pipelines a pipeline relays to
+ * (4)</li>
+ * <li>{@code one2many.relay.depth}: levels of relays below the root (2)</li>
+ * <li>{@code one2many.relay.placement}: {@code shallowest}, the default, puts
+ * viewers as close to the presenter as possible; {@code leaves} keeps the
+ * root for relaying only, so the media server of the presenter only feeds
+ * the relays</li>
+ * <li>{@code one2many.viewer.pool.size}: viewer endpoints kept ready in every
+ * pipeline viewers attach to (2)</li>
+ * <li>{@code one2many.relay.idle.ms}: time a child pipeline is kept without
+ * viewers nor children before it is released (30000), so that an audience
+ * going up and down around a multiple of the fanout does not create and
+ * release relays over and over</li>
+ * </ul>
+ * The tree is only locked to choose and publish nodes: relays and layers are
+ * negotiated with the media servers outside of it, one relay at a time.
+ * Viewers that find every pipeline full while a relay is being created wait
+ * for it.
+ *
+ * @since 6.0.0
+ */
+public class RelayTree {
+
+	private static final Logger log = LoggerFactory.getLogger(RelayTree.class);
+
+	static final String FANOUT_PROPERTY = "one2many.relay.fanout";
+	static final String CHILDREN_PROPERTY = "one2many.relay.children";
+	static final String DEPTH_PROPERTY = "one2many.relay.depth";
+	static final String PLACEMENT_PROPERTY = "one2many.relay.placement";
+	static final String IDLE_PROPERTY = "one2many.relay.idle.ms";
+
+	private static final Continuation<Void> RELEASE_LOGGER = new Continuation<Void>() {
+		@Override
+		public void onSuccess(Void result) {
+		}
+
+		@Override
+		public void onError(Throwable cause) {
+			log.warn("Could not release a relay", cause);
+		}
+	};
+
+	/**
+	 * A pipeline of the tree.
+	 */
+	public class Node {
+
+		private final String id;
+		private final Node parent;
+		private final String server;
+		private final MediaPipeline pipeline;
+		private final int depth;
+		private final RtpEndpoint uplink;
+		private final EndpointPool endpointPool;
+		private final List<Node> children = new ArrayList<>();
+		private final Map<Layer, GStreamerFilter> layers = new EnumMap<>(
+				Layer.class);
+		private MediaElement source;
+		private int viewers;
+		private int nextChild;
+		private long idleSince;
+		private boolean released;
+
+		Node(String id, Node parent, String server, MediaPipeline pipeline,
+				MediaElement source, RtpEndpoint uplink) {
+			this.id = id;
+			this.parent = parent;
+			this.server = server;
+			this.pipeline = pipeline;
+			this.source = source;
+			this.uplink = uplink;
+			this.depth = parent == null ? 0 : parent.depth + 1;
+			this.endpointPool = new EndpointPool(pipeline, leavesOnly
+					&& parent == null ? 0 : poolSize, kmsCalls);
+			// Filling the pool charges the calls, which may wait, and nodes
+			// are created holding the tree or the channel
+			refills.execute(new Runnable() {
+				@Override
+				public void run() {
+					endpointPool.init();
+				}
+			});
+		}
+
+		public MediaPipeline getPipeline() {
+			return pipeline;
+		}
+
+		/**
+		 * @return an endpoint for a new viewer, in the pipeline of the node
+		 */
+		public WebRtcEndpoint takeEndpoint() {
+			return endpointPool.take();
+		}
+
+		/**
+		 * @return the element viewers of the layer are connected to. The
+		 *         filter of a layer is created in the pipeline when its first
+		 *         viewer arrives
+		 */
+		public MediaElement getSource(Layer layer) {
+			final MediaElement layerSource;
+			synchronized (RelayTree.this) {
+				if (layer.isSource()) {
+					return source;
+				}
+				final GStreamerFilter filter = layers.get(layer);
+				if (filter != null) {
+					return filter;
+				}
+				layerSource = source;
+			}
+			log.debug("Creating {} layer on relay node {}", layer, id);
+			kmsCalls.charge(2);
+			final GStreamerFilter filter = new GStreamerFilter.Builder(
+					pipeline, layer.getFilterCommand()).withFilterType(
+					FilterType.VIDEO).build();
+			layerSource.connect(filter);
+			final GStreamerFilter existing;
+			synchronized (RelayTree.this) {
+				existing = layers.get(layer);
+				if (existing == null) {
+					layers.put(layer, filter);
+					return filter;
+				}
+			}
+			// Created by another viewer in the meantime
+			filter.release(RELEASE_LOGGER);
+			return existing;
+		}
+
+		private boolean hasRoom() {
+			return fanout <= 0 || viewers < fanout;
+		}
+
+		private boolean isIdle() {
+			return viewers == 0 && children.isEmpty();
+		}
+
+		private Map<String, Object> snapshot() {
+			final List<Map<String, Object>> childSnapshots = new ArrayList<>();
+			for (Node child : children) {
+				childSnapshots.add(child.snapshot());
+			}
+			final Map<String, Object> snapshot = new LinkedHashMap<>();
+			snapshot.put("id", id);
+			snapshot.put("depth", depth);
+			snapshot.put("server", server);
+			snapshot.put("viewers", viewers);
+			if (parent != null && isIdle()) {
+				snapshot.put("idleMillis", TimeUnit.NANOSECONDS
+						.toMillis(System.nanoTime() - idleSince));
+			}
+			snapshot.put("layers", new ArrayList<>(layers.keySet()));
+			snapshot.put("endpointPool", endpointPool.snapshot());
+			snapshot.put("children", childSnapshots);
+			return snapshot;
+		}
+
+		@Override
+		public String toString() {
+			return id + "@" + server;
+		}
+	}
+
+	private final Map<String, KurentoClient> servers;
+	private final List<String> uris;
+	private final int firstServer;
+	private final int fanout;
+	private final int maxChildren;
+	private final int maxDepth;
+	private final String placement;
+	private final boolean leavesOnly;
+	private final int poolSize;
+	private final TokenBucket kmsCalls;
+	private final ScheduledExecutorService timer;
+	private final Executor refills;
+	private final long idleMillis;
+
+	// Guarded by this
+	private Node root;
+	private int nextServer;
+	// Counted down once the relay being created is published, or failed
+	private CountDownLatch growing;
+
+	/**
+	 * Creates a tree configured through the system properties.
+	 *
+	 * @param servers
+	 *            clients of the media servers, by URI
+	 * @param firstServer
+	 *            index of the media server the root pipeline is created on
+	 * @param kmsCalls
+	 *            charged with the calls made for the viewers
+	 * @param timer
+	 *            runs the release of idle relays
+	 * @param refills
+	 *            fills the endpoint pools of the pipelines
+	 */
+	public static RelayTree create(Map<String, KurentoClient> servers,
+			int firstServer, TokenBucket kmsCalls,
+			ScheduledExecutorService timer, Executor refills) {
+		return new RelayTree(servers, firstServer, Integer.getInteger(
+				FANOUT_PROPERTY, 0), Integer.getInteger(CHILDREN_PROPERTY, 4),
+				Integer.getInteger(DEPTH_PROPERTY, 2), System.getProperty(
+						PLACEMENT_PROPERTY, "shallowest"), Integer.getInteger(
+						EndpointPool.SIZE_PROPERTY, 2), kmsCalls, timer,
+				refills, Long.getLong(IDLE_PROPERTY, 30000));
+	}
+
+	/**
+	 * @param servers
+	 *            clients of the media servers, by URI
+	 * @param firstServer
+	 *            index of the media server the root pipeline is created on.
+	 *            Relays go to the following ones
+	 * @param fanout
+	 *            viewers per pipeline, or 0 for no limit
+	 * @param maxChildren
+	 *            child pipelines per pipeline
+	 * @param maxDepth
+	 *            levels of relays below the root
+	 * @param placement
+	 *            {@code shallowest} or {@code leaves}
+	 * @param poolSize
+	 *            idle viewer endpoints per pipeline
+	 * @param kmsCalls
+	 *            charged with the calls made for the viewers: creating their
+	 *            endpoints, layers and relays
+	 * @param timer
+	 *            runs the release of idle relays
+	 * @param refills
+	 *            fills the endpoint pools of the pipelines
+	 * @param idleMillis
+	 *            time a child pipeline is kept without viewers nor children
+	 */
+	public RelayTree(Map<String, KurentoClient> servers, int firstServer,
+			int fanout, int maxChildren, int maxDepth, String placement,
+			int poolSize, TokenBucket kmsCalls, ScheduledExecutorService timer,
+			Executor refills, long idleMillis) {
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("No media server configured");
+		}
+		if (!"shallowest".equals(placement) && !"leaves".equals(placement)) {
+			throw new IllegalArgumentException("Unknown viewer placement "
+					+ placement);
+		}
+		this.servers = servers;
+		this.uris = new ArrayList<>(servers.keySet());
+		this.firstServer = firstServer;
+		this.fanout = fanout;
+		this.maxChildren = maxChildren;
+		this.maxDepth = maxDepth;
+		this.placement = placement;
+		this.leavesOnly = "leaves".equals(placement) && fanout > 0
+				&& maxDepth > 0 && maxChildren > 0;
+		this.poolSize = poolSize;
+		this.kmsCalls = kmsCalls;
+		this.timer = timer;
+		this.refills = refills;
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * Creates the root pipeline, on its media server. The presenter
+	 * endpoint has to be created on it and set with
+	 * {@link #setPresenter(MediaElement)}.
+	 *
+	 * @return the root pipeline
+	 */
+	public synchronized MediaPipeline start() {
+		final String uri = uris.get(firstServer % uris.size());
+		root = new Node("0", null, uri, servers.get(uri)
+				.createMediaPipeline(), null, null);
+		nextServer = firstServer + 1;
+		return root.pipeline;
+	}
+
+	public synchronized void setPresenter(MediaElement presenter) {
+		root.source = presenter;
+	}
+
+	/**
+	 * Places a new viewer, relaying to a new pipeline if every pipeline is
+	 * full. The relay is created without holding the tree; viewers arriving
+	 * meanwhile wait for it.
+	 *
+	 * @return the node the viewer has to attach to, or {@code null} if the
+	 *         tree is full or there is no broadcast
+	 */
+	public Node place() {
+		while (true) {
+			final CountDownLatch created;
+			final Node parent;
+			final String id;
+			final String uri;
+			final MediaElement parentSource;
+			synchronized (this) {
+				if (root == null || root.source == null) {
+					return null;
+				}
+				final Node node = findWithRoom();
+				if (node != null) {
+					node.viewers++;
+					return node;
+				}
+				created = growing;
+				if (created == null) {
+					parent = findParent();
+					if (parent == null) {
+						log.warn("Relay tree is full, {} pipelines at most",
+								countNodes(root));
+						return null;
+					}
+					growing = new CountDownLatch(1);
+					id = parent.id + "." + parent.nextChild++;
+					uri = uris.get(nextServer++ % uris.size());
+					parentSource = parent.source;
+				} else {
+					parent = null;
+					id = null;
+					uri = null;
+					parentSource = null;
+				}
+			}
+			if (created != null) {
+				try {
+					created.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+				continue;
+			}
+			final Node child;
+			try {
+				child = addChild(parent, id, uri, parentSource);
+			} finally {
+				final CountDownLatch done;
+				synchronized (this) {
+					done = growing;
+					growing = null;
+				}
+				done.countDown();
+			}
+			synchronized (this) {
+				// The broadcast stopped, or the parent was released
+				if (!parent.released) {
+					parent.children.add(child);
+					child.viewers++;
+					log.info("Relaying from node {} to new node {}", parent,
+							child);
+					return child;
+				}
+			}
+			release(child);
+		}
+	}
+
+	/**
+	 * @return the shallowest node that can take a viewer, in breadth first
+	 *         order
+	 */
+	private Node findWithRoom() {
+		final LinkedList<Node> pending = new LinkedList<>();
+		pending.add(root);
+		while (!pending.isEmpty()) {
+			final Node node = pending.poll();
+			if (node.hasRoom() && !(leavesOnly && node == root)) {
+				return node;
+			}
+			pending.addAll(node.children);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the shallowest node that can relay to one more child
+	 */
+	private Node findParent() {
+		final LinkedList<Node> pending = new LinkedList<>();
+		pending.add(root);
+		while (!pending.isEmpty()) {
+			final Node node = pending.poll();
+			if (node.depth < maxDepth && node.children.size() < maxChildren) {
+				return node;
+			}
+			pending.addAll(node.children);
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the pipeline, both relay endpoints, negotiates them and
+	 * connects the source of the parent: seven calls. The child is not
+	 * published to the tree.
+	 */
+	private Node addChild(Node parent, String id, String uri,
+			MediaElement parentSource) {
+		kmsCalls.charge(7);
+		final MediaPipeline pipeline = servers.get(uri).createMediaPipeline();
+		RtpEndpoint uplink = null;
+		try {
+			final RtpEndpoint downlink = new RtpEndpoint.Builder(pipeline)
+					.build();
+			uplink = new RtpEndpoint.Builder(parent.pipeline).build();
+			downlink.processAnswer(uplink.processOffer(downlink
+					.generateOffer()));
+			parentSource.connect(uplink);
+			return new Node(id, parent, uri, pipeline, downlink, uplink);
+		} catch (RuntimeException e) {
+			if (uplink != null) {
+				uplink.release(RELEASE_LOGGER);
+			}
+			pipeline.release(RELEASE_LOGGER);
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes a viewer from its node. Relays left unused are released once
+	 * they have been idle for the configured time.
+	 */
+	public void leave(Node node) {
+		synchronized (this) {
+			if (node.viewers > 0) {
+				node.viewers--;
+			}
+			if (node.parent == null || !node.isIdle() || node.released) {
+				return;
+			}
+			node.idleSince = System.nanoTime();
+		}
+		scheduleRelease();
+	}
+
+	private void scheduleRelease() {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				releaseIdle();
+			}
+		}, idleMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Releases the child pipelines that have been idle for long enough. Their
+	 * parents are left idle in turn, and have to wait for their own time.
+	 */
+	private void releaseIdle() {
+		final List<Node> idle = new ArrayList<>();
+		final boolean emptied;
+		synchronized (this) {
+			if (root == null) {
+				return;
+			}
+			emptied = collectIdle(root, System.nanoTime(), idle);
+		}
+		for (Node node : idle) {
+			release(node);
+		}
+		if (emptied) {
+			scheduleRelease();
+		}
+	}
+
+	/**
+	 * @return whether a node was left idle by the release of its children
+	 */
+	private boolean collectIdle(Node node, long now, List<Node> idle) {
+		final long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+		boolean emptied = false;
+		boolean removed = false;
+		for (Iterator<Node> it = node.children.iterator(); it.hasNext();) {
+			final Node child = it.next();
+			emptied |= collectIdle(child, now, idle);
+			if (child.isIdle() && now - child.idleSince >= idleNanos) {
+				it.remove();
+				child.released = true;
+				idle.add(child);
+				removed = true;
+			}
+		}
+		if (removed && node.parent != null && node.isIdle()) {
+			node.idleSince = now;
+			emptied = true;
+		}
+		return emptied;
+	}
+
+	private void release(Node node) {
+		log.info("Releasing relay node {}", node);
+		node.endpointPool.close();
+		node.uplink.release(RELEASE_LOGGER);
+		node.pipeline.release(RELEASE_LOGGER);
+	}
+
+	/**
+	 * Releases every pipeline of the broadcast, all at the same time.
+	 *
+	 * @param released
+	 *            run once every pipeline has been released, or failed to
+	 */
+	public void stop(final Runnable released) {
+		final List<MediaPipeline> pipelines = new ArrayList<>();
+		synchronized (this) {
+			if (root != null) {
+				collect(root, pipelines);
+				root = null;
+			}
+		}
+		if (pipelines.isEmpty()) {
+			released.run();
+			return;
+		}
+		final AtomicInteger pending = new AtomicInteger(pipelines.size());
+		final Continuation<Void> continuation = new Continuation<Void>() {
+			@Override
+			public void onSuccess(Void result) {
+				if (pending.decrementAndGet() == 0) {
+					released.run();
+				}
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				log.warn("Could not release a relay pipeline", cause);
+				onSuccess(null);
+			}
+		};
+		for (MediaPipeline pipeline : pipelines) {
+			pipeline.release(continuation);
+		}
+	}
+
+	private void collect(Node node, List<MediaPipeline> pipelines) {
+		for (Node child : node.children) {
+			collect(child, pipelines);
+		}
+		node.children.clear();
+		node.released = true;
+		node.endpointPool.close();
+		pipelines.add(node.pipeline);
+	}
+
+	private static int countNodes(Node node) {
+		int count = 1;
+		for (Node child : node.children) {
+			count += countNodes(child);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the configuration of the tree and, while there is a broadcast,
+	 *         every pipeline with its viewers
+	 */
+	public synchronized Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("servers", uris);
+		snapshot.put("fanout", fanout);
+		snapshot.put("maxChildren", maxChildren);
+		snapshot.put("maxDepth", maxDepth);
+		snapshot.put("placement", placement);
+		snapshot.put("endpointPoolSize", poolSize);
+		snapshot.put("idleMillis", idleMillis);
+		snapshot.put("nodes", root == null ? 0 : countNodes(root));
+		snapshot.put("root", root == null ? null : root.snapshot());
+		return snapshot;
+	}
+
+}
@@ -0,0 +1,307 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RecorderEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records a broadcast into a series of files, one per period of time, so that
+ * a long broadcast does not end up in a single huge file.
+ * <p>
+ * Every segment is a recorder connected to the presenter, beside the
+ * viewers and relays, so rotating segments does not affect them. The next
+ * segment starts recording before the previous one stops, so no media is
+ * lost between segments, and a keyframe is requested from the presenter as
+ * soon as it starts, so that the segment can be played on its own. Segments
+ * are rotated by an executor of their own, as starting and stopping them
+ * waits for the media server.
+ * <p>
+ * Recording is enabled by the {@code one2many.recording.dir} system property,
+ * a directory of the media server or a URI, and segments last
+ * {@code one2many.recording.segment.minutes} (10). Bytes written are only
+ * known for directories the application can also read.
+ *
+ * @since 6.0.0
+ */
+public class SegmentedRecorder {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SegmentedRecorder.class);
+
+	static final String DIR_PROPERTY = "one2many.recording.dir";
+	static final String SEGMENT_PROPERTY = "one2many.recording.segment.minutes";
+
+	private static final String FILE_SCHEME = "file://";
+
+	/**
+	 * A file being recorded.
+	 */
+	public interface Segment {
+
+		void start();
+
+		void stop();
+
+		/**
+		 * @return size of the file so far, or 0 if unknown
+		 */
+		long getBytes();
+	}
+
+	/**
+	 * Creates the segments, so that they can be faked.
+	 */
+	public interface SegmentFactory {
+
+		/**
+		 * @param uri
+		 *            where the segment is recorded
+		 */
+		Segment create(String uri);
+	}
+
+	private final String directory;
+	private final String prefix;
+	private final SegmentFactory factory;
+	private final long segmentMillis;
+	private final ScheduledExecutorService executor;
+	private final Runnable keyframeRequest;
+
+	// Guarded by this
+	private Segment current;
+	private String currentUri;
+	private ScheduledFuture<?> rotation;
+	private boolean stopped;
+	private int segments;
+	private int failures;
+	private long finishedBytes;
+
+	/**
+	 * @return whether broadcasts are recorded
+	 */
+	public static boolean isEnabled() {
+		return System.getProperty(DIR_PROPERTY) != null;
+	}
+
+	/**
+	 * Creates a recorder of the stream of a presenter, configured through the
+	 * system properties.
+	 *
+	 * @param channel
+	 *            name of the channel, which the files are named after
+	 * @param pipeline
+	 *            pipeline of the presenter
+	 * @param source
+	 *            endpoint of the presenter
+	 * @param executor
+	 *            rotates the segments
+	 * @param keyframeRequest
+	 *            asks the presenter for a keyframe
+	 */
+	public static SegmentedRecorder create(String channel,
+			MediaPipeline pipeline, MediaElement source,
+			ScheduledExecutorService executor, Runnable keyframeRequest) {
+		return new SegmentedRecorder(toUri(System.getProperty(DIR_PROPERTY)),
+				channel.replaceAll("[^A-Za-z0-9_-]", "_"),
+				new RecorderSegments(pipeline, source),
+				TimeUnit.MINUTES.toMillis(Long.getLong(SEGMENT_PROPERTY, 10)),
+				executor, keyframeRequest);
+	}
+
+	private static String toUri(String directory) {
+		final String uri = directory.contains("://") ? directory
+				: FILE_SCHEME + new File(directory).getAbsolutePath();
+		return uri.endsWith("/") ? uri.substring(0, uri.length() - 1) : uri;
+	}
+
+	/**
+	 * @param directory
+	 *            URI of the directory the segments are recorded in
+	 * @param prefix
+	 *            of the names of the files
+	 * @param segmentMillis
+	 *            time every segment lasts
+	 * @param keyframeRequest
+	 *            run every time a segment starts
+	 */
+	public SegmentedRecorder(String directory, String prefix,
+			SegmentFactory factory, long segmentMillis,
+			ScheduledExecutorService executor, Runnable keyframeRequest) {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.factory = factory;
+		this.segmentMillis = segmentMillis;
+		this.executor = executor;
+		this.keyframeRequest = keyframeRequest;
+	}
+
+	/**
+	 * Starts recording the first segment, and rotating segments.
+	 */
+	public synchronized void start() {
+		current = open();
+		rotation = executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				rotate();
+			}
+		}, segmentMillis, segmentMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts the next segment, then stops the current one. If the next one
+	 * cannot be started, the current one goes on. Called by the executor
+	 * every time a segment has lasted long enough.
+	 */
+	public synchronized void rotate() {
+		if (stopped) {
+			return;
+		}
+		final Segment next;
+		try {
+			next = open();
+		} catch (RuntimeException e) {
+			failures++;
+			log.warn("Could not start a new segment, still recording {}",
+					currentUri, e);
+			return;
+		}
+		final Segment previous = current;
+		current = next;
+		close(previous);
+	}
+
+	private Segment open() {
+		final String uri = directory + "/" + prefix + "-"
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+				+ "-" + (segments + 1) + ".webm";
+		final Segment segment = factory.create(uri);
+		segment.start();
+		segments++;
+		currentUri = uri;
+		log.info("Recording segment {}", uri);
+		keyframeRequest.run();
+		return segment;
+	}
+
+	private void close(Segment segment) {
+		try {
+			segment.stop();
+		} catch (RuntimeException e) {
+			failures++;
+			log.warn("Could not stop a segment", e);
+		}
+		finishedBytes += segment.getBytes();
+	}
+
+	/**
+	 * Stops rotating segments and stops the current one.
+	 */
+	public synchronized void stop() {
+		if (stopped) {
+			return;
+		}
+		stopped = true;
+		if (rotation != null) {
+			rotation.cancel(false);
+		}
+		if (current != null) {
+			close(current);
+			current = null;
+		}
+	}
+
+	/**
+	 * @return where the segments go, how long they last, the segments
+	 *         recorded, the bytes written, the segment being recorded and the
+	 *         segments that failed to start or stop
+	 */
+	public synchronized Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("directory", directory);
+		snapshot.put("segmentMs", segmentMillis);
+		snapshot.put("segments", segments);
+		snapshot.put("bytes", finishedBytes
+				+ (current != null ? current.getBytes() : 0));
+		snapshot.put("current", current != null ? currentUri : null);
+		snapshot.put("failures", failures);
+		return snapshot;
+	}
+
+	/**
+	 * Records segments with recorder endpoints in the pipeline of the
+	 * presenter.
+	 */
+	private static class RecorderSegments implements SegmentFactory {
+
+		private final MediaPipeline pipeline;
+		private final MediaElement source;
+
+		RecorderSegments(MediaPipeline pipeline, MediaElement source) {
+			this.pipeline = pipeline;
+			this.source = source;
+		}
+
+		@Override
+		public Segment create(final String uri) {
+			return new Segment() {
+
+				private RecorderEndpoint recorder;
+
+				@Override
+				public void start() {
+					recorder = new RecorderEndpoint.Builder(pipeline, uri)
+							.build();
+					try {
+						source.connect(recorder);
+						recorder.record();
+					} catch (RuntimeException e) {
+						recorder.release();
+						throw e;
+					}
+				}
+
+				@Override
+				public void stop() {
+					try {
+						recorder.stop();
+					} finally {
+						recorder.release();
+					}
+				}
+
+				@Override
+				public long getBytes() {
+					return uri.startsWith(FILE_SCHEME) ? new File(uri
+							.substring(FILE_SCHEME.length())).length() : 0;
+				}
+			};
+		}
+	}
+
+}
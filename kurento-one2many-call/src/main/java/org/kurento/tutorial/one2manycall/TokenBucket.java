@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of calls made to the media servers. Tokens accumulate at
+ * the configured rate, up to one second worth of them; a caller that finds
+ * too few of them reserves the ones it needs and sleeps until they are due,
+ * so callers are served in arrival order.
+ * <p>
+ * A single bucket is shared by everything that calls the media servers for
+ * the viewers, and every call is charged where it is made. The rate is
+ * configured through {@code one2many.kms.calls.per.second} (200), 0 for no
+ * limit.
+ *
+ * @since 6.0.0
+ */
+public class TokenBucket {
+
+	static final String RATE_PROPERTY = "one2many.kms.calls.per.second";
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final int ratePerSecond;
+
+	// Guarded by this
+	private double tokens;
+	private long refilledAt = System.nanoTime();
+	private long taken;
+	private long second = refilledAt / SECOND;
+	private long takenThisSecond;
+	private long takenLastSecond;
+
+	/**
+	 * Creates a bucket with the rate configured through the system
+	 * properties.
+	 */
+	public static TokenBucket create() {
+		return new TokenBucket(Integer.getInteger(RATE_PROPERTY, 200));
+	}
+
+	/**
+	 * @param ratePerSecond
+	 *            calls per second, or 0 for no limit
+	 */
+	public TokenBucket(int ratePerSecond) {
+		this.ratePerSecond = ratePerSecond;
+		this.tokens = ratePerSecond;
+	}
+
+	/**
+	 * Takes tokens, waiting until they are available. With no permits, only
+	 * waits for the calls reserved before.
+	 *
+	 * @param permits
+	 *            number of calls about to be made
+	 */
+	public void acquire(int permits) throws InterruptedException {
+		final long wait;
+		synchronized (this) {
+			final long now = System.nanoTime();
+			count(now, permits);
+			if (ratePerSecond <= 0) {
+				return;
+			}
+			tokens = Math.min(ratePerSecond, tokens + (now - refilledAt)
+					* (double) ratePerSecond / SECOND);
+			refilledAt = now;
+			tokens -= permits;
+			wait = tokens >= 0 ? 0 : (long) (-tokens * SECOND / ratePerSecond);
+		}
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Takes tokens for calls about to be made, waiting until they are due. An
+	 * interrupted caller makes its calls at once, with its interrupt status
+	 * set.
+	 *
+	 * @param calls
+	 *            number of calls about to be made
+	 */
+	public void charge(int calls) {
+		try {
+			acquire(calls);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void count(long now, int permits) {
+		roll(now);
+		taken += permits;
+		takenThisSecond += permits;
+	}
+
+	private void roll(long now) {
+		final long current = now / SECOND;
+		if (current != second) {
+			takenLastSecond = current == second + 1 ? takenThisSecond : 0;
+			takenThisSecond = 0;
+			second = current;
+		}
+	}
+
+	/**
+	 * @return the configured rate, the calls made so far and those made
+	 *         during the last whole second
+	 */
+	public synchronized Map<String, Object> snapshot() {
+		roll(System.nanoTime());
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("ratePerSecond", ratePerSecond);
+		snapshot.put("calls", taken);
+		snapshot.put("callsLastSecond", takenLastSecond);
+		return snapshot;
+	}
+
+}
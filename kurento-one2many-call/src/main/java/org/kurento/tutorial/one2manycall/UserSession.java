@@ -14,10 +14,14 @@
  */
 package org.kurento.tutorial.one2manycall;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.kurento.client.IceCandidate;
+import org.kurento.client.MediaElement;
 import org.kurento.client.WebRtcEndpoint;
+import org.kurento.tutorial.signaling.Layer;
+import org.kurento.tutorial.signaling.OutboundQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.TextMessage;
@@ -37,31 +41,122 @@ public class UserSession {
 			.getLogger(UserSession.class);
 
 	private final WebSocketSession session;
-	private WebRtcEndpoint webRtcEndpoint;
+	private final OutboundQueue outbound;
+	private final long createdNanos = System.nanoTime();
+	private volatile WebRtcEndpoint webRtcEndpoint;
+	private final List<IceCandidate> candidateList = new ArrayList<IceCandidate>();
+	private Layer layer = Layer.HIGH;
+	private RelayTree.Node node;
+	private boolean firstFrameSeen;
+	private volatile MediaElement keyframeProbe;
 
-	public UserSession(WebSocketSession session) {
+	public UserSession(WebSocketSession session, OutboundQueue outbound) {
 		this.session = session;
+		this.outbound = outbound;
 	}
 
 	public WebSocketSession getSession() {
 		return session;
 	}
 
-	public void sendMessage(JsonObject message) throws IOException {
+	public void sendMessage(JsonObject message) {
 		log.debug("Sending message from user with session Id '{}': {}",
 				session.getId(), message);
-		session.sendMessage(new TextMessage(message.toString()));
+		outbound.send(new TextMessage(message.toString()));
+	}
+
+	/**
+	 * Sends a message already serialized, such as one shared by many users.
+	 */
+	public void send(TextMessage message) {
+		outbound.send(message);
 	}
 
 	public WebRtcEndpoint getWebRtcEndpoint() {
 		return webRtcEndpoint;
 	}
 
-	public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
+	public synchronized void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
 		this.webRtcEndpoint = webRtcEndpoint;
+
+		for (IceCandidate e : candidateList) {
+			this.webRtcEndpoint.addIceCandidate(e);
+		}
+		this.candidateList.clear();
+	}
+
+	/**
+	 * @return the layer a viewer receives the presenter at
+	 */
+	public Layer getLayer() {
+		return layer;
+	}
+
+	public void setLayer(Layer layer) {
+		this.layer = layer;
+	}
+
+	/**
+	 * @return the pipeline of the relay tree a viewer is attached to
+	 */
+	public RelayTree.Node getNode() {
+		return node;
+	}
+
+	public void setNode(RelayTree.Node node) {
+		this.node = node;
+	}
+
+	/**
+	 * @return the value of {@link System#nanoTime()} when the user asked to
+	 *         present or view
+	 */
+	public long getCreatedNanos() {
+		return createdNanos;
+	}
+
+	/**
+	 * Records that a viewer displayed its first frame.
+	 *
+	 * @return false if it had already been recorded
+	 */
+	public synchronized boolean firstFrame() {
+		if (firstFrameSeen) {
+			return false;
+		}
+		firstFrameSeen = true;
+		return true;
+	}
+
+	/**
+	 * @param keyframeProbe
+	 *            an element of the pipeline of a presenter that nothing else
+	 *            is connected to
+	 */
+	public void setKeyframeProbe(MediaElement keyframeProbe) {
+		this.keyframeProbe = keyframeProbe;
+	}
+
+	/**
+	 * Asks the browser of a presenter for a keyframe. The endpoint of the
+	 * presenter sends a picture loss indication upstream whenever a new sink
+	 * is linked to it, so the probe is linked again. No viewer or relay is
+	 * disconnected.
+	 */
+	public synchronized void requestKeyframe() {
+		webRtcEndpoint.disconnect(keyframeProbe);
+		webRtcEndpoint.connect(keyframeProbe);
 	}
 
-	public void addCandidate(IceCandidate i) {
-		webRtcEndpoint.addIceCandidate(i);
+	/**
+	 * Adds a candidate to the endpoint, or keeps it until the endpoint is set,
+	 * as viewers send candidates while their join is queued.
+	 */
+	public synchronized void addCandidate(IceCandidate i) {
+		if (this.webRtcEndpoint != null) {
+			this.webRtcEndpoint.addIceCandidate(i);
+		} else {
+			candidateList.add(i);
+		}
 	}
 }
@@ -0,0 +1,185 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2manycall.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.tutorial.one2manycall.SegmentedRecorder;
+
+/**
+ * Drives the rotation of a {@link SegmentedRecorder} with fake segments, and
+ * checks the segments recorded, the names of their files, that every segment
+ * stops only once the next one is recording, and that every segment that
+ * starts requests a keyframe.
+ * <p>
+ * A start that fails is injected halfway, after which the current segment has
+ * to go on. Usage: {@code SegmentedRecorderCheck [rotations]}, 5 by default.
+ * Exits with 1 if a check fails.
+ *
+ * @since 6.0.0
+ */
+public class SegmentedRecorderCheck {
+
+	private static final String DIRECTORY = "file:///tmp/recordings";
+	private static final String PREFIX = "channel_1";
+	private static final String NAME_PATTERN = "\\Q" + DIRECTORY + "/"
+			+ PREFIX + "-\\E\\d{8}-\\d{6}-\\d+\\.webm";
+
+	public static void main(String[] args) throws Exception {
+		final int rotations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+		final List<String> failures = new ArrayList<>();
+		final FakeSegments factory = new FakeSegments(failures);
+		final AtomicInteger keyframes = new AtomicInteger();
+		final ScheduledExecutorService executor = Executors
+				.newSingleThreadScheduledExecutor();
+		try {
+			// Rotated by hand, never by the executor
+			final SegmentedRecorder recorder = new SegmentedRecorder(
+					DIRECTORY, PREFIX, factory, TimeUnit.HOURS.toMillis(1),
+					executor, new Runnable() {
+						@Override
+						public void run() {
+							keyframes.incrementAndGet();
+						}
+					});
+			recorder.start();
+			for (int i = 0; i < rotations; i++) {
+				if (i == rotations / 2) {
+					factory.failNextStart();
+					recorder.rotate();
+				}
+				recorder.rotate();
+			}
+			factory.lastStop();
+			recorder.stop();
+			recorder.rotate();
+
+			final int expected = rotations + 1;
+			check(failures, factory.started.size() == expected, "started "
+					+ factory.started.size() + " segments, expected "
+					+ expected);
+			check(failures, factory.stopped.size() == expected, "stopped "
+					+ factory.stopped.size() + " segments, expected "
+					+ expected);
+			check(failures, factory.stopped.equals(factory.started),
+					"segments stopped in another order than started");
+			check(failures, keyframes.get() == expected, "requested "
+					+ keyframes.get() + " keyframes, expected " + expected);
+			for (int i = 0; i < factory.started.size(); i++) {
+				final String uri = factory.started.get(i);
+				check(failures, uri.matches(NAME_PATTERN), "unexpected name "
+						+ uri);
+				check(failures, uri.endsWith("-" + (i + 1) + ".webm"),
+						"segment " + (i + 1) + " named " + uri);
+			}
+
+			final Map<String, Object> snapshot = recorder.snapshot();
+			check(failures, snapshot.get("segments").equals(expected),
+					"snapshot reports " + snapshot.get("segments")
+							+ " segments");
+			check(failures, snapshot.get("failures").equals(1),
+					"snapshot reports " + snapshot.get("failures")
+							+ " failures");
+			check(failures, snapshot.get("current") == null,
+					"still recording after stop");
+			System.out.println(snapshot);
+
+			for (String failure : failures) {
+				System.out.println("FAILED: " + failure);
+			}
+			System.out.println(failures.isEmpty() ? "OK" : failures.size()
+					+ " checks failed");
+			if (!failures.isEmpty()) {
+				System.exit(1);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void check(List<String> failures, boolean condition,
+			String failure) {
+		if (!condition) {
+			failures.add(failure);
+		}
+	}
+
+	/**
+	 * Records which segments start and stop, and checks that a segment is
+	 * only stopped while another one is recording.
+	 */
+	private static class FakeSegments implements
+			SegmentedRecorder.SegmentFactory {
+
+		final List<String> started = new ArrayList<>();
+		final List<String> stopped = new ArrayList<>();
+		private final List<String> failures;
+		private int recording;
+		private boolean failNextStart;
+		private boolean lastStop;
+
+		FakeSegments(List<String> failures) {
+			this.failures = failures;
+		}
+
+		void failNextStart() {
+			failNextStart = true;
+		}
+
+		/**
+		 * The next segment stopped is the last one, with nothing after it
+		 */
+		void lastStop() {
+			lastStop = true;
+		}
+
+		@Override
+		public SegmentedRecorder.Segment create(final String uri) {
+			return new SegmentedRecorder.Segment() {
+
+				@Override
+				public void start() {
+					if (failNextStart) {
+						failNextStart = false;
+						throw new IllegalStateException("Fake failure");
+					}
+					started.add(uri);
+					recording++;
+				}
+
+				@Override
+				public void stop() {
+					stopped.add(uri);
+					recording--;
+					check(failures, recording > 0 || lastStop, uri
+							+ " stopped before the next segment was recording");
+				}
+
+				@Override
+				public long getBytes() {
+					return 1000;
+				}
+			};
+		}
+	}
+
+}
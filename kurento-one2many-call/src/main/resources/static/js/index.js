@@ -37,6 +37,10 @@ ws.onmessage = function(message) {
 	case 'viewerResponse':
 		viewerResponse(parsedMessage);
 		break;
+	case 'queued':
+		console.info('Waiting to join the broadcast, position '
+				+ parsedMessage.position);
+		break;
 	case 'iceCandidate':
 		webRtcPeer.addIceCandidate(parsedMessage.candidate, function(error) {
 			if (error)
@@ -101,6 +105,7 @@ function onOfferPresenter(error, offerSdp) {
 	console.info('Invoking SDP offer callback function ' + location.host);
 	var message = {
 		id : 'presenter',
+		channel : channel(),
 		sdpOffer : offerSdp
 	}
 	sendMessage(message);
@@ -114,6 +119,7 @@ function viewer() {
 			remoteVideo : video,
 			onicecandidate : onIceCandidate
 		}
+		video.addEventListener('playing', onFirstFrame);
 		webRtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerRecvonly(options,
 				function(error) {
 					if (error) {
@@ -130,11 +136,24 @@ function onOfferViewer(error, offerSdp) {
 	console.info('Invoking SDP offer callback function ' + location.host);
 	var message = {
 		id : 'viewer',
+		channel : channel(),
 		sdpOffer : offerSdp
 	}
 	sendMessage(message);
 }
 
+function onFirstFrame() {
+	video.removeEventListener('playing', onFirstFrame);
+	var message = {
+		id : 'firstFrame'
+	}
+	sendMessage(message);
+}
+
+function channel() {
+	return document.getElementById('channel').value || 'default';
+}
+
 function onIceCandidate(candidate) {
 	console.log("Local candidate" + JSON.stringify(candidate));
 
@@ -154,6 +173,7 @@ function stop() {
 }
 
 function dispose() {
+	video.removeEventListener('playing', onFirstFrame);
 	if (webRtcPeer) {
 		webRtcPeer.dispose();
 		webRtcPeer = null;
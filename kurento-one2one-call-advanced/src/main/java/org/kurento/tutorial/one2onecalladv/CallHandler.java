@@ -14,15 +14,14 @@
  */
 package org.kurento.tutorial.one2onecalladv;
 
-import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
-import org.kurento.client.OnIceCandidateEvent;
-import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.kurento.tutorial.signaling.SignalingCodec;
+import org.kurento.tutorial.signaling.SignalingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -31,8 +30,6 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 /**
@@ -46,7 +43,6 @@ public class CallHandler extends TextWebSocketHandler {
 
 	private static final Logger log = LoggerFactory
 			.getLogger(CallHandler.class);
-	private static final Gson gson = new GsonBuilder().create();
 
 	private final ConcurrentHashMap<String, MediaPipeline> pipelines = new ConcurrentHashMap<String, MediaPipeline>();
 
@@ -56,11 +52,14 @@ public class CallHandler extends TextWebSocketHandler {
 	@Autowired
 	private UserRegistry registry;
 
+	@Autowired
+	private OutboundQueues outboundQueues;
+
 	@Override
 	public void handleTextMessage(WebSocketSession session, TextMessage message)
 			throws Exception {
-		JsonObject jsonMessage = gson.fromJson(message.getPayload(),
-				JsonObject.class);
+		SignalingMessage jsonMessage = SignalingCodec.decode(message
+				.getPayload());
 		UserSession user = registry.getBySession(session);
 
 		if (user != null) {
@@ -70,7 +69,7 @@ public class CallHandler extends TextWebSocketHandler {
 			log.debug("Incoming message from new user: {}", jsonMessage);
 		}
 
-		switch (jsonMessage.get("id").getAsString()) {
+		switch (jsonMessage.getId()) {
 		case "register":
 			register(session, jsonMessage);
 			break;
@@ -83,15 +82,12 @@ public class CallHandler extends TextWebSocketHandler {
 		case "play":
 			play(user, jsonMessage);
 			break;
-		case "onIceCandidate": {
-			JsonObject candidate = jsonMessage.get("candidate")
-					.getAsJsonObject();
-
+		case "onIceCandidate":
+		case "onIceCandidates": {
 			if (user != null) {
-				IceCandidate cand = new IceCandidate(candidate.get("candidate")
-						.getAsString(), candidate.get("sdpMid").getAsString(),
-						candidate.get("sdpMLineIndex").getAsInt());
-				user.addCandidate(cand);
+				for (IceCandidate cand : jsonMessage.getCandidates()) {
+					user.addCandidate(cand);
+				}
 			}
 			break;
 		}
@@ -105,11 +101,12 @@ public class CallHandler extends TextWebSocketHandler {
 		}
 	}
 
-	private void register(WebSocketSession session, JsonObject jsonMessage)
-			throws IOException {
-		String name = jsonMessage.getAsJsonPrimitive("name").getAsString();
+	private void register(WebSocketSession session,
+			SignalingMessage jsonMessage) {
+		String name = jsonMessage.getString("name");
 
-		UserSession caller = new UserSession(session, name);
+		UserSession caller = new UserSession(session, name,
+				outboundQueues.get(session));
 		String responseMsg = "accepted";
 		if (name.isEmpty()) {
 			responseMsg = "rejected: empty user name";
@@ -125,16 +122,14 @@ public class CallHandler extends TextWebSocketHandler {
 		caller.sendMessage(response);
 	}
 
-	private void call(UserSession caller, JsonObject jsonMessage)
-			throws IOException {
-		String to = jsonMessage.get("to").getAsString();
-		String from = jsonMessage.get("from").getAsString();
+	private void call(UserSession caller, SignalingMessage jsonMessage) {
+		String to = jsonMessage.getString("to");
+		String from = jsonMessage.getString("from");
 		JsonObject response = new JsonObject();
 
 		if (registry.exists(to)) {
 			UserSession callee = registry.getByName(to);
-			caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer")
-					.getAsString());
+			caller.setSdpOffer(jsonMessage.getSdpOffer());
 			caller.setCallingTo(to);
 
 			response.addProperty("id", "incomingCall");
@@ -153,9 +148,9 @@ public class CallHandler extends TextWebSocketHandler {
 	}
 
 	private void incomingCallResponse(final UserSession callee,
-			JsonObject jsonMessage) throws IOException {
-		String callResponse = jsonMessage.get("callResponse").getAsString();
-		String from = jsonMessage.get("from").getAsString();
+			SignalingMessage jsonMessage) {
+		String callResponse = jsonMessage.getString("callResponse");
+		String from = jsonMessage.getString("from");
 		final UserSession calleer = registry.getByName(from);
 		String to = calleer.getCallingTo();
 
@@ -169,67 +164,27 @@ public class CallHandler extends TextWebSocketHandler {
 			pipelines.put(callee.getSessionId(),
 					callMediaPipeline.getPipeline());
 
-			String calleeSdpOffer = jsonMessage.get("sdpOffer").getAsString();
+			String calleeSdpOffer = jsonMessage.getSdpOffer();
 			String calleeSdpAnswer = callMediaPipeline
 					.generateSdpAnswerForCallee(calleeSdpOffer);
 
 			callee.setWebRtcEndpoint(callMediaPipeline.getCalleeWebRtcEP());
-			callMediaPipeline.getCalleeWebRtcEP().addOnIceCandidateListener(
-					new EventListener<OnIceCandidateEvent>() {
-
-						@Override
-						public void onEvent(OnIceCandidateEvent event) {
-							JsonObject response = new JsonObject();
-							response.addProperty("id", "iceCandidate");
-							response.add("candidate", JsonUtils
-									.toJsonObject(event.getCandidate()));
-							try {
-								synchronized (callee.getSession()) {
-									callee.getSession()
-											.sendMessage(
-													new TextMessage(response
-															.toString()));
-								}
-							} catch (IOException e) {
-								log.debug(e.getMessage());
-							}
-						}
-					});
+			callMediaPipeline.getCalleeWebRtcEP().addOnIceCandidateListener(outboundQueues
+					.iceCandidateForwarder(callee.getSession()));
 
 			JsonObject startCommunication = new JsonObject();
 			startCommunication.addProperty("id", "startCommunication");
 			startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
 
-			synchronized (callee) {
-				callee.sendMessage(startCommunication);
-			}
+			callee.sendMessage(startCommunication);
 
 			callMediaPipeline.getCalleeWebRtcEP().gatherCandidates();
 
 			String callerSdpOffer = registry.getByName(from).getSdpOffer();
 
 			calleer.setWebRtcEndpoint(callMediaPipeline.getCallerWebRtcEP());
-			callMediaPipeline.getCallerWebRtcEP().addOnIceCandidateListener(
-					new EventListener<OnIceCandidateEvent>() {
-
-						@Override
-						public void onEvent(OnIceCandidateEvent event) {
-							JsonObject response = new JsonObject();
-							response.addProperty("id", "iceCandidate");
-							response.add("candidate", JsonUtils
-									.toJsonObject(event.getCandidate()));
-							try {
-								synchronized (calleer.getSession()) {
-									calleer.getSession()
-											.sendMessage(
-													new TextMessage(response
-															.toString()));
-								}
-							} catch (IOException e) {
-								log.debug(e.getMessage());
-							}
-						}
-					});
+			callMediaPipeline.getCallerWebRtcEP().addOnIceCandidateListener(outboundQueues
+					.iceCandidateForwarder(calleer.getSession()));
 
 			String callerSdpAnswer = callMediaPipeline
 					.generateSdpAnswerForCaller(callerSdpOffer);
@@ -239,9 +194,7 @@ public class CallHandler extends TextWebSocketHandler {
 			response.addProperty("response", "accepted");
 			response.addProperty("sdpAnswer", callerSdpAnswer);
 
-			synchronized (calleer) {
-				calleer.sendMessage(response);
-			}
+			calleer.sendMessage(response);
 
 			callMediaPipeline.getCallerWebRtcEP().gatherCandidates();
 
@@ -255,7 +208,7 @@ public class CallHandler extends TextWebSocketHandler {
 		}
 	}
 
-	public void stopCommunication(WebSocketSession session) throws IOException {
+	public void stopCommunication(WebSocketSession session) {
 		// Both users can stop the communication. A 'stopCommunication'
 		// message will be sent to the other peer.
 		UserSession stopperUser = registry.getBySession(session);
@@ -268,7 +221,7 @@ public class CallHandler extends TextWebSocketHandler {
 		stoppedUser.sendMessage(message);
 	}
 
-	public void releasePipeline(UserSession session) throws IOException {
+	public void releasePipeline(UserSession session) {
 		String sessionId = session.getSessionId();
 		// set to null the endpoint of the other user
 		UserSession stoppedUser = (session.getCallingFrom() != null) ? registry
@@ -285,9 +238,8 @@ public class CallHandler extends TextWebSocketHandler {
 		stoppedUser.setPlayingWebRtcEndpoint(null);
 	}
 
-	private void play(final UserSession session, JsonObject jsonMessage)
-			throws IOException {
-		String user = jsonMessage.get("user").getAsString();
+	private void play(final UserSession session, SignalingMessage jsonMessage) {
+		String user = jsonMessage.getString("user");
 		log.debug("Playing recorded call of user '{}'", user);
 
 		JsonObject response = new JsonObject();
@@ -296,32 +248,13 @@ public class CallHandler extends TextWebSocketHandler {
 		if (registry.getByName(user) != null
 				&& registry.getBySession(session.getSession()) != null) {
 			PlayMediaPipeline playMediaPipeline = new PlayMediaPipeline(
-					kurento, user, session.getSession());
-			String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
+					kurento, user, session);
+			String sdpOffer = jsonMessage.getSdpOffer();
 
 			session.setPlayingWebRtcEndpoint(playMediaPipeline.getWebRtc());
 
-			playMediaPipeline.getWebRtc().addOnIceCandidateListener(
-					new EventListener<OnIceCandidateEvent>() {
-
-						@Override
-						public void onEvent(OnIceCandidateEvent event) {
-							JsonObject response = new JsonObject();
-							response.addProperty("id", "iceCandidate");
-							response.add("candidate", JsonUtils
-									.toJsonObject(event.getCandidate()));
-							try {
-								synchronized (session) {
-									session.getSession()
-											.sendMessage(
-													new TextMessage(response
-															.toString()));
-								}
-							} catch (IOException e) {
-								log.debug(e.getMessage());
-							}
-						}
-					});
+			playMediaPipeline.getWebRtc().addOnIceCandidateListener(outboundQueues
+					.iceCandidateForwarder(session.getSession()));
 
 			String sdpAnswer = playMediaPipeline.generateSdpAnswer(sdpOffer);
 
@@ -332,9 +265,7 @@ public class CallHandler extends TextWebSocketHandler {
 			playMediaPipeline.play();
 			pipelines.put(session.getSessionId(),
 					playMediaPipeline.getPipeline());
-			synchronized (session.getSession()) {
-				session.sendMessage(response);
-			}
+			session.sendMessage(response);
 
 			playMediaPipeline.getWebRtc().gatherCandidates();
 
@@ -342,8 +273,7 @@ public class CallHandler extends TextWebSocketHandler {
 			response.addProperty("response", "rejected");
 			response.addProperty("error", "No recording for user '" + user
 					+ "'. Please type a correct user in the 'Peer' field.");
-			session.getSession().sendMessage(
-					new TextMessage(response.toString()));
+			session.sendMessage(response);
 		}
 	}
 
@@ -351,6 +281,7 @@ public class CallHandler extends TextWebSocketHandler {
 	public void afterConnectionClosed(WebSocketSession session,
 			CloseStatus status) throws Exception {
 		registry.removeBySession(session);
+		outboundQueues.remove(session);
 	}
 
 }
@@ -15,6 +15,7 @@
 package org.kurento.tutorial.one2onecalladv;
 
 import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -54,6 +55,11 @@ public class One2OneCallAdvApp implements WebSocketConfigurer {
 				DEFAULT_KMS_WS_URI));
 	}
 
+	@Bean
+	public OutboundQueues outboundQueues() {
+		return new OutboundQueues();
+	}
+
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
 		registry.addHandler(callHandler(), "/call");
 	}
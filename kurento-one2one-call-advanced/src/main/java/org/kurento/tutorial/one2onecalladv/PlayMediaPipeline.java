@@ -17,8 +17,6 @@ package org.kurento.tutorial.one2onecalladv;
 import static org.kurento.tutorial.one2onecalladv.CallMediaPipeline.RECORDING_EXT;
 import static org.kurento.tutorial.one2onecalladv.CallMediaPipeline.RECORDING_PATH;
 
-import java.io.IOException;
-
 import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
@@ -28,8 +26,6 @@ import org.kurento.client.PlayerEndpoint;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
-import org.springframework.web.socket.WebSocketSession;
 
 import com.google.gson.JsonObject;
 
@@ -50,7 +46,7 @@ public class PlayMediaPipeline {
 	private final PlayerEndpoint player;
 
 	public PlayMediaPipeline(KurentoClient kurento, String user,
-			final WebSocketSession session) {
+			final UserSession session) {
 		// Media pipeline
 		pipeline = kurento.createMediaPipeline();
 
@@ -78,14 +74,10 @@ public class PlayMediaPipeline {
 		});
 	}
 
-	public void sendPlayEnd(WebSocketSession session) {
-		try {
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "playEnd");
-			session.sendMessage(new TextMessage(response.toString()));
-		} catch (IOException e) {
-			log.error("Error sending playEndOfStream message", e);
-		}
+	public void sendPlayEnd(UserSession session) {
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "playEnd");
+		session.sendMessage(response);
 
 		// Release pipeline
 		pipeline.release();
@@ -14,12 +14,12 @@
  */
 package org.kurento.tutorial.one2onecalladv;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
+import org.kurento.tutorial.signaling.OutboundQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.TextMessage;
@@ -41,6 +41,7 @@ public class UserSession {
 
 	private final String name;
 	private final WebSocketSession session;
+	private final OutboundQueue outbound;
 
 	private String sdpOffer;
 	private String callingTo;
@@ -49,9 +50,11 @@ public class UserSession {
 	private WebRtcEndpoint playingWebRtcEndpoint;
 	private final List<IceCandidate> candidateList = new ArrayList<IceCandidate>();
 
-	public UserSession(WebSocketSession session, String name) {
+	public UserSession(WebSocketSession session, String name,
+			OutboundQueue outbound) {
 		this.session = session;
 		this.name = name;
+		this.outbound = outbound;
 	}
 
 	public WebSocketSession getSession() {
@@ -86,9 +89,9 @@ public class UserSession {
 		this.callingFrom = callingFrom;
 	}
 
-	public void sendMessage(JsonObject message) throws IOException {
+	public void sendMessage(JsonObject message) {
 		log.debug("Sending message from user '{}': {}", name, message);
-		session.sendMessage(new TextMessage(message.toString()));
+		outbound.send(new TextMessage(message.toString()));
 	}
 
 	public String getSessionId() {
@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2onecall;
+
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * A call between two users, from the moment the caller asks for it until it
+ * ends. The call moves forward through its states only, and whatever ends it
+ * first releases its media pipeline; later attempts do nothing.
+ *
+ * @since 6.0.0
+ */
+public class Call {
+
+	public enum State {
+		/**
+		 * The callee has been asked, and has not answered yet
+		 */
+		RINGING,
+		/**
+		 * The callee accepted, and the media pipeline is being set up
+		 */
+		NEGOTIATING,
+		/**
+		 * Both users have their answer
+		 */
+		ACTIVE,
+		/**
+		 * Rejected, stopped or failed. The pipeline is being or has been
+		 * released
+		 */
+		ENDING
+	}
+
+	private final UserSession caller;
+	private final UserSession callee;
+	private final String callerSdpOffer;
+
+	// Guarded by this
+	private State state = State.RINGING;
+	private CallMediaPipeline pipeline;
+
+	public Call(UserSession caller, UserSession callee, String callerSdpOffer) {
+		this.caller = caller;
+		this.callee = callee;
+		this.callerSdpOffer = callerSdpOffer;
+	}
+
+	public UserSession getCaller() {
+		return caller;
+	}
+
+	public UserSession getCallee() {
+		return callee;
+	}
+
+	public String getCallerSdpOffer() {
+		return callerSdpOffer;
+	}
+
+	/**
+	 * @return the other user of the call
+	 */
+	public UserSession getPeer(WebSocketSession session) {
+		return caller.getSession() == session ? callee : caller;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Moves a ringing call to negotiation, once the callee accepts it.
+	 *
+	 * @return false if the call is not ringing anymore
+	 */
+	public synchronized boolean negotiate() {
+		if (state != State.RINGING) {
+			return false;
+		}
+		state = State.NEGOTIATING;
+		return true;
+	}
+
+	/**
+	 * Hands the media pipeline of the call over, so that it is released when
+	 * the call ends.
+	 *
+	 * @return false if the call ended while the pipeline was being created,
+	 *         in which case the pipeline has been released
+	 */
+	public boolean attach(CallMediaPipeline pipeline) {
+		synchronized (this) {
+			if (state != State.ENDING) {
+				this.pipeline = pipeline;
+				return true;
+			}
+		}
+		pipeline.release();
+		return false;
+	}
+
+	/**
+	 * Marks a negotiated call as established.
+	 *
+	 * @return false if the call ended during the negotiation
+	 */
+	public synchronized boolean activate() {
+		if (state != State.NEGOTIATING) {
+			return false;
+		}
+		state = State.ACTIVE;
+		return true;
+	}
+
+	/**
+	 * Ends the call, releasing its pipeline and the endpoints of its users.
+	 *
+	 * @return false if the call had already ended
+	 */
+	public boolean end() {
+		final CallMediaPipeline released;
+		synchronized (this) {
+			if (state == State.ENDING) {
+				return false;
+			}
+			state = State.ENDING;
+			released = pipeline;
+			pipeline = null;
+		}
+		caller.resetWebRtcEndpoint();
+		callee.resetWebRtcEndpoint();
+		if (released != null) {
+			released.release();
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return caller.getName() + " -> " + callee.getName();
+	}
+
+}
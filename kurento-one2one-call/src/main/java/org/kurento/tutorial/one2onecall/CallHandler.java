@@ -14,14 +14,11 @@
  */
 package org.kurento.tutorial.one2onecall;
 
-import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
-
-import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
-import org.kurento.client.OnIceCandidateEvent;
-import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.kurento.tutorial.signaling.SignalingCodec;
+import org.kurento.tutorial.signaling.SignalingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -30,12 +27,12 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 /**
- * Protocol handler for 1 to 1 video call communication.
+ * Protocol handler for 1 to 1 video call communication. Every call is a
+ * {@link Call}, found through the {@link CallRegistry} by the session of
+ * either of its users.
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
@@ -44,9 +41,6 @@ import com.google.gson.JsonObject;
 public class CallHandler extends TextWebSocketHandler {
 
 	private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
-	private static final Gson gson = new GsonBuilder().create();
-
-	private final ConcurrentHashMap<String, CallMediaPipeline> pipelines = new ConcurrentHashMap<String, CallMediaPipeline>();
 
 	@Autowired
 	private KurentoClient kurento;
@@ -54,9 +48,15 @@ public class CallHandler extends TextWebSocketHandler {
 	@Autowired
 	private UserRegistry registry;
 
+	@Autowired
+	private CallRegistry calls;
+
+	@Autowired
+	private OutboundQueues outboundQueues;
+
 	@Override
 	public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-		JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
+		SignalingMessage jsonMessage = SignalingCodec.decode(message.getPayload());
 		UserSession user = registry.getBySession(session);
 
 		if (user != null) {
@@ -65,7 +65,7 @@ public class CallHandler extends TextWebSocketHandler {
 			log.debug("Incoming message from new user: {}", jsonMessage);
 		}
 
-		switch (jsonMessage.get("id").getAsString()) {
+		switch (jsonMessage.getId()) {
 		case "register":
 			try {
 				register(session, jsonMessage);
@@ -75,7 +75,7 @@ public class CallHandler extends TextWebSocketHandler {
 				response.addProperty("id", "registerResponse");
 				response.addProperty("response", "rejected");
 				response.addProperty("message", t.getMessage());
-				session.sendMessage(new TextMessage(response.toString()));
+				outboundQueues.get(session).send(new TextMessage(response.toString()));
 			}
 			break;
 		case "call":
@@ -87,18 +87,18 @@ public class CallHandler extends TextWebSocketHandler {
 				response.addProperty("id", "callResponse");
 				response.addProperty("response", "rejected");
 				response.addProperty("message", t.getMessage());
-				session.sendMessage(new TextMessage(response.toString()));
+				outboundQueues.get(session).send(new TextMessage(response.toString()));
 			}
 			break;
 		case "incomingCallResponse":
 			incomingCallResponse(user, jsonMessage);
 			break;
-		case "onIceCandidate": {
-			JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
+		case "onIceCandidate":
+		case "onIceCandidates": {
 			if (user != null) {
-				IceCandidate cand = new IceCandidate(candidate.get("candidate").getAsString(),
-						candidate.get("sdpMid").getAsString(), candidate.get("sdpMLineIndex").getAsInt());
-				user.addCandidate(cand);
+				for (IceCandidate cand : jsonMessage.getCandidates()) {
+					user.addCandidate(cand);
+				}
 			}
 			break;
 		}
@@ -110,10 +110,10 @@ public class CallHandler extends TextWebSocketHandler {
 		}
 	}
 
-	private void register(WebSocketSession session, JsonObject jsonMessage) throws IOException {
-		String name = jsonMessage.getAsJsonPrimitive("name").getAsString();
+	private void register(WebSocketSession session, SignalingMessage jsonMessage) {
+		String name = jsonMessage.getString("name");
 
-		UserSession caller = new UserSession(session, name);
+		UserSession caller = new UserSession(session, name, outboundQueues.get(session));
 		String responseMsg = "accepted";
 		if (name.isEmpty()) {
 			responseMsg = "rejected: empty user name";
@@ -129,91 +129,76 @@ public class CallHandler extends TextWebSocketHandler {
 		caller.sendMessage(response);
 	}
 
-	private void call(UserSession caller, JsonObject jsonMessage) throws IOException {
-		String to = jsonMessage.get("to").getAsString();
-		String from = jsonMessage.get("from").getAsString();
+	private void call(UserSession caller, SignalingMessage jsonMessage) {
+		String to = jsonMessage.getString("to");
+		UserSession callee = registry.getByName(to);
 		JsonObject response = new JsonObject();
 
-		if (registry.exists(to)) {
-			UserSession callee = registry.getByName(to);
-			caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
-			caller.setCallingTo(to);
-
-			response.addProperty("id", "incomingCall");
-			response.addProperty("from", from);
-
-			callee.sendMessage(response);
-			callee.setCallingFrom(from);
-		} else {
+		if (callee == null) {
 			response.addProperty("id", "callResponse");
 			response.addProperty("response", "rejected: user '" + to + "' is not registered");
 
 			caller.sendMessage(response);
+		} else if (calls.start(caller, callee, jsonMessage.getSdpOffer()) == null) {
+			response.addProperty("id", "callResponse");
+			if (calls.get(caller.getSession()) != null) {
+				response.addProperty("response", "rejected: you are already in a call");
+			} else {
+				response.addProperty("response", "rejected: user '" + to + "' is busy");
+			}
+
+			caller.sendMessage(response);
+		} else {
+			response.addProperty("id", "incomingCall");
+			response.addProperty("from", caller.getName());
+
+			callee.sendMessage(response);
 		}
 	}
 
-	private void incomingCallResponse(final UserSession callee, JsonObject jsonMessage) throws IOException {
-		String callResponse = jsonMessage.get("callResponse").getAsString();
-		String from = jsonMessage.get("from").getAsString();
-		final UserSession calleer = registry.getByName(from);
-		String to = calleer.getCallingTo();
+	private void incomingCallResponse(final UserSession callee, SignalingMessage jsonMessage) {
+		String callResponse = jsonMessage.getString("callResponse");
+		Call call = callee != null ? calls.get(callee.getSession()) : null;
+		if (call == null || call.getCallee() != callee) {
+			log.debug("No incoming call to answer for {}", callee);
+			return;
+		}
+		final UserSession calleer = call.getCaller();
 
 		if ("accept".equals(callResponse)) {
-			log.debug("Accepted call from '{}' to '{}'", from, to);
+			if (!call.negotiate()) {
+				return;
+			}
+			log.debug("Accepted call {}", call);
 
-			CallMediaPipeline pipeline = null;
 			try {
-				pipeline = new CallMediaPipeline(kurento);
-				pipelines.put(calleer.getSessionId(), pipeline);
-				pipelines.put(callee.getSessionId(), pipeline);
+				CallMediaPipeline pipeline = new CallMediaPipeline(kurento);
+				if (!call.attach(pipeline)) {
+					return;
+				}
 
-				String calleeSdpOffer = jsonMessage.get("sdpOffer").getAsString();
+				String calleeSdpOffer = jsonMessage.getSdpOffer();
 				callee.setWebRtcEndpoint(pipeline.getCalleeWebRtcEP());
-				pipeline.getCalleeWebRtcEP().addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-					@Override
-					public void onEvent(OnIceCandidateEvent event) {
-						JsonObject response = new JsonObject();
-						response.addProperty("id", "iceCandidate");
-						response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-						try {
-							synchronized (callee.getSession()) {
-								callee.getSession().sendMessage(new TextMessage(response.toString()));
-							}
-						} catch (IOException e) {
-							log.debug(e.getMessage());
-						}
-					}
-				});
+				pipeline.getCalleeWebRtcEP().addOnIceCandidateListener(outboundQueues.iceCandidateForwarder(callee.getSession()));
 
 				String calleeSdpAnswer = pipeline.generateSdpAnswerForCallee(calleeSdpOffer);
-				String callerSdpOffer = registry.getByName(from).getSdpOffer();
+				String callerSdpOffer = call.getCallerSdpOffer();
 				calleer.setWebRtcEndpoint(pipeline.getCallerWebRtcEP());
-				pipeline.getCallerWebRtcEP().addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-
-					@Override
-					public void onEvent(OnIceCandidateEvent event) {
-						JsonObject response = new JsonObject();
-						response.addProperty("id", "iceCandidate");
-						response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-						try {
-							synchronized (calleer.getSession()) {
-								calleer.getSession().sendMessage(new TextMessage(response.toString()));
-							}
-						} catch (IOException e) {
-							log.debug(e.getMessage());
-						}
-					}
-				});
+				pipeline.getCallerWebRtcEP().addOnIceCandidateListener(outboundQueues.iceCandidateForwarder(calleer.getSession()));
 
 				String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(callerSdpOffer);
+				if (!call.activate()) {
+					// Stopped while negotiating, after the endpoints were reset
+					callee.resetWebRtcEndpoint();
+					calleer.resetWebRtcEndpoint();
+					return;
+				}
 
 				JsonObject startCommunication = new JsonObject();
 				startCommunication.addProperty("id", "startCommunication");
 				startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
 
-				synchronized (callee) {
-					callee.sendMessage(startCommunication);
-				}
+				callee.sendMessage(startCommunication);
 
 				pipeline.getCalleeWebRtcEP().gatherCandidates();
 
@@ -222,33 +207,26 @@ public class CallHandler extends TextWebSocketHandler {
 				response.addProperty("response", "accepted");
 				response.addProperty("sdpAnswer", callerSdpAnswer);
 
-				synchronized (calleer) {
-					calleer.sendMessage(response);
-				}
+				calleer.sendMessage(response);
 
 				pipeline.getCallerWebRtcEP().gatherCandidates();
 
 			} catch (Throwable t) {
 				log.error(t.getMessage(), t);
 
-				if (pipeline != null) {
-					pipeline.release();
-				}
-
-				pipelines.remove(calleer.getSessionId());
-				pipelines.remove(callee.getSessionId());
-
-				JsonObject response = new JsonObject();
-				response.addProperty("id", "callResponse");
-				response.addProperty("response", "rejected");
-				calleer.sendMessage(response);
+				if (end(call)) {
+					JsonObject response = new JsonObject();
+					response.addProperty("id", "callResponse");
+					response.addProperty("response", "rejected");
+					calleer.sendMessage(response);
 
-				response = new JsonObject();
-				response.addProperty("id", "stopCommunication");
-				callee.sendMessage(response);
+					response = new JsonObject();
+					response.addProperty("id", "stopCommunication");
+					callee.sendMessage(response);
+				}
 			}
 
-		} else {
+		} else if (end(call)) {
 			JsonObject response = new JsonObject();
 			response.addProperty("id", "callResponse");
 			response.addProperty("response", "rejected");
@@ -256,28 +234,33 @@ public class CallHandler extends TextWebSocketHandler {
 		}
 	}
 
-	public void stop(WebSocketSession session) throws IOException {
-		String sessionId = session.getId();
-		if (pipelines.containsKey(sessionId)) {
-			pipelines.get(sessionId).release();
-			CallMediaPipeline pipeline = pipelines.remove(sessionId);
-			pipeline.release();
+	/**
+	 * @return false if the call had already been ended by someone else
+	 */
+	private boolean end(Call call) {
+		if (!call.end()) {
+			return false;
+		}
+		calls.remove(call);
+		return true;
+	}
 
+	public void stop(WebSocketSession session) {
+		Call call = calls.get(session);
+		if (call != null && end(call)) {
 			// Both users can stop the communication. A 'stopCommunication'
 			// message will be sent to the other peer.
-			UserSession stopperUser = registry.getBySession(session);
-			UserSession stoppedUser = (stopperUser.getCallingFrom() != null)
-					? registry.getByName(stopperUser.getCallingFrom()) : registry.getByName(stopperUser.getCallingTo());
-
 			JsonObject message = new JsonObject();
 			message.addProperty("id", "stopCommunication");
-			stoppedUser.sendMessage(message);
+			call.getPeer(session).sendMessage(message);
 		}
 	}
 
 	@Override
 	public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+		stop(session);
 		registry.removeBySession(session);
+		outboundQueues.remove(session);
 	}
 
 }
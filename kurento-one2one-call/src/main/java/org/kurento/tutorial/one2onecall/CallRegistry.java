@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.one2onecall;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * The calls in progress, by the session of each of their users, so that
+ * either side finds its call without looking its peer up by name. A user takes
+ * part in one call at most.
+ *
+ * @since 6.0.0
+ */
+public class CallRegistry {
+
+	private final ConcurrentMap<String, Call> bySession = new ConcurrentHashMap<>();
+
+	/**
+	 * Registers a new call, unless one of its users is already in another.
+	 *
+	 * @return the call, ringing, or {@code null} if a user is busy. The users
+	 *         still in another call tell which one
+	 */
+	public Call start(UserSession caller, UserSession callee,
+			String callerSdpOffer) {
+		final Call call = new Call(caller, callee, callerSdpOffer);
+		if (bySession.putIfAbsent(caller.getSessionId(), call) != null) {
+			return null;
+		}
+		if (bySession.putIfAbsent(callee.getSessionId(), call) != null) {
+			bySession.remove(caller.getSessionId(), call);
+			return null;
+		}
+		return call;
+	}
+
+	/**
+	 * @return the call the session takes part in, or {@code null}
+	 */
+	public Call get(WebSocketSession session) {
+		return bySession.get(session.getId());
+	}
+
+	/**
+	 * Forgets a call, for both of its users.
+	 */
+	public void remove(Call call) {
+		bySession.remove(call.getCaller().getSessionId(), call);
+		bySession.remove(call.getCallee().getSessionId(), call);
+	}
+
+}
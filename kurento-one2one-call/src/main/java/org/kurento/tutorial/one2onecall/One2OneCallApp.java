@@ -15,6 +15,7 @@
 package org.kurento.tutorial.one2onecall;
 
 import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.signaling.OutboundQueues;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -47,12 +48,22 @@ public class One2OneCallApp implements WebSocketConfigurer {
 		return new UserRegistry();
 	}
 
+	@Bean
+	public CallRegistry callRegistry() {
+		return new CallRegistry();
+	}
+
 	@Bean
 	public KurentoClient kurentoClient() {
 		return KurentoClient.create(System.getProperty("kms.ws.uri",
 				DEFAULT_KMS_WS_URI));
 	}
 
+	@Bean
+	public OutboundQueues outboundQueues() {
+		return new OutboundQueues();
+	}
+
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
 		registry.addHandler(callHandler(), "/call");
 	}
@@ -14,12 +14,12 @@
  */
 package org.kurento.tutorial.one2onecall;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
+import org.kurento.tutorial.signaling.OutboundQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.TextMessage;
@@ -41,16 +41,16 @@ public class UserSession {
 
 	private final String name;
 	private final WebSocketSession session;
+	private final OutboundQueue outbound;
 
-	private String sdpOffer;
-	private String callingTo;
-	private String callingFrom;
 	private WebRtcEndpoint webRtcEndpoint;
 	private final List<IceCandidate> candidateList = new ArrayList<IceCandidate>();
 
-	public UserSession(WebSocketSession session, String name) {
+	public UserSession(WebSocketSession session, String name,
+			OutboundQueue outbound) {
 		this.session = session;
 		this.name = name;
+		this.outbound = outbound;
 	}
 
 	public WebSocketSession getSession() {
@@ -61,40 +61,16 @@ public class UserSession {
 		return name;
 	}
 
-	public String getSdpOffer() {
-		return sdpOffer;
-	}
-
-	public void setSdpOffer(String sdpOffer) {
-		this.sdpOffer = sdpOffer;
-	}
-
-	public String getCallingTo() {
-		return callingTo;
-	}
-
-	public void setCallingTo(String callingTo) {
-		this.callingTo = callingTo;
-	}
-
-	public String getCallingFrom() {
-		return callingFrom;
-	}
-
-	public void setCallingFrom(String callingFrom) {
-		this.callingFrom = callingFrom;
-	}
-
-	public void sendMessage(JsonObject message) throws IOException {
+	public void sendMessage(JsonObject message) {
 		log.debug("Sending message from user '{}': {}", name, message);
-		session.sendMessage(new TextMessage(message.toString()));
+		outbound.send(new TextMessage(message.toString()));
 	}
 
 	public String getSessionId() {
 		return session.getId();
 	}
 
-	public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
+	public synchronized void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
 		this.webRtcEndpoint = webRtcEndpoint;
 
 		for (IceCandidate e : candidateList) {
@@ -103,7 +79,17 @@ public class UserSession {
 		this.candidateList.clear();
 	}
 
-	public void addCandidate(IceCandidate e) {
+	/**
+	 * Forgets the endpoint of a call that ended, along with the candidates
+	 * kept for it, so that the candidates of the next call are kept until its
+	 * endpoint is set.
+	 */
+	public synchronized void resetWebRtcEndpoint() {
+		this.webRtcEndpoint = null;
+		this.candidateList.clear();
+	}
+
+	public synchronized void addCandidate(IceCandidate e) {
 		if (this.webRtcEndpoint != null) {
 			this.webRtcEndpoint.addIceCandidate(e);
 		} else {
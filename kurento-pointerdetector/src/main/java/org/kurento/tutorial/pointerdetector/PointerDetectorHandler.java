@@ -14,30 +14,29 @@
  */
 package org.kurento.tutorial.pointerdetector;
 
-import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
-import org.kurento.client.OnIceCandidateEvent;
 import org.kurento.client.WebRtcEndpoint;
-import org.kurento.jsonrpc.JsonUtils;
 import org.kurento.module.pointerdetector.PointerDetectorFilter;
 import org.kurento.module.pointerdetector.PointerDetectorWindowMediaParam;
 import org.kurento.module.pointerdetector.WindowInEvent;
 import org.kurento.module.pointerdetector.WindowOutEvent;
 import org.kurento.module.pointerdetector.WindowParam;
+import org.kurento.tutorial.signaling.OutboundQueues;
+import org.kurento.tutorial.signaling.SignalingCodec;
+import org.kurento.tutorial.signaling.SignalingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 /**
@@ -51,24 +50,26 @@ public class PointerDetectorHandler extends TextWebSocketHandler {
 
 	private final Logger log = LoggerFactory
 			.getLogger(PointerDetectorHandler.class);
-	private static final Gson gson = new GsonBuilder().create();
 
 	private final ConcurrentHashMap<String, UserSession> users = new ConcurrentHashMap<String, UserSession>();
 
 	@Autowired
 	private KurentoClient kurento;
 
+	@Autowired
+	private OutboundQueues outboundQueues;
+
 	PointerDetectorFilter pointerDetectorFilter;
 
 	@Override
 	public void handleTextMessage(WebSocketSession session, TextMessage message)
 			throws Exception {
-		JsonObject jsonMessage = gson.fromJson(message.getPayload(),
-				JsonObject.class);
+		SignalingMessage jsonMessage = SignalingCodec.decode(message
+				.getPayload());
 
 		log.debug("Incoming message: {}", jsonMessage);
 
-		switch (jsonMessage.get("id").getAsString()) {
+		switch (jsonMessage.getId()) {
 		case "start":
 			start(session, jsonMessage);
 			break;
@@ -85,16 +86,13 @@ public class PointerDetectorHandler extends TextWebSocketHandler {
 			break;
 		}
 
-		case "onIceCandidate": {
-			JsonObject candidate = jsonMessage.get("candidate")
-					.getAsJsonObject();
-
+		case "onIceCandidate":
+		case "onIceCandidates": {
 			UserSession user = users.get(session.getId());
 			if (user != null) {
-				IceCandidate cand = new IceCandidate(candidate.get("candidate")
-						.getAsString(), candidate.get("sdpMid").getAsString(),
-						candidate.get("sdpMLineIndex").getAsInt());
-				user.addCandidate(cand);
+				for (IceCandidate cand : jsonMessage.getCandidates()) {
+					user.addCandidate(cand);
+				}
 			}
 			break;
 		}
@@ -102,18 +100,20 @@ public class PointerDetectorHandler extends TextWebSocketHandler {
 		default:
 			sendError(session,
 					"Invalid message with id "
-							+ jsonMessage.get("id").getAsString());
+							+ jsonMessage.getId());
 			break;
 		}
 	}
 
-	private void calibrate(WebSocketSession session, JsonObject jsonMessage) {
+	private void calibrate(WebSocketSession session,
+			SignalingMessage jsonMessage) {
 		if (pointerDetectorFilter != null) {
 			pointerDetectorFilter.trackColorFromCalibrationRegion();
 		}
 	}
 
-	private void start(final WebSocketSession session, JsonObject jsonMessage) {
+	private void start(final WebSocketSession session,
+			SignalingMessage jsonMessage) {
 		try {
 			// Media Logic (Media Pipeline and Elements)
 			UserSession user = new UserSession();
@@ -124,25 +124,8 @@ public class PointerDetectorHandler extends TextWebSocketHandler {
 			user.setWebRtcEndpoint(webRtcEndpoint);
 			users.put(session.getId(), user);
 
-			webRtcEndpoint
-					.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-
-						@Override
-						public void onEvent(OnIceCandidateEvent event) {
-							JsonObject response = new JsonObject();
-							response.addProperty("id", "iceCandidate");
-							response.add("candidate", JsonUtils
-									.toJsonObject(event.getCandidate()));
-							try {
-								synchronized (session) {
-									session.sendMessage(new TextMessage(
-											response.toString()));
-								}
-							} catch (IOException e) {
-								log.debug(e.getMessage());
-							}
-						}
-					});
+			webRtcEndpoint.addOnIceCandidateListener(outboundQueues
+					.iceCandidateForwarder(session));
 
 			pointerDetectorFilter = new PointerDetectorFilter.Builder(pipeline,
 					new WindowParam(5, 5, 30, 30)).build();
@@ -165,12 +148,8 @@ public class PointerDetectorHandler extends TextWebSocketHandler {
 							JsonObject response = new JsonObject();
 							response.addProperty("id", "windowIn");
 							response.addProperty("roiId", event.getWindowId());
-							try {
-								session.sendMessage(new TextMessage(response
-										.toString()));
-							} catch (Throwable t) {
-								sendError(session, t.getMessage());
-							}
+							outboundQueues.get(session).send(
+									new TextMessage(response.toString()));
 						}
 					});
 
@@ -182,26 +161,21 @@ public class PointerDetectorHandler extends TextWebSocketHandler {
 							JsonObject response = new JsonObject();
 							response.addProperty("id", "windowOut");
 							response.addProperty("roiId", event.getWindowId());
-							try {
-								session.sendMessage(new TextMessage(response
-										.toString()));
-							} catch (Throwable t) {
-								sendError(session, t.getMessage());
-							}
+							outboundQueues.get(session).send(
+									new TextMessage(response.toString()));
 						}
 					});
 
 			// SDP negotiation (offer and answer)
-			String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
+			String sdpOffer = jsonMessage.getSdpOffer();
 			String sdpAnswer = webRtcEndpoint.processOffer(sdpOffer);
 
 			// Sending response back to client
 			JsonObject response = new JsonObject();
 			response.addProperty("id", "startResponse");
 			response.addProperty("sdpAnswer", sdpAnswer);
-			synchronized (session) {
-				session.sendMessage(new TextMessage(response.toString()));
-			}
+			outboundQueues.get(session).send(
+					new TextMessage(response.toString()));
 
 			webRtcEndpoint.gatherCandidates();
 
@@ -210,14 +184,17 @@ public class PointerDetectorHandler extends TextWebSocketHandler {
 		}
 	}
 
+	@Override
+	public void afterConnectionClosed(WebSocketSession session,
+			CloseStatus status) throws Exception {
+		outboundQueues.remove(session);
+	}
+
 	private void sendError(WebSocketSession session, String message) {
-		try {
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "error");
-			response.addProperty("message", message);
-			session.sendMessage(new TextMessage(response.toString()));
-		} catch (IOException e) {
-			log.error("Exception sending message", e);
-		}
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "error");
+		response.addProperty("message", message);
+		outboundQueues.get(session).send(
+				new TextMessage(response.toString()));
 	}
 }
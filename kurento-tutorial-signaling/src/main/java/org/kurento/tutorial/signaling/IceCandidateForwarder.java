@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.signaling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.EventListener;
+import org.kurento.client.OnIceCandidateEvent;
+import org.kurento.jsonrpc.JsonUtils;
+import org.springframework.web.socket.TextMessage;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Sends the candidates gathered by an endpoint to the peer, as droppable
+ * messages of its {@link OutboundQueue}.
+ * <p>
+ * Peers that opted in to batching receive the candidates gathered within a
+ * short window as a single {@code iceCandidates} message with a
+ * {@code candidates} array. Other peers receive one {@code iceCandidate}
+ * message per candidate. Both carry the fields of the header, such as the
+ * name of the participant the endpoint belongs to.
+ *
+ * @since 6.0.0
+ */
+public class IceCandidateForwarder implements
+		EventListener<OnIceCandidateEvent> {
+
+	private final OutboundQueue queue;
+	private final JsonObject header;
+	private final long batchMillis;
+	private final ScheduledExecutorService scheduler;
+
+	// guarded by this
+	private List<JsonObject> pending = new ArrayList<>();
+
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * @param queue
+	 *            queue of the peer
+	 * @param header
+	 *            fields added to every message
+	 * @param batchMillis
+	 *            window during which candidates are batched. With 0, each
+	 *            candidate is sent on its own
+	 * @param scheduler
+	 *            fires the end of the batching windows
+	 */
+	public IceCandidateForwarder(OutboundQueue queue, JsonObject header,
+			long batchMillis, ScheduledExecutorService scheduler) {
+		this.queue = queue;
+		this.header = header;
+		this.batchMillis = batchMillis;
+		this.scheduler = scheduler;
+	}
+
+	@Override
+	public void onEvent(OnIceCandidateEvent event) {
+		final JsonObject candidate = JsonUtils.toJsonObject(event
+				.getCandidate());
+		if (batchMillis <= 0) {
+			final JsonObject message = newMessage("iceCandidate");
+			message.add("candidate", candidate);
+			queue.sendDroppable(new TextMessage(message.toString()));
+			return;
+		}
+
+		final boolean first;
+		synchronized (this) {
+			pending.add(candidate);
+			first = pending.size() == 1;
+		}
+		if (first) {
+			try {
+				scheduler.schedule(flush, batchMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				flush();
+			}
+		}
+	}
+
+	private void flush() {
+		final List<JsonObject> candidates;
+		synchronized (this) {
+			candidates = pending;
+			pending = new ArrayList<>();
+		}
+		if (candidates.isEmpty()) {
+			return;
+		}
+
+		final JsonArray array = new JsonArray();
+		for (JsonObject candidate : candidates) {
+			array.add(candidate);
+		}
+		final JsonObject message = newMessage("iceCandidates");
+		message.add("candidates", array);
+		queue.sendDroppable(new TextMessage(message.toString()));
+	}
+
+	private JsonObject newMessage(String id) {
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", id);
+		for (Map.Entry<String, JsonElement> field : header.entrySet()) {
+			message.add(field.getKey(), field.getValue());
+		}
+		return message;
+	}
+
+}
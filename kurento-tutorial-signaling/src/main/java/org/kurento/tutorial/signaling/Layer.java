@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.signaling;
+
+/**
+ * Quality a stream is received at. Every layer but {@link #HIGH} is produced
+ * by a video filter that the stream of the sender goes through once, whatever
+ * the number of receivers of that layer.
+ * <p>
+ * Each tutorial enables layers through its own system property. Otherwise,
+ * every receiver gets the stream of the sender as it is.
+ *
+ * @since 6.0.0
+ */
+public enum Layer {
+
+	/**
+	 * The stream of the sender, as it is
+	 */
+	HIGH(0, 0, 0, 1200),
+
+	MEDIUM(640, 360, 15, 400),
+
+	LOW(320, 180, 10, 0);
+
+	private final int width;
+	private final int height;
+	private final int framerate;
+	private final int minKbps;
+
+	private Layer(int width, int height, int framerate, int minKbps) {
+		this.width = width;
+		this.height = height;
+		this.framerate = framerate;
+		this.minKbps = minKbps;
+	}
+
+	/**
+	 * @param property
+	 *            the system property that enables layers in the tutorial
+	 * @return whether layered forwarding is enabled
+	 */
+	public static boolean isEnabled(String property) {
+		return Boolean.getBoolean(property);
+	}
+
+	/**
+	 * @param kbps
+	 *            bandwidth available to the receiver
+	 * @return the best layer that fits in the bandwidth
+	 */
+	public static Layer forBandwidth(int kbps) {
+		for (Layer layer : values()) {
+			if (kbps >= layer.minKbps) {
+				return layer;
+			}
+		}
+		return LOW;
+	}
+
+	/**
+	 * @return whether the layer is the stream of the sender, with no filter
+	 */
+	public boolean isSource() {
+		return width == 0;
+	}
+
+	/**
+	 * @return the GStreamer pipeline description that produces the layer
+	 */
+	public String getFilterCommand() {
+		return "videoscale ! videorate ! capsfilter caps=video/x-raw,width="
+				+ width + ",height=" + height + ",framerate=" + framerate
+				+ "/1";
+	}
+
+	/**
+	 * @param value
+	 *            the name of the layer, case insensitive
+	 * @param defaultLayer
+	 *            the layer to return if the value is missing or unknown
+	 * @return the parsed layer
+	 */
+	public static Layer parse(String value, Layer defaultLayer) {
+		if (value == null) {
+			return defaultLayer;
+		}
+		try {
+			return Layer.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return defaultLayer;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.signaling;
+
+/**
+ * Told about every message written, or not, by the {@link OutboundQueue}s, to
+ * keep application wide metrics. Called from the writing threads, so it must
+ * not block.
+ *
+ * @since 6.0.0
+ */
+public interface OutboundListener {
+
+	/**
+	 * @param latencyNanos
+	 *            time the message waited in the queue and took to be written
+	 */
+	void onSent(long latencyNanos);
+
+	/**
+	 * The session refused the message.
+	 */
+	void onFailed();
+
+	/**
+	 * @param count
+	 *            number of messages discarded, because the queue was full or
+	 *            closed
+	 */
+	void onDropped(int count);
+
+}
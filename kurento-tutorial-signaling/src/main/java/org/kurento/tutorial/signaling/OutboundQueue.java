@@ -0,0 +1,390 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.signaling;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Messages waiting to be written to a websocket session. Senders only enqueue,
+ * so a slow browser never blocks the thread producing the message; a single
+ * task at a time writes the queue to the session, in order. A write that does
+ * not complete within the send timeout closes the session.
+ * <p>
+ * The queue is bounded. When it is full, the {@link OverflowPolicy} decides
+ * whether an ICE candidate is dropped or the session is closed. A session
+ * whose writes cannot be scheduled, because every writing thread is taken, is
+ * closed too.
+ *
+ * @since 6.0.0
+ */
+public class OutboundQueue {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(OutboundQueue.class);
+
+	private final WebSocketSession session;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final Executor writers;
+	private final Executor closer;
+
+	// guarded by this
+	private final Deque<Entry> pending = new ArrayDeque<>();
+	private boolean writing;
+	private boolean closed;
+	private int maxDepth;
+
+	// When the write in progress started, or 0
+	private volatile long writeStarted;
+
+	private final OutboundListener listener;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	private final Runnable writer = new Runnable() {
+		@Override
+		public void run() {
+			write();
+		}
+	};
+
+	/**
+	 * @param session
+	 *            the session messages are written to
+	 * @param capacity
+	 *            maximum number of messages waiting to be written
+	 * @param policy
+	 *            what to do when the queue is full
+	 * @param writers
+	 *            threads that write the messages
+	 */
+	public OutboundQueue(WebSocketSession session, int capacity,
+			OverflowPolicy policy, Executor writers) {
+		this(session, capacity, policy, writers, writers, null);
+	}
+
+	/**
+	 * @param closer
+	 *            thread that closes the session when it does not keep up
+	 * @param listener
+	 *            told about every message, or {@code null}
+	 */
+	public OutboundQueue(WebSocketSession session, int capacity,
+			OverflowPolicy policy, Executor writers, Executor closer,
+			OutboundListener listener) {
+		this.session = session;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.writers = writers;
+		this.closer = closer;
+		this.listener = listener;
+	}
+
+	public WebSocketSession getSession() {
+		return session;
+	}
+
+	/**
+	 * Queues a message that has to be delivered.
+	 *
+	 * @return false if the message was discarded, because the queue is closed
+	 *         or full
+	 */
+	public boolean send(TextMessage message) {
+		return enqueue(message, false);
+	}
+
+	/**
+	 * Queues a message that may be dropped if the peer does not keep up, such
+	 * as an ICE candidate.
+	 *
+	 * @return false if the message was discarded, because the queue is closed
+	 *         or full
+	 */
+	public boolean sendDroppable(TextMessage message) {
+		return enqueue(message, true);
+	}
+
+	/**
+	 * Queues a websocket ping, which the browser answers with a pong. The
+	 * ping is skipped rather than making room for it when the queue is full.
+	 *
+	 * @return false if the ping was not queued
+	 */
+	public boolean ping() {
+		synchronized (this) {
+			if (closed || pending.size() >= capacity) {
+				return false;
+			}
+			pending.add(new Entry(new PingMessage(), false));
+			if (writing) {
+				return true;
+			}
+			writing = true;
+		}
+		schedule();
+		return true;
+	}
+
+	private boolean enqueue(TextMessage message, boolean droppable) {
+		boolean overflow = false;
+		boolean schedule = false;
+		synchronized (this) {
+			if (closed) {
+				return false;
+			}
+			if (pending.size() >= capacity && !makeRoom()) {
+				if (droppable && policy == OverflowPolicy.DROP_OLDEST_ICE) {
+					dropped(1);
+					return false;
+				}
+				overflow = true;
+			} else {
+				pending.add(new Entry(message, droppable));
+				maxDepth = Math.max(maxDepth, pending.size());
+				if (!writing) {
+					writing = true;
+					schedule = true;
+				}
+			}
+		}
+
+		if (overflow) {
+			log.warn("Outbound queue of session {} is full, closing it",
+					session.getId());
+			closeSession();
+			return false;
+		}
+		if (schedule) {
+			schedule();
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the oldest droppable message, if the policy allows it.
+	 */
+	private boolean makeRoom() {
+		if (policy != OverflowPolicy.DROP_OLDEST_ICE) {
+			return false;
+		}
+		for (Iterator<Entry> it = pending.iterator(); it.hasNext();) {
+			if (it.next().droppable) {
+				it.remove();
+				dropped(1);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void schedule() {
+		try {
+			writers.execute(writer);
+		} catch (RejectedExecutionException e) {
+			log.warn("No thread left to write to session {}, closing it",
+					session.getId());
+			synchronized (this) {
+				writing = false;
+			}
+			closeSession();
+		}
+	}
+
+	private void write() {
+		while (true) {
+			final Entry entry;
+			synchronized (this) {
+				entry = pending.poll();
+				if (entry == null) {
+					writing = false;
+					return;
+				}
+			}
+			writeStarted = System.nanoTime();
+			try {
+				session.sendMessage(entry.message);
+				sent.incrementAndGet();
+				recordLatency(System.nanoTime() - entry.queuedAt);
+			} catch (IOException | RuntimeException e) {
+				failed.incrementAndGet();
+				if (listener != null) {
+					listener.onFailed();
+				}
+				log.debug("Could not write to session {}", session.getId(), e);
+			} finally {
+				writeStarted = 0;
+			}
+		}
+	}
+
+	/**
+	 * Closes the session if the write in progress has been blocked for too
+	 * long, because the peer does not read.
+	 *
+	 * @return whether the session was closed
+	 */
+	public boolean closeIfStalled(long timeoutNanos) {
+		final long started = writeStarted;
+		if (started == 0 || System.nanoTime() - started < timeoutNanos) {
+			return false;
+		}
+		synchronized (this) {
+			if (closed) {
+				return false;
+			}
+		}
+		log.warn("Write to session {} blocked for {} ms, closing it",
+				session.getId(), TimeUnit.NANOSECONDS.toMillis(System
+						.nanoTime() - started));
+		closeSession();
+		return true;
+	}
+
+	private void dropped(int count) {
+		dropped.addAndGet(count);
+		if (listener != null && count > 0) {
+			listener.onDropped(count);
+		}
+	}
+
+	private void recordLatency(long nanos) {
+		if (listener != null) {
+			listener.onSent(nanos);
+		}
+		totalLatency.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxLatency.get())
+				&& !maxLatency.compareAndSet(max, nanos)) {
+		}
+	}
+
+	private void closeSession() {
+		close();
+		try {
+			closer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						session.close(CloseStatus.SESSION_NOT_RELIABLE);
+					} catch (IOException e) {
+						log.debug("Could not close session {}",
+								session.getId(), e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.debug("Could not close session {}", session.getId());
+		}
+	}
+
+	/**
+	 * Discards the pending messages and refuses any further one.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			dropped(pending.size());
+			pending.clear();
+		}
+	}
+
+	/**
+	 * @return number of messages waiting to be written
+	 */
+	public synchronized int getDepth() {
+		return pending.size();
+	}
+
+	/**
+	 * @return highest number of messages that have been waiting at once
+	 */
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return number of messages the session refused
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return number of messages discarded because the queue was full or
+	 *         closed
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return depth, messages sent, failed and dropped, and mean and maximum
+	 *         time in milliseconds from queueing a message to having written
+	 *         it
+	 */
+	public Map<String, Object> snapshot() {
+		final long count = sent.get();
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("depth", getDepth());
+		snapshot.put("maxDepth", getMaxDepth());
+		snapshot.put("sent", count);
+		snapshot.put("failed", failed.get());
+		snapshot.put("dropped", dropped.get());
+		snapshot.put("meanLatencyMs", count == 0 ? 0 : TimeUnit.NANOSECONDS
+				.toMillis(totalLatency.get() / count));
+		snapshot.put("maxLatencyMs",
+				TimeUnit.NANOSECONDS.toMillis(maxLatency.get()));
+		return snapshot;
+	}
+
+	private static class Entry {
+
+		final WebSocketMessage<?> message;
+		final boolean droppable;
+		final long queuedAt = System.nanoTime();
+
+		Entry(WebSocketMessage<?> message, boolean droppable) {
+			this.message = message;
+			this.droppable = droppable;
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.signaling;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * The {@link OutboundQueue} of every open websocket session, and the threads
+ * writing them. Handlers get the queue of a session to send to it, and remove
+ * it once the connection is closed.
+ * <p>
+ * Writing to a session blocks while the browser does not read, so a few slow
+ * browsers must not hold up every other session: threads are added to the
+ * pool whenever all of them are writing, up to a maximum, and a session whose
+ * write has not completed within the send timeout is closed. Once every
+ * thread is writing and the writes waiting for one are at their limit, a
+ * session with new messages is closed as if its own queue had overflowed,
+ * rather than adding yet another thread.
+ * <p>
+ * Configured through system properties: {@code signaling.outbound.capacity}
+ * (256 messages), {@code signaling.outbound.overflow} ({@code drop-oldest-ice}
+ * or {@code close-session}), {@code signaling.outbound.threads} (32), the
+ * maximum number of writing threads, {@code signaling.outbound.handoff}
+ * (1024), the sessions waiting for one, {@code
+ * signaling.outbound.send.timeout.ms} (10000) and {@code
+ * signaling.ice.batch.ms} (10), the window during which candidates are
+ * batched for the sessions that asked for it.
+ *
+ * @since 6.0.0
+ */
+public class OutboundQueues {
+
+	static final String CAPACITY_PROPERTY = "signaling.outbound.capacity";
+	static final String OVERFLOW_PROPERTY = "signaling.outbound.overflow";
+	static final String THREADS_PROPERTY = "signaling.outbound.threads";
+	static final String HANDOFF_PROPERTY = "signaling.outbound.handoff";
+	static final String SEND_TIMEOUT_PROPERTY = "signaling.outbound.send.timeout.ms";
+	static final String ICE_BATCH_PROPERTY = "signaling.ice.batch.ms";
+
+	/**
+	 * Query parameter of the websocket URI through which a peer asks for its
+	 * candidates to be batched.
+	 */
+	public static final String ICE_BATCH_PARAMETER = "iceBatch";
+
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ThreadPoolExecutor writers;
+	// Closing a session may block as long as writing to it
+	private final ExecutorService closer = Executors
+			.newSingleThreadExecutor();
+	private final long iceBatchMillis;
+	private final long sendTimeoutNanos;
+	// Batches candidates and looks for stalled writes
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor();
+	private final ConcurrentMap<String, OutboundQueue> queues = new ConcurrentHashMap<>();
+	private volatile OutboundListener listener;
+
+	/** Lets the listener be set after queues have been created */
+	private final OutboundListener forwarder = new OutboundListener() {
+		@Override
+		public void onSent(long latencyNanos) {
+			final OutboundListener current = listener;
+			if (current != null) {
+				current.onSent(latencyNanos);
+			}
+		}
+
+		@Override
+		public void onFailed() {
+			final OutboundListener current = listener;
+			if (current != null) {
+				current.onFailed();
+			}
+		}
+
+		@Override
+		public void onDropped(int count) {
+			final OutboundListener current = listener;
+			if (current != null) {
+				current.onDropped(count);
+			}
+		}
+	};
+
+	public OutboundQueues() {
+		this(Integer.getInteger(CAPACITY_PROPERTY, 256), OverflowPolicy
+				.parse(System.getProperty(OVERFLOW_PROPERTY, "drop-oldest-ice")),
+				Integer.getInteger(THREADS_PROPERTY, 32), Integer.getInteger(
+						HANDOFF_PROPERTY, 1024), Long.getLong(
+						SEND_TIMEOUT_PROPERTY, 10000), Long.getLong(
+						ICE_BATCH_PROPERTY, 10));
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of messages waiting for each session
+	 * @param policy
+	 *            what to do when the queue of a session is full
+	 * @param threads
+	 *            maximum number of threads writing to the sessions
+	 * @param handoff
+	 *            maximum number of sessions waiting for a writing thread
+	 * @param sendTimeoutMillis
+	 *            time a write can take before its session is closed
+	 * @param iceBatchMillis
+	 *            window during which candidates are batched
+	 */
+	public OutboundQueues(int capacity, OverflowPolicy policy, int threads,
+			int handoff, long sendTimeoutMillis, long iceBatchMillis) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.iceBatchMillis = iceBatchMillis;
+		this.sendTimeoutNanos = TimeUnit.MILLISECONDS
+				.toNanos(sendTimeoutMillis);
+		// Threads are started up to the maximum before writes wait for one,
+		// and stop once idle
+		this.writers = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(handoff));
+		this.writers.allowCoreThreadTimeOut(true);
+		final long checkMillis = Math.max(1, sendTimeoutMillis / 2);
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				closeStalled();
+			}
+		}, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void closeStalled() {
+		for (OutboundQueue queue : queues.values()) {
+			queue.closeIfStalled(sendTimeoutNanos);
+		}
+	}
+
+	/**
+	 * @return the queue of the session, created on first use. Messages sent
+	 *         to a session that is already closed are discarded
+	 */
+	public OutboundQueue get(WebSocketSession session) {
+		OutboundQueue queue = queues.get(session.getId());
+		if (queue == null) {
+			final OutboundQueue newQueue = new OutboundQueue(session,
+					capacity, policy, writers, closer, forwarder);
+			if (!session.isOpen()) {
+				newQueue.close();
+				return newQueue;
+			}
+			queue = queues.putIfAbsent(session.getId(), newQueue);
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * @param listener
+	 *            told about the messages of every session, or {@code null}
+	 */
+	public void setListener(OutboundListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return a listener that sends the candidates of an endpoint to the
+	 *         session
+	 */
+	public IceCandidateForwarder iceCandidateForwarder(WebSocketSession session) {
+		return iceCandidateForwarder(session, new JsonObject());
+	}
+
+	/**
+	 * @param header
+	 *            fields added to every candidates message, such as the name of
+	 *            the participant the endpoint belongs to
+	 * @return a listener that sends the candidates of an endpoint to the
+	 *         session, batched if the session asked for it
+	 */
+	public IceCandidateForwarder iceCandidateForwarder(
+			WebSocketSession session, JsonObject header) {
+		return new IceCandidateForwarder(get(session), header,
+				isIceBatching(session) ? iceBatchMillis : 0, timer);
+	}
+
+	/**
+	 * @return whether the websocket URI of the session carries
+	 *         {@code iceBatch=true}
+	 */
+	public static boolean isIceBatching(WebSocketSession session) {
+		final URI uri = session.getUri();
+		if (uri == null || uri.getQuery() == null) {
+			return false;
+		}
+		for (String parameter : uri.getQuery().split("&")) {
+			if (parameter.equals(ICE_BATCH_PARAMETER + "=true")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Discards the queue of a closed session.
+	 */
+	public void remove(WebSocketSession session) {
+		final OutboundQueue queue = queues.remove(session.getId());
+		if (queue != null) {
+			queue.close();
+		}
+	}
+
+	/**
+	 * @return the metrics of the queue of every session, by session id
+	 */
+	public Map<String, Map<String, Object>> snapshot() {
+		final Map<String, Map<String, Object>> snapshot = new LinkedHashMap<>();
+		for (Map.Entry<String, OutboundQueue> entry : queues.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return snapshot;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		timer.shutdownNow();
+		writers.shutdownNow();
+		closer.shutdownNow();
+	}
+
+}
@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.signaling;
+
+/**
+ * What an {@link OutboundQueue} does when a message arrives and the queue is
+ * already full.
+ *
+ * @since 6.0.0
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Drops the oldest queued message that may be lost, such as an ICE
+	 * candidate, to make room for the new one. The session is closed if every
+	 * queued message has to be delivered.
+	 */
+	DROP_OLDEST_ICE,
+
+	/**
+	 * Closes the session: a peer that cannot keep up has to reconnect.
+	 */
+	CLOSE_SESSION;
+
+	/**
+	 * @param value
+	 *            {@code drop-oldest-ice} or {@code close-session}
+	 */
+	public static OverflowPolicy parse(String value) {
+		return valueOf(value.trim().toUpperCase().replace('-', '_'));
+	}
+
+}
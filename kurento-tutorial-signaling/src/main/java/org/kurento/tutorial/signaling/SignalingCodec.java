@@ -0,0 +1,149 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.signaling;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.kurento.client.IceCandidate;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Decodes the messages peers send over the websocket. The payload is read as
+ * a stream, without building a tree of JSON elements first, and the ICE
+ * candidates are decoded straight into {@link IceCandidate}s.
+ *
+ * @since 6.0.0
+ */
+public final class SignalingCodec {
+
+	private SignalingCodec() {
+	}
+
+	/**
+	 * @param payload
+	 *            a JSON object with an {@code id} field
+	 * @throws JsonSyntaxException
+	 *             if the payload is not a JSON object or it has no id
+	 */
+	public static SignalingMessage decode(String payload) {
+		final JsonReader reader = new JsonReader(new StringReader(payload));
+		try {
+			return read(reader);
+		} catch (IOException | IllegalStateException | NumberFormatException e) {
+			throw new JsonSyntaxException(e);
+		}
+	}
+
+	private static SignalingMessage read(JsonReader reader) throws IOException {
+		String id = null;
+		final HashMap<String, String> fields = new HashMap<>();
+		HashMap<String, List<String>> lists = null;
+		List<IceCandidate> candidates = null;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			final String name = reader.nextName();
+			final JsonToken token = reader.peek();
+			if (name.equals("id") && token == JsonToken.STRING) {
+				id = reader.nextString();
+			} else if (name.equals("candidate")
+					&& token == JsonToken.BEGIN_OBJECT) {
+				candidates = new ArrayList<>(1);
+				candidates.add(readCandidate(reader));
+			} else if (name.equals("candidates")
+					&& token == JsonToken.BEGIN_ARRAY) {
+				candidates = new ArrayList<>();
+				reader.beginArray();
+				while (reader.hasNext()) {
+					candidates.add(readCandidate(reader));
+				}
+				reader.endArray();
+			} else if (token == JsonToken.BEGIN_ARRAY) {
+				if (lists == null) {
+					lists = new HashMap<>();
+				}
+				lists.put(name, readStrings(reader));
+			} else if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+				fields.put(name, reader.nextString());
+			} else if (token == JsonToken.BOOLEAN) {
+				fields.put(name, String.valueOf(reader.nextBoolean()));
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (id == null) {
+			throw new JsonSyntaxException("Message without id");
+		}
+		return new SignalingMessage(id, fields, lists, candidates);
+	}
+
+	/**
+	 * Reads the strings and numbers of an array, skipping any other element.
+	 */
+	private static List<String> readStrings(JsonReader reader)
+			throws IOException {
+		final List<String> values = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			final JsonToken token = reader.peek();
+			if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+				values.add(reader.nextString());
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endArray();
+		return values;
+	}
+
+	private static IceCandidate readCandidate(JsonReader reader)
+			throws IOException {
+		String candidate = null;
+		String sdpMid = null;
+		int sdpMLineIndex = 0;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			final String name = reader.nextName();
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+			} else if (name.equals("candidate")) {
+				candidate = reader.nextString();
+			} else if (name.equals("sdpMid")) {
+				sdpMid = reader.nextString();
+			} else if (name.equals("sdpMLineIndex")) {
+				sdpMLineIndex = reader.nextInt();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (candidate == null) {
+			throw new JsonSyntaxException("Candidate without candidate line");
+		}
+		return new IceCandidate(candidate, sdpMid, sdpMLineIndex);
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package org.kurento.tutorial.signaling;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.kurento.client.IceCandidate;
+
+/**
+ * A message received from a peer, as decoded by {@link SignalingCodec}. Only
+ * the scalar fields of the message and its arrays of scalars are kept, as
+ * strings, together with the ICE candidates it carries. Any other nested value
+ * is skipped when decoding.
+ *
+ * @since 6.0.0
+ */
+public final class SignalingMessage {
+
+	private static final int MAX_LOGGED_LENGTH = 64;
+
+	private final String id;
+	private final Map<String, String> fields;
+	private final Map<String, List<String>> lists;
+	private final List<IceCandidate> candidates;
+
+	SignalingMessage(String id, Map<String, String> fields,
+			Map<String, List<String>> lists, List<IceCandidate> candidates) {
+		this.id = id;
+		this.fields = fields;
+		this.lists = lists == null ? Collections
+				.<String, List<String>> emptyMap() : lists;
+		this.candidates = candidates == null ? Collections
+				.<IceCandidate> emptyList() : candidates;
+	}
+
+	/**
+	 * @return the value of the {@code id} field, which tells what the message
+	 *         is
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return whether the message has a scalar field with the given name
+	 */
+	public boolean has(String field) {
+		return fields.containsKey(field);
+	}
+
+	/**
+	 * @return the value of a string, number or boolean field, or {@code null}
+	 *         if the message has no such field
+	 */
+	public String getString(String field) {
+		return fields.get(field);
+	}
+
+	/**
+	 * @throws NumberFormatException
+	 *             if the field is missing or is not an integer
+	 */
+	public int getInt(String field) {
+		return Integer.parseInt(fields.get(field));
+	}
+
+	/**
+	 * @throws NumberFormatException
+	 *             if the field is missing or is not a number
+	 */
+	public double getDouble(String field) {
+		final String value = fields.get(field);
+		if (value == null) {
+			throw new NumberFormatException("Missing field " + field);
+		}
+		return Double.parseDouble(value);
+	}
+
+	/**
+	 * @return the strings and numbers of an array field, or an empty list if
+	 *         the message has no such field
+	 */
+	public List<String> getStrings(String field) {
+		final List<String> values = lists.get(field);
+		return values != null ? values : Collections.<String> emptyList();
+	}
+
+	/**
+	 * @return the {@code sdpOffer} field, or {@code null}
+	 */
+	public String getSdpOffer() {
+		return fields.get("sdpOffer");
+	}
+
+	/**
+	 * @return the candidate of an {@code onIceCandidate} message, or those of
+	 *         an {@code onIceCandidates} message in the order they were
+	 *         gathered. Empty for other messages
+	 */
+	public List<IceCandidate> getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * Long values such as SDPs are replaced by their length, so that they do
+	 * not flood the logs.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder("{id=").append(id);
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			final String value = field.getValue();
+			builder.append(", ").append(field.getKey()).append('=');
+			if (value.length() > MAX_LOGGED_LENGTH) {
+				builder.append('<').append(value.length()).append(" chars>");
+			} else {
+				builder.append(value);
+			}
+		}
+		for (Map.Entry<String, List<String>> list : lists.entrySet()) {
+			builder.append(", ").append(list.getKey()).append('=')
+					.append(list.getValue());
+		}
+		if (!candidates.isEmpty()) {
+			builder.append(", candidates=").append(candidates.size());
+		}
+		return builder.append('}').toString();
+	}
+
+}